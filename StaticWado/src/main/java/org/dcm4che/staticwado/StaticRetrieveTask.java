@@ -0,0 +1,176 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.BulkData;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.DataWriter;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.NoPresentationContextException;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.BasicRetrieveTask;
+import org.dcm4che3.net.service.InstanceLocator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A C-GET/C-MOVE retrieve task that reconstructs the instances from the deduplicated data and frame files
+ * in the static tree, and streams them over the store association without writing part 10 files.
+ * The next readAhead instances are reconstructed and read into memory on the executor while the current
+ * instance is being sent, so that sub-operations can be pipelined when async operations are negotiated.
+ * When the destination doesn't accept the stored transfer syntax, the frames are decoded to a native syntax it does.
+ */
+public class StaticRetrieveTask extends BasicRetrieveTask<StaticRetrieveTask.StaticInstanceLocator> {
+  private static final Logger log = LoggerFactory.getLogger(StaticRetrieveTask.class);
+
+  /** Native transfer syntaxes the stored frames can be decoded to, in order of preference */
+  static final String[] DECODED_TSUIDS = {UID.ExplicitVRLittleEndian, UID.ImplicitVRLittleEndian};
+
+  private final List<StaticInstanceLocator> insts;
+  private final ExecutorService executor;
+  private final int readAhead;
+  private final long maxBuffered;
+  private final Map<String, Future<PreparedInstance>> prepared = new HashMap<>();
+  private int nextPrepare;
+
+  public StaticRetrieveTask(Dimse rq, Association rqas, PresentationContext pc, Attributes rqCmd,
+                            List<StaticInstanceLocator> insts, Association storeas,
+                            ExecutorService executor, int readAhead, long maxBuffered) {
+    super(rq, rqas, pc, rqCmd, insts, storeas);
+    this.insts = insts;
+    this.executor = executor;
+    this.readAhead = readAhead;
+    this.maxBuffered = maxBuffered;
+    for (int i = 0; i < insts.size(); i++) {
+      insts.get(i).index = i;
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      super.run();
+    } finally {
+      synchronized (prepared) {
+        prepared.values().forEach(future -> future.cancel(true));
+        prepared.clear();
+      }
+    }
+  }
+
+  @Override
+  protected String selectTransferSyntaxFor(Association storeas, StaticInstanceLocator inst) throws Exception {
+    // The frames are stored in a single transfer syntax, so prefer that one as it is sent without transcoding
+    Set<String> accepted = storeas.getTransferSyntaxesFor(inst.cuid);
+    if (accepted.contains(inst.tsuid)) {
+      return inst.tsuid;
+    }
+    if (!ExtractImageFrames.VIDEO_TSUIDS.contains(inst.tsuid)) {
+      for (String tsuid : DECODED_TSUIDS) {
+        if (accepted.contains(tsuid)) return tsuid;
+      }
+    }
+    throw new NoPresentationContextException(inst.cuid, inst.tsuid);
+  }
+
+  @Override
+  protected DataWriter createDataWriter(StaticInstanceLocator inst, String tsuid) throws Exception {
+    Future<PreparedInstance> future;
+    synchronized (prepared) {
+      prepareUpTo(inst.index + readAhead);
+      future = prepared.remove(inst.iuid);
+    }
+    PreparedInstance instance;
+    try {
+      instance = future.get();
+    } catch (ExecutionException e) {
+      throw (Exception) e.getCause();
+    }
+    if (!tsuid.equals(inst.tsuid)) {
+      log.debug("Decoding {} from {} to {}", inst.iuid, inst.tsuid, tsuid);
+      return (out, ts) -> Part10Writer.writeDecoded(instance.attr, tsuid, out);
+    }
+    return (out, ts) -> {
+      if (instance.data != null) {
+        out.write(instance.data);
+      } else {
+        StudyData.writeDimse(instance.attr, out, false);
+      }
+    };
+  }
+
+  /** Starts the reconstruction of every instance up to and including the given index. */
+  private void prepareUpTo(int last) {
+    for (; nextPrepare <= last && nextPrepare < insts.size(); nextPrepare++) {
+      StaticInstanceLocator next = insts.get(nextPrepare);
+      prepared.put(next.iuid, executor.submit(() -> prepare(next)));
+    }
+  }
+
+  /**
+   * Reconstructs the instance, and if it is small enough, reads all the bulkdata/frame files by writing
+   * the full dataset into memory.  Larger instances are streamed directly from the frame files when sent, as are
+   * instances that have to be decoded because the stored transfer syntax isn't accepted.
+   */
+  private PreparedInstance prepare(StaticInstanceLocator inst) throws Exception {
+    Attributes attr = inst.studyData.getDimseAttributes(inst.iuid);
+    if (!storeas.getTransferSyntaxesFor(inst.cuid).contains(inst.tsuid)) {
+      return new PreparedInstance(attr, null);
+    }
+    long size = bulkLength(attr);
+    if (size > maxBuffered) {
+      log.debug("Streaming {} of size {} from frame files", inst.iuid, size);
+      return new PreparedInstance(attr, null);
+    }
+    ByteArrayOutputStream baos = new ByteArrayOutputStream((int) size + 16384);
+    StudyData.writeDimse(attr, baos, false);
+    return new PreparedInstance(null, baos.toByteArray());
+  }
+
+  /** Returns the total length of the bulkdata values referenced from attr */
+  static long bulkLength(Attributes attr) throws Exception {
+    AtomicLong ret = new AtomicLong();
+    attr.accept((attrs, tag, vr, value) -> {
+      if (value instanceof BulkData) {
+        ret.addAndGet(Math.max(0, ((BulkData) value).longLength()));
+      } else if (value instanceof List) {
+        for (Object item : (List<?>) value) {
+          if (item instanceof BulkData) ret.addAndGet(Math.max(0, ((BulkData) item).longLength()));
+        }
+      }
+      return true;
+    }, true);
+    return ret.get();
+  }
+
+  private static class PreparedInstance {
+    final Attributes attr;
+    final byte[] data;
+
+    PreparedInstance(Attributes attr, byte[] data) {
+      this.attr = attr;
+      this.data = data;
+    }
+  }
+
+  /** An instance locator that remembers the study data holding the deduplicated instance. */
+  public static class StaticInstanceLocator extends InstanceLocator {
+    final StudyData studyData;
+    int index;
+
+    public StaticInstanceLocator(StudyData studyData, String cuid, String iuid, String tsuid) {
+      super(cuid, iuid, tsuid, studyData.getStudyUid());
+      this.studyData = studyData;
+    }
+  }
+}
@@ -4,6 +4,7 @@ import org.dcm4che3.data.UID;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -40,6 +41,29 @@ public class StaticWado {
         opts.addOption(new Option("t","destinationType", true,
         "Sets the transfer syntax appropriately for one of: jll,jls,jpeg,j2k,orig.  Will not recompress.  Default is jls."));
         opts.addOption(new Option("r", "recompress", true, "Recompress already compressed files of the specified types (defaults to j2k,lei but can include jls, jll, jpeg)"));
+        opts.addOption(new Option(null, "extractCache", true, "Size in MB of the extract cache shared across studies (default 64)"));
+        opts.addOption(new Option(null, "metadataThreads", true, "Number of series to generate metadata for concurrently (defaults to the number of processors)"));
+        opts.addOption(new Option(null, "gzipLevels", true,
+        "Gzip levels by output class, eg metadata=9,query=6,instances=1,deduplicated=6,bulkdata=6"));
+        opts.addOption(new Option(null, "gzipThreads", true, "Threads to compress series metadata in parallel blocks, 1 for serial (default number of processors)"));
+        opts.addOption(new Option(null, "sidecars", true, "Also write pre-compressed sidecars of served metadata/query files, eg zstd or zstd:19 (default none)"));
+        opts.addOption(new Option(null, "binaryDeduplicated", false, "Also write a binary sidecar of deduplicated group files, which loads faster"));
+        opts.addOption(new Option(null, "packFrames", true, "Pack the frames of instances with at least this many frames into one frames.pack file (default never)"));
+        opts.addOption(new Option(null, "packSopClasses", true, "Comma separated SOP class UIDs to always pack the frames of"));
+        opts.addOption(new Option(null, "frameParts", true,
+        "Store frames as multipart (default), singlepart (raw, multipart added by StaticWadoHttp) or both (also frame.jpg)"));
+        opts.addOption(new Option(null, "thumbnailSize", true, "Longest side of the instance and series thumbnails, 0 for full resolution (default 128)"));
+        opts.addOption(new Option(null, "metricsFile", true, "Periodically write a JSON snapshot of the stage timings and counters to this file"));
+        opts.addOption(new Option(null, "metricsInterval", true, "Seconds between metrics snapshots (default 60)"));
+        opts.addOption(new Option(null, "traceStudies", true, "Comma separated study UIDs, or * for all, to write a Chrome trace of the ingest of when complete"));
+        opts.addOption(new Option(null, "traceDir", true, "Directory to write study traces to (default traces in the DICOMweb directory)"));
+        opts.addOption(new Option(null, "include", true, "Comma separated globs of the files to import, matching the name, or the path under the scanned directory if they contain a / (default all)"));
+        opts.addOption(new Option(null, "exclude", true, "Comma separated globs of the files and directories to skip when scanning"));
+        opts.addOption(new Option(null, "dicomdir", false, "Import the files referenced by a DICOMDIR rather than walking its directory"));
+        opts.addOption(new Option(null, "scanThreads", true, "Number of threads listing directories ahead of the import (default 4)"));
+        opts.addOption(new Option(null, "listingCache", false, "Cache directory listings of the DICOMweb tree between our own writes to them"));
+        opts.addOption(new Option(null, "notifyThreads", true, "Complete notified studies on this many threads, leasing each study so several nodes can share the tree (default one at a time, no leases)"));
+        opts.addOption(new Option(null, "leaseTime", true, "Seconds before a study lease not renewed by its node can be taken over (default 600)"));
         opts.addOption(new Option("h", "help",false,"Show help"));
     }
 
@@ -95,6 +119,39 @@ public class StaticWado {
         manager.setDestinationTsuid(typeName);
         String recompress = cl.getOptionValue('r');
         if( recompress!=null ) manager.setRecompress(recompress);
+        String extractCache = cl.getOptionValue("extractCache");
+        if( extractCache!=null ) manager.setExtractCacheSize(Long.parseLong(extractCache)*1024*1024);
+        String metadataThreads = cl.getOptionValue("metadataThreads");
+        if( metadataThreads!=null ) manager.setMetadataThreads(Integer.parseInt(metadataThreads));
+        String gzipLevels = cl.getOptionValue("gzipLevels");
+        if( gzipLevels!=null ) manager.compression.setLevels(gzipLevels);
+        String gzipThreads = cl.getOptionValue("gzipThreads");
+        if( gzipThreads!=null ) manager.compression.setThreads(Integer.parseInt(gzipThreads));
+        manager.compression.setSidecars(cl.getOptionValue("sidecars"));
+        manager.setBinaryDeduplicated(cl.hasOption("binaryDeduplicated"));
+        String packSopClasses = cl.getOptionValue("packSopClasses");
+        manager.setPackFrames(Integer.parseInt(cl.getOptionValue("packFrames", "0")),
+            packSopClasses==null ? null : Arrays.asList(packSopClasses.split(",")));
+        String frameParts = cl.getOptionValue("frameParts");
+        if( frameParts!=null ) manager.setFrameParts(frameParts);
+        String thumbnailSize = cl.getOptionValue("thumbnailSize");
+        if( thumbnailSize!=null ) manager.setThumbnailSize(Integer.parseInt(thumbnailSize));
+        manager.setTraceStudies(cl.getOptionValue("traceStudies"), cl.getOptionValue("traceDir"));
+        manager.dirScanner.setIncludes(cl.getOptionValue("include"))
+            .setExcludes(cl.getOptionValue("exclude"))
+            .setDicomdir(cl.hasOption("dicomdir"));
+        manager.fileHandler.setListingCache(cl.hasOption("listingCache"));
+        String notifyThreads = cl.getOptionValue("notifyThreads");
+        if( notifyThreads!=null ) {
+            manager.setNotifyThreads(Integer.parseInt(notifyThreads),
+                Long.parseLong(cl.getOptionValue("leaseTime", String.valueOf(Leases.DEFAULT_LEASE_MILLIS / 1000))));
+        }
+        String scanThreads = cl.getOptionValue("scanThreads");
+        if( scanThreads!=null ) manager.dirScanner.setThreads(Integer.parseInt(scanThreads));
+        String metricsFile = cl.getOptionValue("metricsFile");
+        if( metricsFile!=null ) {
+            manager.metrics.startSnapshots(new File(metricsFile), Long.parseLong(cl.getOptionValue("metricsInterval", "60")));
+        }
 
         return manager;
     }
@@ -1,19 +1,407 @@
 package org.dcm4che.staticwado;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-/** A simple HTTP server for static wado. */
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A simple HTTP server for static wado.  Files are served from the pre-compressed versions in the static tree,
+ * choosing the densest encoding the client accepts: a zstd sidecar, then the .gz file, and only decompressing
+ * the .gz file for clients that don't accept gzip.  Frames stored raw (--frameParts singlepart) are served with
+ * the multipart/related framing added on the fly, as are frames packed into a frames.pack container, which are
+ * served from their byte range of it.
+ */
 public class StaticWadoHttp {
+  private static final Logger log = LoggerFactory.getLogger(StaticWadoHttp.class);
+  private static final Pattern FRAME_PATH = Pattern.compile(".*/frames/\\d+");
+  private static final byte[] BOUNDARY = ("--" + ExtractImageFrames.SEPARATOR).getBytes(StandardCharsets.US_ASCII);
+  private static final int MAX_CACHED_SERIES = 256;
+  private static final int MAX_CACHED_PACKS = 256;
+  private static final Pattern PACK_ENTRY = Pattern.compile(
+      "\\{\"frame\":(\\d+),\"offset\":(\\d+),\"length\":(\\d+),\"contentType\":\"((?:[^\"\\\\]|\\\\.)*)\"}");
+
+  private final File root;
+  private final int port;
+  private final Metrics metrics = new Metrics();
+  /** Transfer syntax UIDs by SOP instance UID, from the instances query of recently served series */
+  private final Map<String, Map<String, String>> transferSyntaxes = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Map<String, String>> eldest) {
+      return size() > MAX_CACHED_SERIES;
+    }
+  };
+  /** Parsed frames.pack.json indexes of recently served frame packs */
+  private final Map<String, PackIndex> packIndexes = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, PackIndex> eldest) {
+      return size() > MAX_CACHED_PACKS;
+    }
+  };
+  private HttpServer server;
+
   public StaticWadoHttp(CommandLine cl) {
+    root = new File(cl.getOptionValue("dicomweb", System.getProperty("user.home") + "/dicomweb"));
+    port = Integer.parseInt(cl.getOptionValue("httpPort", "5000"));
   }
 
   public static void addOptions(Options opts) {
     opts.addOption(new Option("p","httpPort",true,"Define the http port"));
   }
 
-  public void start() {
+  public void start() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/", this::handle);
+    server.createContext("/metrics", exchange -> serveMetrics(exchange, metrics));
+    server.start();
+    log.warn("Serving {} on port {}", root, port);
+  }
+
+  /** Starts a server for just the Prometheus metrics at /metrics, for the other processes */
+  public static HttpServer startMetricsServer(int port, Metrics metrics) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext("/metrics", exchange -> serveMetrics(exchange, metrics));
+    server.start();
+    log.warn("Serving metrics on port {}", port);
+    return server;
+  }
+
+  static void serveMetrics(HttpExchange exchange, Metrics metrics) throws IOException {
+    try {
+      byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", Metrics.PROMETHEUS_CONTENT_TYPE);
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(body);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /** A stored file to serve, and the content encoding it is stored in (null for identity) */
+  static class Served {
+    final File file;
+    final String encoding;
+
+    Served(File file, String encoding) {
+      this.file = file;
+      this.encoding = encoding;
+    }
+  }
+
+  /**
+   * Chooses the stored file for the request path, by the encodings the client accepts.  Directories are served
+   * from their index.json.  Returns null if there isn't any version of the file.
+   */
+  static Served negotiate(File root, String path, String acceptEncoding) {
+    File base = new File(root, path);
+    if (new File(base, "index.json.gz").exists() || new File(base, "index.json").exists()) {
+      base = new File(base, "index.json");
+    }
+    for (var sidecar : Compression.Sidecar.values()) {
+      File file = new File(base.getPath() + sidecar.extension);
+      if (accepts(acceptEncoding, sidecar.encoding) && file.isFile()) return new Served(file, sidecar.encoding);
+    }
+    File gzip = new File(base.getPath() + ".gz");
+    if (gzip.isFile()) return new Served(gzip, accepts(acceptEncoding, "gzip") ? "gzip" : null);
+    return base.isFile() ? new Served(base, null) : null;
+  }
+
+  /** Returns true if the Accept-Encoding header includes encoding, without q=0 */
+  static boolean accepts(String acceptEncoding, String encoding) {
+    if (acceptEncoding == null) return false;
+    for (String item : acceptEncoding.split(",")) {
+      String[] parts = item.split(";");
+      String name = parts[0].trim();
+      if (!name.equalsIgnoreCase(encoding) && !name.equals("*")) continue;
+      boolean excluded = parts.length > 1 && parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?");
+      return !excluded;
+    }
+    return false;
+  }
+
+  static String getContentType(File file) {
+    String name = file.getName();
+    if (name.startsWith("index.json") || name.startsWith("metadata")) return "application/dicom+json";
+    if (name.startsWith("thumbnail")) return "image/jpeg";
+    return "application/octet-stream";
+  }
+
+  /**
+   * Opens a stored frame, decompressed, if it is stored raw rather than multipart, leaving the stream marked at
+   * the start of the frame.  Returns null for multipart frames, which start with the full multipart boundary.
+   */
+  static BufferedInputStream openRawFrame(Served served) throws IOException {
+    InputStream fis = new FileInputStream(served.file);
+    var is = new BufferedInputStream(served.file.getName().endsWith(".gz") ? new GZIPInputStream(fis, 65536) : fis, 65536);
+    is.mark(BOUNDARY.length);
+    boolean multipart = Arrays.equals(BOUNDARY, is.readNBytes(BOUNDARY.length));
+    is.reset();
+    if (!multipart) return is;
+    is.close();
+    return null;
+  }
+
+  /**
+   * Returns the content type of a raw frame at .../series/X/instances/I/frames/N, with the transfer syntax
+   * parameter, from the AvailableTransferSyntaxUID of the instance in the series instances query.
+   */
+  String frameContentType(String path) {
+    int instances = path.lastIndexOf("/instances/");
+    int sopEnd = instances < 0 ? -1 : path.indexOf('/', instances + "/instances/".length());
+    if (sopEnd < 0) return ExtractImageFrames.OCTET_STREAM;
+    int instancesEnd = instances + "/instances".length();
+    String instancesPath = path.substring(0, instancesEnd);
+    String sopUid = path.substring(instancesEnd + 1, sopEnd);
+    Served index = negotiate(root, instancesPath, "gzip");
+    if (index == null) return ExtractImageFrames.OCTET_STREAM;
+    String key = index.file.getPath() + ":" + index.file.lastModified();
+    Map<String, String> tsuids;
+    synchronized (transferSyntaxes) {
+      tsuids = transferSyntaxes.get(key);
+    }
+    if (tsuids == null) {
+      tsuids = readTransferSyntaxes(index.file);
+      synchronized (transferSyntaxes) {
+        transferSyntaxes.put(key, tsuids);
+      }
+    }
+    String tsuid = tsuids.get(sopUid);
+    if (tsuid == null) return ExtractImageFrames.OCTET_STREAM;
+    return ExtractImageFrames.CONTENT_TYPES.getOrDefault(tsuid, ExtractImageFrames.OCTET_STREAM) +
+        ";transfer-syntax=" + tsuid;
+  }
+
+  /** Reads the SOP instance UID to transfer syntax UID map from an instances query file */
+  static Map<String, String> readTransferSyntaxes(File file) {
+    Map<String, String> ret = new HashMap<>();
+    try (InputStream fis = new FileInputStream(file);
+         InputStream is = file.getName().endsWith(".gz") ? new GZIPInputStream(fis, 65536) : fis) {
+      for (Attributes attr : JsonAccess.read(is)) {
+        String tsuid = attr.getString(Tag.AvailableTransferSyntaxUID);
+        if (tsuid != null) ret.put(attr.getString(Tag.SOPInstanceUID), tsuid);
+      }
+    } catch (IOException | RuntimeException e) {
+      log.warn("Unable to read transfer syntaxes from {}", file, e);
+    }
+    return ret;
+  }
+
+  /** A frame stored in the frames.pack container of its instance, see FramePack */
+  static class PackedFrame {
+    final File pack;
+    final long offset;
+    final long length;
+    final String contentType;
+
+    PackedFrame(File pack, long offset, long length, String contentType) {
+      this.pack = pack;
+      this.offset = offset;
+      this.length = length;
+      this.contentType = contentType;
+    }
+  }
+
+  /** The frame offsets, lengths and content types of a frames.pack.json index, by frame number - 1 */
+  static class PackIndex {
+    final long[] offsets;
+    final long[] lengths;
+    final String[] contentTypes;
+
+    PackIndex(int frames) {
+      offsets = new long[frames];
+      lengths = new long[frames];
+      contentTypes = new String[frames];
+    }
+  }
+
+  /** Parses a frames.pack.json index, see FramePack */
+  static PackIndex readPackIndex(File index) throws IOException {
+    Matcher matcher = PACK_ENTRY.matcher(Files.readString(index.toPath()));
+    List<String[]> entries = new ArrayList<>();
+    int frames = 0;
+    while (matcher.find()) {
+      entries.add(new String[]{matcher.group(1), matcher.group(2), matcher.group(3), matcher.group(4)});
+      frames = Math.max(frames, Integer.parseInt(matcher.group(1)));
+    }
+    PackIndex ret = new PackIndex(frames);
+    for (String[] entry : entries) {
+      int frame = Integer.parseInt(entry[0]) - 1;
+      if (frame < 0) continue;
+      ret.offsets[frame] = Long.parseLong(entry[1]);
+      ret.lengths[frame] = Long.parseLong(entry[2]);
+      ret.contentTypes[frame] = entry[3].replace("\\\"", "\"");
+    }
+    return ret;
+  }
+
+  /**
+   * Finds the frame for a .../frames/N path in the frames.pack container of the instance, from the
+   * frames.pack.json index, which is parsed once and cached while it is unmodified.  Returns null if the
+   * instance isn't packed or doesn't have that frame.
+   */
+  PackedFrame findPackedFrame(String path) throws IOException {
+    int slash = path.lastIndexOf('/');
+    String frames = path.substring(0, slash);
+    File pack = new File(root, frames + FramePack.EXTENSION);
+    File index = new File(root, frames + FramePack.INDEX_EXTENSION);
+    if (!pack.isFile() || !index.isFile()) return null;
+    int frame;
+    try {
+      frame = Integer.parseInt(path.substring(slash + 1)) - 1;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    String key = index.getPath() + ":" + index.lastModified();
+    PackIndex packIndex;
+    synchronized (packIndexes) {
+      packIndex = packIndexes.get(key);
+    }
+    if (packIndex == null) {
+      packIndex = readPackIndex(index);
+      synchronized (packIndexes) {
+        packIndexes.put(key, packIndex);
+      }
+    }
+    if (frame < 0 || frame >= packIndex.contentTypes.length || packIndex.contentTypes[frame] == null) return null;
+    return new PackedFrame(pack, packIndex.offsets[frame], packIndex.lengths[frame], packIndex.contentTypes[frame]);
+  }
+
+  /** Writes the body of a single frame part */
+  interface FrameBody {
+    void writeTo(OutputStream os) throws IOException;
+  }
+
+  /** Serves a frame as a single part multipart/related response of the given part content type */
+  static void serveFrame(HttpExchange exchange, String type, FrameBody body) throws IOException {
+    String separator = ExtractImageFrames.SEPARATOR;
+    var responseHeaders = exchange.getResponseHeaders();
+    String base = ExtractImageFrames.baseContentType(type);
+    String parameters = type.substring(type.indexOf(';') == -1 ? type.length() : type.indexOf(';'));
+    responseHeaders.set("Content-Type",
+        "multipart/related; type=\"" + base + "\"" + parameters.replace(";", "; ") + "; boundary=" + separator);
+    responseHeaders.set("Access-Control-Allow-Origin", "*");
+    boolean head = "HEAD".equals(exchange.getRequestMethod());
+    exchange.sendResponseHeaders(200, head ? -1 : 0);
+    if (head) return;
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(("--" + separator + "\r\nContent-Type: " + type + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+      body.writeTo(os);
+      os.write(("\r\n--" + separator + "--").getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  /** Serves a raw frame as a single part multipart/related response */
+  void serveRawFrame(HttpExchange exchange, String path, BufferedInputStream is) throws IOException {
+    try (is) {
+      serveFrame(exchange, frameContentType(path), is::transferTo);
+    }
+  }
+
+  /** Serves a packed frame from its byte range of the pack */
+  void servePackedFrame(HttpExchange exchange, PackedFrame frame) throws IOException {
+    try (FileChannel channel = FileChannel.open(frame.pack.toPath())) {
+      serveFrame(exchange, frame.contentType, os -> {
+        WritableByteChannel out = Channels.newChannel(os);
+        long position = frame.offset;
+        long end = frame.offset + frame.length;
+        while (position < end) {
+          long transferred = channel.transferTo(position, end - position, out);
+          if (transferred <= 0) throw new IOException("Frame pack " + frame.pack + " is shorter than its index");
+          position += transferred;
+        }
+      });
+    }
+  }
+
+  void handle(HttpExchange exchange) throws IOException {
+    long start = Metrics.start();
+    try {
+      // Normalize the already parsed request URI, as its decoded path may hold characters URI.create rejects
+      String path = exchange.getRequestURI().normalize().getPath();
+      if (path == null || path.contains("..")) {
+        exchange.sendResponseHeaders(400, -1);
+        return;
+      }
+      var headers = exchange.getRequestHeaders();
+      Served served = negotiate(root, path, headers.getFirst("Accept-Encoding"));
+      if (served == null && FRAME_PATH.matcher(path).matches()) {
+        PackedFrame packed = findPackedFrame(path);
+        if (packed != null) {
+          servePackedFrame(exchange, packed);
+          return;
+        }
+      }
+      if (served == null) {
+        log.debug("Not found {}", path);
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+      if (FRAME_PATH.matcher(path).matches()) {
+        BufferedInputStream raw = openRawFrame(served);
+        if (raw != null) {
+          serveRawFrame(exchange, path, raw);
+          return;
+        }
+      }
+      var responseHeaders = exchange.getResponseHeaders();
+      responseHeaders.set("Content-Type", getContentType(served.file));
+      responseHeaders.set("Vary", "Accept-Encoding");
+      responseHeaders.set("Access-Control-Allow-Origin", "*");
+      boolean decompress = served.encoding == null && served.file.getName().endsWith(".gz");
+      if (served.encoding != null) {
+        responseHeaders.set("Content-Encoding", served.encoding);
+      }
+      boolean head = "HEAD".equals(exchange.getRequestMethod());
+      exchange.sendResponseHeaders(200, head ? -1 : (decompress ? 0 : served.file.length()));
+      if (head) return;
+      try (InputStream is = decompress ? new GZIPInputStream(new FileInputStream(served.file), 65536) :
+          new FileInputStream(served.file); OutputStream os = exchange.getResponseBody()) {
+        is.transferTo(os);
+      }
+    } catch (IOException e) {
+      log.warn("Unable to serve {}", exchange.getRequestURI(), e);
+    } finally {
+      exchange.close();
+      metrics.record(Metrics.Stage.SERVE, start);
+    }
+  }
 
+  public static void main(String... args) throws Exception {
+    Options opts = new Options();
+    StaticWado.addStudyManagerArgs(opts);
+    addOptions(opts);
+    CommandLine cl = StaticWado.parseCommandLine(opts, args);
+    new StaticWadoHttp(cl).start();
   }
 }
@@ -7,24 +7,42 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Generate various outputs from the
  * and this will write the specified sop instances to the local directory (or that specified in -out)
+ * Instances are written concurrently on a worker pool, and multiple matching studies are exported concurrently.
  */
-public class StaticWadoOut {
+public class StaticWadoOut implements AutoCloseable {
   private static final Logger log = LoggerFactory.getLogger(StaticWadoOut.class);
 
   private static StudyManager studyManager;
   private final StudyManager callbacks;
   private File outDir;
+  private ZipOutputStream zip;
+  private final AtomicInteger failures = new AtomicInteger();
+  private ExecutorService instanceExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+  private ExecutorService studyExecutor = Executors.newFixedThreadPool(2);
 
   public static void addOptions(Options opts) {
     opts.addOption("o", "output", true, "output part 10 directory");
     opts.addOption("s", "studyUid", true, "study instance UID");
+    opts.addOption("j", "threads", true, "number of instances to write concurrently (default number of processors)");
+    opts.addOption(null, "studyThreads", true, "number of studies to export concurrently (default 2)");
+    opts.addOption("z", "zip", true, "write a single ZIP file of part 10 instances, or - for stdout");
   }
 
   public StaticWadoOut(StudyManager manager) {
@@ -40,21 +58,105 @@ public class StaticWadoOut {
     outDir.mkdirs();
   }
 
+  /** Writes all the instances into a single zip stream, named studyUid/sopUid.dcm, instead of the output dir */
+  public void setZip(OutputStream os) {
+    this.zip = new ZipOutputStream(os);
+    // Deflated at level 0 rather than stored: the frames are mostly compressed already, and unlike stored entries
+    // the size and CRC go in a data descriptor after the data, so entries are streamed rather than buffered
+    zip.setMethod(ZipOutputStream.DEFLATED);
+    zip.setLevel(Deflater.NO_COMPRESSION);
+  }
+
+  /** Returns the number of instances that failed to be written */
+  public int getFailures() {
+    return failures.get();
+  }
+
+  public void setThreads(int threads) {
+    instanceExecutor.shutdown();
+    instanceExecutor = Executors.newFixedThreadPool(threads);
+  }
+
+  public void setStudyThreads(int threads) {
+    studyExecutor.shutdown();
+    studyExecutor = Executors.newFixedThreadPool(threads);
+  }
+
+  public ExecutorService getStudyExecutor() {
+    return studyExecutor;
+  }
+
   public void accept(SopId sopId, Attributes attr) {
     log.warn("Result {}\n{}", sopId, attr);
-    if( outDir !=null ) {
-      var studyData = sopId.getStudyData();
-      var studyFile = new File(outDir,studyData.getStudyUid());
+    if( outDir==null && zip==null ) return;
+    var studyData = sopId.getStudyData();
+    var studyUid = studyData.getStudyUid();
+    String studyDir;
+    if( zip==null ) {
+      var studyFile = new File(outDir,studyUid);
       studyFile.mkdirs();
-      var studyDir = studyFile.getAbsolutePath();
-      studyData.forEachInstance( (seriesUid, sopUid) -> {
+      studyDir = studyFile.getAbsolutePath();
+    } else {
+      studyDir = null;
+    }
+    var futures = new ArrayList<CompletableFuture<Void>>();
+    studyData.forEachInstance( (seriesUid, sopUid) -> {
+      futures.add(CompletableFuture.runAsync(() -> {
         log.warn("Series {} sop {}", seriesUid, sopUid);
-        try (OutputStream os = callbacks.fileHandler.openForWrite(studyDir,sopUid+".dcm",false,true)) {
-          studyData.writeDimse(sopUid,os,true);
-        }  catch(IOException e) {
-          log.warn("Caught exception", e);
+        try {
+          if( zip==null ) {
+            try (OutputStream os = callbacks.fileHandler.openForWrite(studyDir,sopUid+".dcm",false,true)) {
+              studyData.writeDimse(sopUid,os,true);
+            }
+          } else {
+            writeZipEntry(studyUid + "/" + sopUid + ".dcm", studyData, sopUid);
+          }
+        } catch(Exception e) {
+          // Counted rather than thrown, so the other instances are still written and the export fails at the end
+          failures.incrementAndGet();
+          log.warn("Unable to write {} of study {}", sopUid, studyUid, e);
         }
-      });
+      }, instanceExecutor));
+    });
+    CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+  }
+
+  /**
+   * Reconstructs the instance metadata on the calling thread, and then streams the instance into the zip, one
+   * entry at a time, so even very large instances aren't held in memory.
+   */
+  private void writeZipEntry(String name, StudyData studyData, String sopUid) throws IOException {
+    Attributes attr = studyData.getDimseAttributes(sopUid);
+    synchronized (zip) {
+      zip.putNextEntry(new ZipEntry(name));
+      StudyData.writeDimse(attr, new NonClosingOutputStream(zip), true);
+      zip.closeEntry();
+    }
+  }
+
+  /** Passes writes through to the zip stream, but leaves it open so the next entry can be written */
+  static class NonClosingOutputStream extends FilterOutputStream {
+    NonClosingOutputStream(OutputStream os) {
+      super(os);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    studyExecutor.shutdown();
+    instanceExecutor.shutdown();
+    if( zip!=null ) {
+      zip.close();
     }
   }
 
@@ -69,9 +171,22 @@ public class StaticWadoOut {
     log.warn("Query for studyUid {}", studyUid);
     var query = new HashMap<String,String>();
     query.put("StudyInstanceUID", studyUid);
-    var staticWadoOut = new StaticWadoOut(studyManager);
-    staticWadoOut.setOut(out);
-
-    studyManager.queryStudies(query, staticWadoOut::accept);
+    try (var staticWadoOut = new StaticWadoOut(studyManager)) {
+      staticWadoOut.setOut(out);
+      if( cl.hasOption("threads") ) {
+        staticWadoOut.setThreads(Integer.parseInt(cl.getOptionValue("threads")));
+      }
+      if( cl.hasOption("studyThreads") ) {
+        staticWadoOut.setStudyThreads(Integer.parseInt(cl.getOptionValue("studyThreads")));
+      }
+      String zipName = cl.getOptionValue("zip");
+      if( zipName!=null ) {
+        staticWadoOut.setZip("-".equals(zipName) ? System.out : new FileOutputStream(zipName));
+      }
+      studyManager.queryStudies(query, staticWadoOut::accept, staticWadoOut.getStudyExecutor());
+      if( staticWadoOut.getFailures()>0 ) {
+        throw new IOException(staticWadoOut.getFailures() + " instances could not be written");
+      }
+    }
   }
 }
@@ -5,12 +5,19 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.Attributes;
@@ -20,32 +27,86 @@ import org.dcm4che3.imageio.plugins.dcm.DicomImageReader;
 import org.dcm4che3.imageio.plugins.dcm.DicomMetaData;
 import org.dcm4che3.io.DicomInputStream;
 import org.dcm4che3.net.*;
+import org.dcm4che3.net.pdu.AAssociateRQ;
 import org.dcm4che3.net.pdu.PresentationContext;
 import org.dcm4che3.net.service.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.imageio.ImageIO;
 
 public class StaticWadoScp {
   private static final Logger log = LoggerFactory.getLogger(StaticWadoScp.class);
 
   private final StudyManager studyManager;
 
-  public StaticWadoScp(CommandLine cl, StudyManager studyManager) {
+  // Remote connections for C-MOVE destinations, by AE title
+  private final Map<String, Connection> moveDestinations = new HashMap<>();
+  private final ExecutorService retrieveExecutor;
+  private final int readAhead;
+  private final long maxBuffered;
+  private final int metricsPort;
+  private ExecutorService executorService;
+  private ScheduledExecutorService scheduledExecutorService;
+
+  public StaticWadoScp(CommandLine cl, StudyManager studyManager) throws IOException {
     log.warn("Creating StaticWadoScp");
     this.studyManager = studyManager;
     device.setDimseRQHandler(createServiceRegistry());
     device.addConnection(conn);
     device.addApplicationEntity(ae);
     ae.setAssociationAcceptor(true);
+    ae.setAssociationInitiator(true);
     ae.addConnection(conn);
     conn.setPort(Integer.parseInt(cl.getOptionValue("scpPort","11112")));
+    int maxOps = Integer.parseInt(cl.getOptionValue("maxOps", "8"));
+    conn.setMaxOpsInvoked(maxOps);
+    conn.setMaxOpsPerformed(maxOps);
+    readAhead = Integer.parseInt(cl.getOptionValue("readAhead", "4"));
+    maxBuffered = Long.parseLong(cl.getOptionValue("maxBuffered", Long.toString(64L*1024*1024)));
+    // Each retrieve only reads ahead readAhead instances, so the shared pool is sized for the machine, not the depth
+    int retrieveThreads = Integer.parseInt(cl.getOptionValue("retrieveThreads",
+        Integer.toString(Runtime.getRuntime().availableProcessors())));
+    retrieveExecutor = Executors.newFixedThreadPool(Math.max(1, retrieveThreads), runnable -> {
+      Thread thread = new Thread(runnable, "retrieve");
+      thread.setDaemon(true);
+      return thread;
+    });
+    metricsPort = Integer.parseInt(cl.getOptionValue("metricsPort", "0"));
+    String destinations = cl.getOptionValue("moveDestinations");
+    if( destinations!=null ) {
+      readMoveDestinations(destinations);
+    }
   }
 
   public static void addOptions(Options opts) {
     opts.addOption(new Option("p", "scpPort", true, "Define the http port"));
     opts.addOption(new Option("ae", "aeName", true, "Sets the listen AE name"));
+    opts.addOption(new Option(null, "moveDestinations", true,
+        "Properties file of C-MOVE destinations, as AETITLE=host:port"));
+    opts.addOption(new Option(null, "maxOps", true,
+        "Maximum number of asynchronous operations per association, 0 is unlimited (default 8)"));
+    opts.addOption(new Option(null, "readAhead", true,
+        "Number of instances each retrieve reconstructs ahead of the one being sent (default 4)"));
+    opts.addOption(new Option(null, "retrieveThreads", true,
+        "Number of threads reconstructing instances for all retrieves (default number of processors)"));
+    opts.addOption(new Option(null, "maxBuffered", true,
+        "Instances with more bulkdata than this are streamed from the frame files rather than read ahead"));
+    opts.addOption(new Option(null, "metricsPort", true, "Serve Prometheus metrics on this http port at /metrics (default off)"));
+  }
+
+  private void readMoveDestinations(String name) throws IOException {
+    Properties props = new Properties();
+    try (InputStream is = new FileInputStream(name)) {
+      props.load(is);
+    }
+    props.forEach((aet, value) -> {
+      String hostPort = value.toString();
+      int colon = hostPort.lastIndexOf(':');
+      Connection remote = new Connection(null, hostPort.substring(0, colon),
+          Integer.parseInt(hostPort.substring(colon + 1)));
+      moveDestinations.put(aet.toString(), remote);
+      log.warn("Move destination {} at {}", aet, hostPort);
+    });
   }
 
   private final Device device = new Device("StaticWadoSCP");
@@ -58,13 +119,87 @@ public class StaticWadoScp {
   };
 
   private final BasicCGetSCP cgetSCP = new BasicCGetSCP(UID.StudyRootQueryRetrieveInformationModelGet) {
-
+    @Override
+    protected RetrieveTask calculateMatches(Association as, PresentationContext pc, Attributes rq, Attributes keys)
+        throws DicomServiceException {
+      var matches = findMatches(keys);
+      if( matches.isEmpty() ) return null;
+      return new StaticRetrieveTask(Dimse.C_GET_RQ, as, pc, rq, matches, as,
+          retrieveExecutor, readAhead, maxBuffered);
+    }
   };
 
   private final BasicCMoveSCP cmoveSCP = new BasicCMoveSCP(UID.StudyRootQueryRetrieveInformationModelMove) {
-
+    @Override
+    protected RetrieveTask calculateMatches(Association as, PresentationContext pc, Attributes rq, Attributes keys)
+        throws DicomServiceException {
+      String moveDest = rq.getString(Tag.MoveDestination);
+      Connection remote = moveDestinations.get(moveDest);
+      if( remote==null ) {
+        throw new DicomServiceException(Status.MoveDestinationUnknown, "Move Destination: " + moveDest + " unknown");
+      }
+      var matches = findMatches(keys);
+      if( matches.isEmpty() ) return null;
+      Association storeas;
+      try {
+        storeas = as.getApplicationEntity().connect(as.getConnection(), remote,
+            createStoreRQ(as.getLocalAET(), moveDest, matches));
+      } catch (Exception e) {
+        throw new DicomServiceException(Status.UnableToPerformSubOperations, e);
+      }
+      return new StaticRetrieveTask(Dimse.C_MOVE_RQ, as, pc, rq, matches, storeas,
+          retrieveExecutor, readAhead, maxBuffered);
+    }
   };
 
+  private static AAssociateRQ createStoreRQ(String callingAet, String calledAet, List<StaticRetrieveTask.StaticInstanceLocator> matches) {
+    AAssociateRQ aarq = new AAssociateRQ();
+    aarq.setCalledAET(calledAet);
+    aarq.setCallingAET(callingAet);
+    for(var match : matches) {
+      aarq.addPresentationContextFor(match.cuid, match.tsuid);
+      // Offer the native syntaxes too, so the frames can be decoded if the stored syntax is rejected
+      if( Part10Writer.isEncapsulated(match.tsuid) && !ExtractImageFrames.VIDEO_TSUIDS.contains(match.tsuid) ) {
+        for(String tsuid : StaticRetrieveTask.DECODED_TSUIDS) {
+          aarq.addPresentationContextFor(match.cuid, tsuid);
+        }
+      }
+    }
+    return aarq;
+  }
+
+  /**
+   * Finds the instances matching the study/series/sop instance UIDs in the keys, from the deduplicated data.
+   */
+  private List<StaticRetrieveTask.StaticInstanceLocator> findMatches(Attributes keys) throws DicomServiceException {
+    String[] studyUids = keys.getStrings(Tag.StudyInstanceUID);
+    if( studyUids==null || studyUids.length==0 ) {
+      throw new DicomServiceException(Status.IdentifierDoesNotMatchSOPClass, "Missing Study Instance UID");
+    }
+    String[] seriesUids = keys.getStrings(Tag.SeriesInstanceUID);
+    String[] sopUids = keys.getStrings(Tag.SOPInstanceUID);
+    List<StaticRetrieveTask.StaticInstanceLocator> ret = new ArrayList<>();
+    for(String studyUid : studyUids) {
+      if( studyUid.contains("..") || studyUid.contains("/") ) {
+        throw new DicomServiceException(Status.IdentifierDoesNotMatchSOPClass, "Illegal Study Instance UID "+studyUid);
+      }
+      StudyData studyData = new StudyData(studyUid, studyManager);
+      studyData.readDeduplicatedGroup();
+      studyData.readDeduplicatedInstances();
+      studyData.forEachInstance((seriesUid, sopUid) -> {
+        if( seriesUids!=null && seriesUids.length>0 && !Arrays.asList(seriesUids).contains(seriesUid) ) return;
+        if( sopUids!=null && sopUids.length>0 && !Arrays.asList(sopUids).contains(sopUid) ) return;
+        Attributes metadata = studyData.getMetadata(sopUid);
+        ret.add(new StaticRetrieveTask.StaticInstanceLocator(studyData,
+            metadata.getString(Tag.SOPClassUID),
+            sopUid,
+            metadata.getString(Tag.AvailableTransferSyntaxUID, UID.ImplicitVRLittleEndian)));
+      });
+    }
+    log.warn("Retrieve found {} matches", ret.size());
+    return ret;
+  }
+
   private final BasicCStoreSCP cstoreSCP = new BasicCStoreSCP("*") {
     private final Map<Association,StudyManager.StudyDataFactory> studyDataFactories = new HashMap<>();
 
@@ -90,7 +225,10 @@ public class StaticWadoScp {
       File tempDir = new File(studyManager.getDicomWebDir(),"temp/"+sopUid);
       try {
         tempDir.mkdirs();
+        long start = Metrics.start();
         Attributes attr = readDataset(data,tsuid, tempDir);
+        studyManager.metrics.record(Metrics.Stage.PARSE, start);
+        studyManager.tracer.record(attr, "read", start, sopUid);
         SopId id = factory.createSopId(attr);
         if( id.getStudyData().alreadyExists(id) ) {
           rsp.setInt(Tag.Status,VR.US, Status.DuplicateSOPinstance);
@@ -98,13 +236,16 @@ public class StaticWadoScp {
         }
         attr.setString(Tag.AvailableTransferSyntaxUID, VR.UI, tsuid);
         studyManager.studyStats.add("ReceiveInstance", 25, "Got SOP {} on association {}", attr.getString(Tag.SOPInstanceUID), as);
-        DicomImageReader reader = (DicomImageReader) ImageIO.getImageReadersByFormatName("DICOM").next();
+        DicomImageReader reader = DicomAccess.getDicomImageReader();
         Attributes fmi = new Attributes();
         fmi.setString(Tag.TransferSyntaxUID,VR.UI, tsuid);
         reader.setInput(new DicomMetaData(fmi,attr));
         id.setDicomImageReader(reader);
-        studyManager.importDicom(id,attr);
-        reader.close();
+        try {
+          studyManager.importDicom(id,attr);
+        } finally {
+          reader.reset();
+        }
         FileHandler.rmdir(tempDir);
       } catch (Exception e) {
         log.warn("Caught", e);
@@ -125,6 +266,8 @@ public class StaticWadoScp {
     DicomServiceRegistry serviceRegistry = new DicomServiceRegistry();
     serviceRegistry.addDicomService(new BasicCEchoSCP());
     serviceRegistry.addDicomService(cstoreSCP);
+    serviceRegistry.addDicomService(cgetSCP);
+    serviceRegistry.addDicomService(cmoveSCP);
     return serviceRegistry;
   }
 
@@ -132,12 +275,14 @@ public class StaticWadoScp {
     try {
       log.warn("Starting SCP service {}@{}", ae.getAETitle(), conn.getPort());
       configureTransferCapability(ae);
-      ExecutorService executorService = Executors.newCachedThreadPool();
-      ScheduledExecutorService scheduledExecutorService =
-          Executors.newScheduledThreadPool(16);
+      executorService = Executors.newCachedThreadPool();
+      scheduledExecutorService = Executors.newScheduledThreadPool(16);
       device.setScheduledExecutor(scheduledExecutorService);
       device.setExecutor(executorService);
       device.bindConnections();
+      if( metricsPort>0 ) {
+        StaticWadoHttp.startMetricsServer(metricsPort, studyManager.metrics);
+      }
     } catch (Exception e) {
       log.error("Caught", e);
       System.exit(2);
@@ -145,12 +290,29 @@ public class StaticWadoScp {
   }
 
 
+  /**
+   * Stops listening and waits for the open associations, including the study completion done when they close.
+   */
+  public void stop() throws InterruptedException {
+    device.unbindConnections();
+    executorService.shutdown();
+    executorService.awaitTermination(1, TimeUnit.HOURS);
+    scheduledExecutorService.shutdownNow();
+    retrieveExecutor.shutdown();
+  }
+
   protected static void configureTransferCapability(ApplicationEntity ae) throws IOException {
     ae.addTransferCapability(
         new TransferCapability(null,
             "*",
             TransferCapability.Role.SCP,
             "*"));
+    // Allows the storage sub-operations of C-GET to be sent back on the requesting association
+    ae.addTransferCapability(
+        new TransferCapability(null,
+            "*",
+            TransferCapability.Role.SCU,
+            "*"));
   }
 
   public static void main(String... args) throws Exception {
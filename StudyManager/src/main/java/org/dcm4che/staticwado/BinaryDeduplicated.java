@@ -0,0 +1,137 @@
+package org.dcm4che.staticwado;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A binary sidecar of a deduplicated group file, written next to it as hash.bin.  The standard JSON group is still
+ * written for other readers; this is only a faster way to load the same data.
+ * The layout is a header with the group hash and info references, a dictionary of series UIDs, an index with the
+ * hash, SOP instance UID, series number and data length of every instance, followed by the data of each instance
+ * as deflated DICOM JSON.  Loading the whole group doesn't parse any instance JSON.
+ */
+public class BinaryDeduplicated {
+    public static final String EXTENSION = ".bin";
+
+    private static final int MAGIC = 0x53574444;
+    private static final int VERSION = 1;
+
+    /** Receives each instance from the sidecar, in the serialized DeduplicatedInstances form */
+    public interface InstanceConsumer {
+        void accept(String hash, String sopUid, String seriesUid, byte[] serialized);
+    }
+
+    /** Writes the instances at the given positions as a sidecar of the group with the given hash and references */
+    public static void write(OutputStream os, String groupHash, Collection<String> refs,
+                             DeduplicatedInstances instances, int[] positions) throws IOException {
+        var dos = new DataOutputStream(new BufferedOutputStream(os, 64 * 1024));
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeUTF(groupHash);
+        dos.writeInt(refs.size());
+        for (String ref : refs) dos.writeUTF(ref);
+
+        Map<String, Integer> seriesNumbers = new HashMap<>();
+        var seriesUids = new String[positions.length];
+        int seriesCount = 0;
+        for (int position : positions) {
+            String seriesUid = instances.getSeriesUid(position);
+            if (seriesUid != null && !seriesNumbers.containsKey(seriesUid)) {
+                seriesUids[seriesCount] = seriesUid;
+                seriesNumbers.put(seriesUid, seriesCount++);
+            }
+        }
+        dos.writeInt(seriesCount);
+        for (int i = 0; i < seriesCount; i++) dos.writeUTF(seriesUids[i]);
+
+        dos.writeInt(positions.length);
+        for (int position : positions) {
+            dos.writeUTF(instances.getHash(position));
+            writeNullable(dos, instances.getSopUid(position));
+            dos.writeInt(seriesNumbers.getOrDefault(instances.getSeriesUid(position), -1));
+            dos.writeInt(instances.getSerialized(position).length);
+        }
+        for (int position : positions) {
+            dos.write(instances.getSerialized(position));
+        }
+        dos.flush();
+    }
+
+    /**
+     * Reads the sidecar, calling refs with each info reference and consumer with each instance.
+     *
+     * @return the group hash
+     */
+    public static String read(InputStream is, Consumer<String> refs, InstanceConsumer consumer) throws IOException {
+        var dis = new DataInputStream(new BufferedInputStream(is, 64 * 1024));
+        Index index = readIndex(dis);
+        index.refs.forEach(refs);
+        for (int i = 0; i < index.hashes.length; i++) {
+            byte[] serialized = new byte[index.lengths[i]];
+            dis.readFully(serialized);
+            consumer.accept(index.hashes[i], index.sopUids[i], index.getSeriesUid(i), serialized);
+        }
+        return index.groupHash;
+    }
+
+    private static Index readIndex(DataInputStream dis) throws IOException {
+        if (dis.readInt() != MAGIC) throw new IOException("Not a binary deduplicated file");
+        int version = dis.readInt();
+        if (version != VERSION) throw new IOException("Unsupported binary deduplicated version " + version);
+        var index = new Index();
+        index.groupHash = dis.readUTF();
+        int refCount = dis.readInt();
+        index.refs = new ArrayList<>(refCount);
+        for (int i = 0; i < refCount; i++) index.refs.add(dis.readUTF());
+        index.seriesUids = new String[dis.readInt()];
+        for (int i = 0; i < index.seriesUids.length; i++) index.seriesUids[i] = dis.readUTF();
+        int count = dis.readInt();
+        index.hashes = new String[count];
+        index.sopUids = new String[count];
+        index.series = new int[count];
+        index.lengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            index.hashes[i] = dis.readUTF();
+            index.sopUids[i] = readNullable(dis);
+            index.series[i] = dis.readInt();
+            index.lengths[i] = dis.readInt();
+            if (index.lengths[i] < 0) throw new EOFException("Invalid instance length");
+        }
+        return index;
+    }
+
+    private static void writeNullable(DataOutputStream dos, String value) throws IOException {
+        dos.writeBoolean(value != null);
+        if (value != null) dos.writeUTF(value);
+    }
+
+    private static String readNullable(DataInputStream dis) throws IOException {
+        return dis.readBoolean() ? dis.readUTF() : null;
+    }
+
+    private static class Index {
+        String groupHash;
+        List<String> refs;
+        String[] seriesUids;
+        String[] hashes;
+        String[] sopUids;
+        int[] series;
+        int[] lengths;
+
+        String getSeriesUid(int i) {
+            return series[i] < 0 ? null : seriesUids[series[i]];
+        }
+    }
+}
@@ -6,6 +6,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.GZIPInputStream;
@@ -22,6 +28,8 @@ public class BulkDataReader extends BulkData {
   private final List<Long> offsets = new ArrayList<>();
   private final List<Long> lengths = new ArrayList<>();
   private final String dest;
+  // Whether dest is a directory of frame files, checked on the first frame name lookup
+  private Boolean frameDirectory;
 
   public BulkDataReader(FileHandler fileHandler, String studiesDir, String dest) {
     super(dest,0, -1, false);
@@ -63,6 +71,82 @@ public class BulkDataReader extends BulkData {
     return new GZIPInputStream(new FileInputStream(new File(dir,dest+".gz")));
   }
 
+  /** Returns the number of frames (or fragments) referenced by this reader */
+  public int getFrameCount() {
+    return lengths.size();
+  }
+
+  public long getFrameLength(int idx) {
+    return lengths.get(idx);
+  }
+
+  /**
+   * Returns the name of the file containing frame idx.  Frame directories contain one file per frame, while
+   * single part items such as video are a single file.
+   */
+  public String getFrameName(int idx) {
+    return isFrameDirectory() ? (dest + "/" + (1 + idx)) : dest;
+  }
+
+  private boolean isFrameDirectory() {
+    if (frameDirectory == null) {
+      frameDirectory = new File(dir, dest).isDirectory();
+    }
+    return frameDirectory;
+  }
+
+  /**
+   * Copies frame idx to the channel, skipping the multipart header and trailer by the recorded offset and length.
+   * Plain files are copied using transferTo, so the data isn't copied through user space when the channel is a file,
+   * while gzipped frames are decompressed.
+   */
+  public long copyFrame(int idx, WritableByteChannel channel) throws IOException {
+    var name = getFrameName(idx);
+    long offset = offsets.get(idx);
+    long length = lengths.get(idx);
+    if (length < 0) throw new IOException("Unknown length for " + name);
+    var file = new File(dir, name);
+    if (file.exists()) {
+      try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+        long position = offset;
+        long end = offset + length;
+        while (position < end) {
+          long count = fc.transferTo(position, end - position, channel);
+          if (count <= 0) throw new EOFException("File " + file + " is shorter than " + end);
+          position += count;
+        }
+      }
+      return length;
+    }
+    try (InputStream is = new GZIPInputStream(new FileInputStream(new File(dir, name + ".gz")), 65536)) {
+      skipFully(is, offset);
+      ReadableByteChannel rc = Channels.newChannel(is);
+      ByteBuffer buffer = ByteBuffer.allocate(65536);
+      long remaining = length;
+      while (remaining > 0) {
+        buffer.clear();
+        buffer.limit((int) Math.min(remaining, buffer.capacity()));
+        int read = rc.read(buffer);
+        if (read < 0) throw new EOFException("File " + name + ".gz is shorter than " + (offset + length));
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        remaining -= read;
+      }
+    }
+    return length;
+  }
+
+  public static void skipFully(InputStream is, long n) throws IOException {
+    while (n > 0) {
+      long skipped = is.skip(n);
+      if (skipped <= 0) {
+        if (is.read() == -1) throw new EOFException();
+        skipped = 1;
+      }
+      n -= skipped;
+    }
+  }
+
   public static List<Long> extractLongs(String uri, String param) {
     return parseLongList(extractParam(uri,param));
   }
@@ -106,7 +190,7 @@ public class BulkDataReader extends BulkData {
   public BulkDataReader generateSubBulkData(int idx) {
     var length = lengths.size()>idx ? lengths.get(idx) : -1;
     var offset = offsets.size()>idx ? offsets.get(idx) : 0;
-    var ret = new BulkDataReader(handler,dir,dest+"/"+(1+idx));
+    var ret = new BulkDataReader(handler,dir,getFrameName(idx));
     ret.offsets.add(offset);
     ret.lengths.add(length);
     // Call the setters so that the values have the correct values up front
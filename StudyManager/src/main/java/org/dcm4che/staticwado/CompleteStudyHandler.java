@@ -43,15 +43,22 @@ public class CompleteStudyHandler {
             log.warn("Data is null, assuming no study written");
             return;
         }
+        long start = Metrics.start();
         if( callbacks.isDeduplicateGroup() ) {
             data.writeDeduplicatedGroup(callbacks.getDeduplicatedDir(data.getStudyUid()),
                 (hashValue) -> hashValue, false);
+            callbacks.tracer.record(data.getStudyUid(), "groupWrite", start, null);
         }
         if( callbacks.isStudyMetadata() ) {
+            long metadataStart = Metrics.start();
             Attributes studyQuery = data.writeStudyMetadata();
+            callbacks.tracer.record(data.getStudyUid(), "metadataWrite", metadataStart, null);
             callbacks.studyConsumer.accept(data.getStudyUid(), studyQuery);
         }
         callbacks.studyStats.summarize();
+        callbacks.extractCache.logStats();
+        callbacks.tracer.record(data.getStudyUid(), "completeStudy", start, data.size());
+        callbacks.tracer.complete(data.getStudyUid());
     }
 
     /** Called to create a new StudyData item - reads stuff in, as needed */
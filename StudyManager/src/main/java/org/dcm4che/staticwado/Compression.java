@@ -0,0 +1,404 @@
+package org.dcm4che.staticwado;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Configures the gzip compression of the output files.  Each class of output has its own compression level,
+ * so that transient files can be written quickly while served files are compressed well.  Deflaters are pooled
+ * and reused rather than allocated per file, and large buffers are used on both sides of the deflater.
+ * Series metadata can be compressed in parallel blocks (as pigz does), with each block primed with the end of the
+ * previous block as a dictionary, so the result is still a single normal gzip stream.
+ * The served files can also get pre-compressed sidecars in a denser encoding (zstd), next to the .gz file.
+ */
+public class Compression {
+    private static final Logger log = LoggerFactory.getLogger(Compression.class);
+
+    /** The type of output, used to choose the compression settings */
+    public enum OutputClass {
+        /** Single instance deduplicated files, which are transient */
+        INSTANCES,
+        /** Deduplicated group files */
+        DEDUPLICATED,
+        /** Series metadata files */
+        METADATA,
+        /** Query files - study, series and instance index files */
+        QUERY,
+        /** Bulkdata, frames and rendered data */
+        BULKDATA
+    }
+
+    /** Denser encodings written as pre-compressed sidecars of the served gzip files, for Accept-Encoding negotiation */
+    public enum Sidecar {
+        ZSTD("zstd", ".zst", 12);
+
+        public final String encoding;
+        public final String extension;
+        final int defaultLevel;
+
+        Sidecar(String encoding, String extension, int defaultLevel) {
+            this.encoding = encoding;
+            this.extension = extension;
+            this.defaultLevel = defaultLevel;
+        }
+    }
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int MAX_POOLED = 64;
+
+    private final Map<OutputClass, Integer> levels = new EnumMap<>(OutputClass.class);
+    private final Map<Sidecar, Integer> sidecars = new EnumMap<>(Sidecar.class);
+    private Metrics metrics;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int threads;
+    private ExecutorService executor;
+
+    // Deflaters by level+1, so that the level doesn't need to be changed on reuse
+    @SuppressWarnings("unchecked")
+    private final ConcurrentLinkedQueue<Deflater>[] deflaters = new ConcurrentLinkedQueue[11];
+
+    public Compression() {
+        for (OutputClass outputClass : OutputClass.values()) {
+            levels.put(outputClass, Deflater.DEFAULT_COMPRESSION);
+        }
+        levels.put(OutputClass.INSTANCES, Deflater.BEST_SPEED);
+        levels.put(OutputClass.METADATA, Deflater.BEST_COMPRESSION);
+        for (int i = 0; i < deflaters.length; i++) {
+            deflaters[i] = new ConcurrentLinkedQueue<>();
+        }
+        setThreads(Runtime.getRuntime().availableProcessors());
+    }
+
+    public int getLevel(OutputClass outputClass) {
+        return levels.get(outputClass);
+    }
+
+    public Compression setLevel(OutputClass outputClass, int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+        levels.put(outputClass, level);
+        return this;
+    }
+
+    /** Sets the levels from a comma separated list of class=level, for example metadata=9,instances=1 */
+    public Compression setLevels(String spec) {
+        for (String item : spec.split(",")) {
+            String[] split = item.split("=");
+            if (split.length != 2) {
+                throw new IllegalArgumentException("Compression level should be class=level, not " + item);
+            }
+            setLevel(OutputClass.valueOf(split[0].trim().toUpperCase()), Integer.parseInt(split[1].trim()));
+        }
+        return this;
+    }
+
+    /**
+     * Sets the sidecar encodings from a comma separated list of encoding[:level], for example zstd:19, or none.
+     * Sidecars are only written for the served metadata and query files.
+     */
+    public Compression setSidecars(String spec) {
+        sidecars.clear();
+        if (spec == null || spec.isEmpty() || "none".equalsIgnoreCase(spec)) return this;
+        for (String item : spec.split(",")) {
+            String[] split = item.split(":");
+            Sidecar sidecar = Sidecar.valueOf(split[0].trim().toUpperCase());
+            sidecars.put(sidecar, split.length > 1 ? Integer.parseInt(split[1].trim()) : sidecar.defaultLevel);
+        }
+        return this;
+    }
+
+    /** Returns the sidecar encodings and levels to write for the output class */
+    public Map<Sidecar, Integer> getSidecars(OutputClass outputClass) {
+        if (outputClass == OutputClass.METADATA || outputClass == OutputClass.QUERY) {
+            return sidecars;
+        }
+        return Collections.emptyMap();
+    }
+
+    /** Returns a stream writing the sidecar encoding to os */
+    public OutputStream sidecar(OutputStream os, Sidecar sidecar) throws IOException {
+        int level = sidecars.getOrDefault(sidecar, sidecar.defaultLevel);
+        return new BufferedOutputStream(new ZstdOutputStream(os, level), bufferSize);
+    }
+
+    /** Sets the metrics to record the deflate time in, or null */
+    public Compression setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    private long startGzip() {
+        return metrics == null ? 0 : Metrics.start();
+    }
+
+    private long elapsedGzip(long start) {
+        return metrics == null ? 0 : Metrics.start() - start;
+    }
+
+    /** Records the deflate time of a whole stream, so each gzip file is one sample like the WRITE stage */
+    private void recordGzip(long nanos) {
+        if (metrics != null) metrics.getHistogram(Metrics.Stage.GZIP).record(nanos);
+    }
+
+    public Compression setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    public Compression setBlockSize(int blockSize) {
+        this.blockSize = Math.max(blockSize, DICTIONARY_SIZE);
+        return this;
+    }
+
+    /** Sets the number of threads for parallel compression of series metadata, 1 or less to compress serially */
+    public synchronized Compression setThreads(int threads) {
+        if (executor != null) executor.shutdown();
+        this.threads = threads;
+        executor = threads > 1 ? Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "gzip");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        return this;
+    }
+
+    /** Returns a gzip stream writing to os, with the settings for the given output class */
+    public OutputStream gzip(OutputStream os, OutputClass outputClass) throws IOException {
+        int level = getLevel(outputClass);
+        if (outputClass == OutputClass.METADATA && executor != null) {
+            return new ParallelGzipOutputStream(os, level);
+        }
+        return new BufferedOutputStream(new PooledGzipOutputStream(os, level), bufferSize);
+    }
+
+    Deflater takeDeflater(int level) {
+        Deflater deflater = deflaters[level + 1].poll();
+        return deflater != null ? deflater : new Deflater(level, true);
+    }
+
+    void returnDeflater(int level, Deflater deflater) {
+        deflater.reset();
+        var pool = deflaters[level + 1];
+        if (pool.size() < MAX_POOLED) {
+            pool.add(deflater);
+        } else {
+            deflater.end();
+        }
+    }
+
+    static void writeHeader(OutputStream out) throws IOException {
+        out.write(new byte[]{(byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+    }
+
+    static void writeTrailer(OutputStream out, CRC32 crc, long size) throws IOException {
+        byte[] trailer = new byte[8];
+        writeInt(trailer, 0, (int) crc.getValue());
+        writeInt(trailer, 4, (int) size);
+        out.write(trailer);
+    }
+
+    private static void writeInt(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) value;
+        buf[offset + 1] = (byte) (value >> 8);
+        buf[offset + 2] = (byte) (value >> 16);
+        buf[offset + 3] = (byte) (value >> 24);
+    }
+
+    /** A gzip stream using a pooled deflater, which is returned to the pool on close */
+    class PooledGzipOutputStream extends DeflaterOutputStream {
+        private final int level;
+        private final CRC32 crc = new CRC32();
+        private long size;
+        private long gzipNanos;
+        private boolean finished;
+        private boolean returned;
+
+        PooledGzipOutputStream(OutputStream out, int level) throws IOException {
+            super(out, takeDeflater(level), bufferSize);
+            this.level = level;
+            writeHeader(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = startGzip();
+            super.write(b, off, len);
+            gzipNanos += elapsedGzip(start);
+            crc.update(b, off, len);
+            size += len;
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (finished) return;
+            long start = startGzip();
+            super.finish();
+            recordGzip(gzipNanos + elapsedGzip(start));
+            writeTrailer(out, crc, size);
+            finished = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!returned) {
+                    returned = true;
+                    returnDeflater(level, def);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compresses blocks of the input in parallel, each block ending on a byte boundary with a sync flush so that
+     * the compressed blocks can simply be concatenated.  The last block is compressed on the calling thread, so a
+     * file smaller than a block is compressed exactly like the serial stream.
+     */
+    class ParallelGzipOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final int level;
+        private final CRC32 crc = new CRC32();
+        private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+        private final AtomicLong gzipNanos = new AtomicLong();
+        private final int maxPending = threads * 2;
+        private byte[] block = new byte[blockSize];
+        private int count;
+        private byte[] dictionary;
+        private long size;
+        private boolean closed;
+
+        ParallelGzipOutputStream(OutputStream out, int level) throws IOException {
+            this.out = out;
+            this.level = level;
+            writeHeader(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == block.length) {
+                    submitBlock(false);
+                }
+                int copy = Math.min(len, block.length - count);
+                System.arraycopy(b, off, block, count, copy);
+                count += copy;
+                off += copy;
+                len -= copy;
+            }
+        }
+
+        private void submitBlock(boolean last) throws IOException {
+            final byte[] data = block;
+            final int length = count;
+            final byte[] dict = dictionary;
+            crc.update(data, 0, length);
+            size += length;
+            if (last) {
+                pending.add(CompletableFuture.completedFuture(deflateBlock(data, length, dict, true)));
+                return;
+            }
+            dictionary = new byte[DICTIONARY_SIZE];
+            System.arraycopy(data, length - DICTIONARY_SIZE, dictionary, 0, DICTIONARY_SIZE);
+            pending.add(executor.submit(() -> deflateBlock(data, length, dict, false)));
+            block = new byte[blockSize];
+            count = 0;
+            drain(maxPending);
+        }
+
+        private byte[] deflateBlock(byte[] data, int length, byte[] dict, boolean last) {
+            Deflater deflater = takeDeflater(level);
+            long start = startGzip();
+            try {
+                if (dict != null) deflater.setDictionary(dict);
+                deflater.setInput(data, 0, length);
+                var bos = new ByteArrayOutputStream(length / 2 + 64);
+                byte[] buf = new byte[bufferSize];
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        bos.write(buf, 0, deflater.deflate(buf));
+                    }
+                } else {
+                    int len;
+                    do {
+                        len = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                        bos.write(buf, 0, len);
+                    } while (len == buf.length);
+                }
+                return bos.toByteArray();
+            } finally {
+                gzipNanos.addAndGet(elapsedGzip(start));
+                returnDeflater(level, deflater);
+            }
+        }
+
+        /** Writes completed blocks in order, until no more than max are pending */
+        private void drain(int max) throws IOException {
+            while (!pending.isEmpty() && (pending.size() > max || pending.peek().isDone())) {
+                try {
+                    out.write(pending.poll().get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted compressing", e);
+                } catch (ExecutionException e) {
+                    throw new IOException("Unable to compress", e.getCause());
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                submitBlock(true);
+                drain(0);
+                recordGzip(gzipNanos.get());
+                writeTrailer(out, crc, size);
+            } catch (IOException | RuntimeException e) {
+                pending.forEach(future -> future.cancel(false));
+                log.warn("Parallel compression failed", e);
+                throw e;
+            } finally {
+                block = null;
+                out.close();
+            }
+        }
+    }
+}
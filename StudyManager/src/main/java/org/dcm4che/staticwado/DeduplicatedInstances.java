@@ -0,0 +1,272 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+import java.util.function.IntFunction;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact storage for the deduplicated instances of a study.  Instances are identified by position, with the hash,
+ * SOP instance UID and series UID held in arrays indexed by position, and hash/SOP lookups done through
+ * open addressing tables of positions rather than string keyed maps.  Series UIDs are shared between all the
+ * instances of the series.  Each instance is kept as deflated DICOM JSON, and is only parsed when it is needed,
+ * so a study of tens of thousands of instances needs a few kilobytes per instance.
+ */
+public class DeduplicatedInstances {
+    private String[] hashes = new String[64];
+    private String[] sopUids = new String[64];
+    private String[] seriesUids = new String[64];
+    private byte[][] data = new byte[64][];
+    private int size;
+    private int sopCount;
+
+    private final PositionIndex hashIndex = new PositionIndex(i -> hashes[i]);
+    private final PositionIndex sopIndex = new PositionIndex(i -> sopUids[i]);
+    private final Map<String, String> seriesNames = new HashMap<>();
+
+    /**
+     * Adds the instance, unless the hash is already present.  The first instance added for a given SOP instance UID
+     * is the one returned by SOP instance lookups.
+     *
+     * @return true if the instance was added
+     */
+    public boolean add(String hash, String sopUid, String seriesUid, Attributes instance) {
+        if (hashIndex.get(hash) >= 0) return false;
+        return addSerialized(hash, sopUid, seriesUid, serialize(instance));
+    }
+
+    /** Adds an instance already in the serialized form, as returned by getSerialized */
+    public boolean addSerialized(String hash, String sopUid, String seriesUid, byte[] serialized) {
+        if (hashIndex.get(hash) >= 0) return false;
+        if (size == hashes.length) {
+            int capacity = size * 2;
+            hashes = Arrays.copyOf(hashes, capacity);
+            sopUids = Arrays.copyOf(sopUids, capacity);
+            seriesUids = Arrays.copyOf(seriesUids, capacity);
+            data = Arrays.copyOf(data, capacity);
+        }
+        hashes[size] = hash;
+        sopUids[size] = sopUid;
+        seriesUids[size] = seriesUid == null ? null : seriesNames.computeIfAbsent(seriesUid, uid -> uid);
+        data[size] = serialized;
+        hashIndex.put(hash, size);
+        if (sopUid != null && sopIndex.get(sopUid) < 0) {
+            sopIndex.put(sopUid, size);
+            sopCount++;
+        }
+        size++;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Returns the number of distinct SOP instance UIDs */
+    public int sopCount() {
+        return sopCount;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsSop(String sopUid) {
+        return sopIndex.get(sopUid) >= 0;
+    }
+
+    /** Returns the position of the given hash or SOP instance UID, or -1 if not found */
+    public int indexOf(String key) {
+        int ret = hashIndex.get(key);
+        return ret >= 0 ? ret : sopIndex.get(key);
+    }
+
+    public String getHash(int position) {
+        return hashes[position];
+    }
+
+    public String getSopUid(int position) {
+        return sopUids[position];
+    }
+
+    public String getSeriesUid(int position) {
+        return seriesUids[position];
+    }
+
+    /** Returns the deflated JSON of the instance at the given position, which must not be modified */
+    public byte[] getSerialized(int position) {
+        return data[position];
+    }
+
+    /** Parses and returns the instance at the given position - this is a new copy every time */
+    public Attributes get(int position) {
+        return deserialize(data[position]);
+    }
+
+    /** Calls the consumer with the series and SOP instance UID of every distinct SOP instance */
+    public void forEachInstance(BiConsumer<String, String> consumer) {
+        for (int i = 0; i < size; i++) {
+            if (sopUids[i] != null && sopIndex.get(sopUids[i]) == i) {
+                consumer.accept(seriesUids[i], sopUids[i]);
+            }
+        }
+    }
+
+    /** Returns the positions of all instances grouped by series, in the order the series were first added */
+    public Map<String, int[]> getSeriesPositions() {
+        Map<String, int[]> counts = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            counts.computeIfAbsent(seriesUids[i], uid -> new int[1])[0]++;
+        }
+        Map<String, int[]> ret = new LinkedHashMap<>();
+        counts.forEach((uid, count) -> ret.put(uid, new int[count[0]]));
+        Map<String, int[]> fill = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            int[] next = fill.computeIfAbsent(seriesUids[i], uid -> new int[1]);
+            ret.get(seriesUids[i])[next[0]++] = i;
+        }
+        return ret;
+    }
+
+    /** Returns the positions sorted by hash value */
+    public int[] sortedByHash() {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparing(i -> hashes[i]));
+        return Arrays.stream(order).mapToInt(Integer::intValue).toArray();
+    }
+
+    /** Returns an iterable parsing the instances at the given positions one at a time, as they are iterated */
+    public Iterable<Attributes> iterable(int[] positions) {
+        return () -> new Iterator<Attributes>() {
+            int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < positions.length;
+            }
+
+            @Override
+            public Attributes next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return get(positions[next++]);
+            }
+        };
+    }
+
+    /**
+     * Returns the hash of the instances at the given positions, the same as DicomAccess.hashAttributes of them, but
+     * from the stored JSON without parsing it.  A JSON array of datasets is the JSON of each dataset joined by
+     * commas, and each instance is stored as a one element array, so only the brackets need removing.
+     */
+    public String hashOf(int[] positions) {
+        if (JsonAccess.isPretty()) return DicomAccess.hashAttributes(iterable(positions));
+        try (DicomAccess.HashOutputStream hos = new DicomAccess.HashOutputStream()) {
+            hos.write('[');
+            for (int i = 0; i < positions.length; i++) {
+                byte[] json = inflate(data[positions[i]]);
+                if (json.length < 2 || json[0] != '[' || json[json.length - 1] != ']') {
+                    return DicomAccess.hashAttributes(iterable(positions));
+                }
+                if (i > 0) hos.write(',');
+                hos.write(json, 1, json.length - 2);
+            }
+            hos.write(']');
+            return hos.getHash();
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+    }
+
+    static byte[] inflate(byte[] bytes) throws IOException {
+        try (InputStream is = new InflaterInputStream(new ByteArrayInputStream(bytes))) {
+            return is.readAllBytes();
+        }
+    }
+
+    static byte[] serialize(Attributes attr) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (OutputStream os = new DeflaterOutputStream(baos, deflater, 4096)) {
+            JsonAccess.write(os, attr);
+        } catch (IOException e) {
+            throw new Error(e);
+        } finally {
+            deflater.end();
+        }
+        return baos.toByteArray();
+    }
+
+    static Attributes deserialize(byte[] bytes) {
+        try (InputStream is = new InflaterInputStream(new ByteArrayInputStream(bytes))) {
+            List<Attributes> ret = JsonAccess.read(is);
+            return ret.get(0);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * An open addressing hash table from string keys to positions.  The keys themselves aren't stored, they are
+     * looked up by position, so the table is just an int array.
+     */
+    static final class PositionIndex {
+        private final IntFunction<String> keyOf;
+        private int[] slots = new int[128];
+        private int count;
+
+        PositionIndex(IntFunction<String> keyOf) {
+            this.keyOf = keyOf;
+        }
+
+        int get(String key) {
+            if (key == null) return -1;
+            int mask = slots.length - 1;
+            for (int i = mix(key.hashCode()) & mask; ; i = (i + 1) & mask) {
+                int slot = slots[i];
+                if (slot == 0) return -1;
+                if (key.equals(keyOf.apply(slot - 1))) return slot - 1;
+            }
+        }
+
+        /** Adds the key at the given position - the key must not already be present */
+        void put(String key, int position) {
+            if ((count + 1) * 2 > slots.length) {
+                int[] old = slots;
+                slots = new int[old.length * 2];
+                for (int slot : old) {
+                    if (slot != 0) insert(keyOf.apply(slot - 1), slot - 1);
+                }
+            }
+            insert(key, position);
+            count++;
+        }
+
+        private void insert(String key, int position) {
+            int mask = slots.length - 1;
+            int i = mix(key.hashCode()) & mask;
+            while (slots[i] != 0) i = (i + 1) & mask;
+            slots[i] = position + 1;
+        }
+
+        private static int mix(int h) {
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -1,10 +1,12 @@
 package org.dcm4che.staticwado;
 import org.dcm4che3.data.*;
+import org.dcm4che3.imageio.plugins.dcm.DicomImageReader;
 import org.dcm4che3.io.DicomInputStream;
 import org.dcm4che3.io.DicomOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.imageio.ImageIO;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -34,6 +36,9 @@ public class DicomAccess {
     // The hash value that this item can be referenced by
     public static final int DEDUPPED_TYPE = 0x00090012;
 
+    // Sequence of series UID and content hash items, recorded in the study deduplicated info
+    public static final int DEDUPPED_SERIES = 0x00090013;
+
     public static final String INSTANCE_TYPE = "instance";
     public static final String INFO_TYPE = "info";
 
@@ -43,6 +48,13 @@ public class DicomAccess {
     // The maximum allowable size for a private tag
     static final int MAX_PRIVATE_SIZE = 64;
 
+    // Reading a header stops at the first top level tag after the series instance UID
+    static final int HEADER_STOP_TAG = Tag.SeriesInstanceUID + 1;
+
+    // Image readers are costly to look up and create, so each thread keeps one and resets it between instances
+    private static final ThreadLocal<DicomImageReader> IMAGE_READERS = ThreadLocal.withInitial(() ->
+            (DicomImageReader) ImageIO.getImageReadersByFormatName("DICOM").next());
+
     static boolean descriptor(List<ItemPointer> itemPointer, String privateCreator, int tag, VR vr, int length) {
         if( privateCreator!=null ) {
             return length>MAX_PRIVATE_SIZE;
@@ -63,6 +75,29 @@ public class DicomAccess {
         }
     }
 
+    /**
+     * Reads just the header of a part 10 file, up to and including the series instance UID, which is enough to
+     * create the SopId and decide whether the instance is already ingested.  The pixel data and any large
+     * values after the UIDs are never read.
+     */
+    public static Attributes readHeader(String dir, String name) throws IOException {
+        try(DicomInputStream dis = new DicomInputStream(new File(dir,name))) {
+            dis.setIncludeBulkData(DicomInputStream.IncludeBulkData.NO);
+            dis.readFileMetaInformation();
+            return dis.readDataset(-1, HEADER_STOP_TAG);
+        }
+    }
+
+    /**
+     * Returns the image reader for the current thread, reset and ready for a new input.  Call reset on it when
+     * done with the instance so it does not hold on to the input.
+     */
+    public static DicomImageReader getDicomImageReader() {
+        DicomImageReader reader = IMAGE_READERS.get();
+        reader.reset();
+        return reader;
+    }
+
     public static String getHash(Attributes src) {
         String currentHash = src.getString(DEDUPPED_CREATER,DEDUPPED_HASH);
         if( currentHash!=null ) return currentHash;
@@ -79,6 +114,11 @@ public class DicomAccess {
 
     /** Returns a hash of the attributes instances */
     public static String hashAttributes(Attributes... attrs) {
+        return hashAttributes(Arrays.asList(attrs));
+    }
+
+    /** Returns a hash of the attributes instances, as they are iterated */
+    public static String hashAttributes(Iterable<Attributes> attrs) {
         try(HashOutputStream hos = new HashOutputStream()) {
             JsonAccess.write(hos,attrs);
             return hos.getHash();
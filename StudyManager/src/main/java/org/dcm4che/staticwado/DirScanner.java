@@ -1,39 +1,315 @@
 package org.dcm4che.staticwado;
 
 import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
 import org.dcm4che3.data.Tag;
-import org.dcm4che3.io.DicomStreamException;
+import org.dcm4che3.io.DicomInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 
-/** The study manager handles DICOM studies in the static WADO tree.  
- * It uses various components to handle the generation.
+/**
+ * Scans directories for the files to import.  Directory listings are read on a small pool of threads, using the
+ * attributes returned by the listing rather than a stat per entry, and the files of each directory are handed,
+ * sorted by name, to the file consumer on the calling thread through a bounded queue, so listing a large share
+ * overlaps with importing it without getting far ahead of it.
  * <ul>
- *   <li>StudyMetadataEngine to generate the basic result tree</li>
+ *   <li>Include and exclude globs match the file name, or the path relative to the scanned root when they
+ *   contain a /.  Excludes also skip whole directories.</li>
+ *   <li>When DICOMDIR use is on, a directory containing a DICOMDIR has the files it references enumerated from
+ *   it, in patient/study/series order, rather than being walked.</li>
  * </ul>
  */
 public class DirScanner {
     private static final Logger log = LoggerFactory.getLogger(DirScanner.class);
 
+    public static final String DICOMDIR = "DICOMDIR";
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+
+    private static final Batch END = new Batch(null, Collections.emptyList());
+
+    private int threads = DEFAULT_THREADS;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private List<Glob> includes = Collections.emptyList();
+    private List<Glob> excludes = Collections.emptyList();
+    private boolean dicomdir;
+
+    /** Scans the roots, relative to dir when it is not null, with the default settings */
     public static int scan(String dir, BiConsumer<String,String> fileConsumer, String...roots) {
+        String[] paths = roots;
+        if( dir!=null ) {
+            paths = new String[roots.length];
+            for(int i=0; i<roots.length; i++) paths[i] = new File(dir, roots[i]).getPath();
+        }
+        return new DirScanner().scan(fileConsumer, paths);
+    }
+
+    /** Sets the number of threads listing directories */
+    public DirScanner setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+
+    /** Sets the number of directory listings queued ahead of the file consumer */
+    public DirScanner setQueueSize(int queueSize) {
+        this.queueSize = Math.max(1, queueSize);
+        return this;
+    }
+
+    /** Sets the comma separated globs of the files to import, null or empty for all files */
+    public DirScanner setIncludes(String globs) {
+        this.includes = parseGlobs(globs);
+        return this;
+    }
+
+    /** Sets the comma separated globs of the files and directories to skip */
+    public DirScanner setExcludes(String globs) {
+        this.excludes = parseGlobs(globs);
+        return this;
+    }
+
+    /** Sets whether directories with a DICOMDIR are enumerated from it rather than walked */
+    public DirScanner setDicomdir(boolean dicomdir) {
+        this.dicomdir = dicomdir;
+        return this;
+    }
+
+    /**
+     * Scans the roots, calling fileConsumer with the directory and name of every file found, on the calling thread.
+     * Files named as roots are always passed on.  Returns the number of files passed on.
+     */
+    public int scan(BiConsumer<String,String> fileConsumer, String...roots) {
         int ret = 0;
         for(String root : roots) {
-            File file = dir==null ? new File(root) : new File(dir,root);
-            if( file.isDirectory() ) {
-                scan(file.getAbsolutePath(), fileConsumer, file.list());
+            Path path = Paths.get(root).toAbsolutePath();
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            } catch(IOException e) {
+                log.warn("Unable to read {}", path, e);
+                continue;
+            }
+            if( attrs.isDirectory() || (dicomdir && isDicomdir(path)) ) {
+                ret += new Walk(path).run(fileConsumer);
             } else {
-                fileConsumer.accept(file.getParent(), file.getName());
+                fileConsumer.accept(path.getParent().toString(), path.getFileName().toString());
                 ret++;
             }
         }
         return ret;
     }
+
+    static boolean isDicomdir(Path path) {
+        return path.getFileName()!=null && DICOMDIR.equalsIgnoreCase(path.getFileName().toString());
+    }
+
+    /** Returns the files referenced by a DICOMDIR, grouped by directory in the order they are referenced */
+    static List<Batch> readDicomdir(Path file) throws IOException {
+        Path base = file.getParent();
+        Map<Path,List<String>> dirs = new LinkedHashMap<>();
+        try(DicomInputStream dis = new DicomInputStream(file.toFile())) {
+            dis.setIncludeBulkData(DicomInputStream.IncludeBulkData.NO);
+            dis.readFileMetaInformation();
+            Attributes attr = dis.readDataset();
+            Sequence records = attr.getSequence(Tag.DirectoryRecordSequence);
+            if( records==null ) return Collections.emptyList();
+            for(Attributes record : records) {
+                String[] fileId = record.getStrings(Tag.ReferencedFileID);
+                if( fileId==null || fileId.length==0 ) continue;
+                Path referenced = base;
+                for(String component : fileId) referenced = referenced.resolve(component);
+                dirs.computeIfAbsent(referenced.getParent(), key -> new ArrayList<>()).add(referenced.getFileName().toString());
+            }
+        }
+        List<Batch> ret = new ArrayList<>(dirs.size());
+        dirs.forEach((dir, names) -> ret.add(new Batch(dir.toString(), names)));
+        return ret;
+    }
+
+    private static List<Glob> parseGlobs(String globs) {
+        if( globs==null || globs.isBlank() ) return Collections.emptyList();
+        List<Glob> ret = new ArrayList<>();
+        for(String glob : globs.split(",")) {
+            glob = glob.trim();
+            if( glob.isEmpty() ) continue;
+            ret.add(new Glob(glob.contains("/"), FileSystems.getDefault().getPathMatcher("glob:" + glob)));
+        }
+        return ret;
+    }
+
+    private static boolean matches(List<Glob> globs, Path root, Path path) {
+        for(Glob glob : globs) {
+            if( glob.matcher.matches(glob.relative ? root.relativize(path) : path.getFileName()) ) return true;
+        }
+        return false;
+    }
+
+    /** A single scan of a root directory or DICOMDIR, with the listing tasks feeding the queue */
+    private class Walk {
+        private final Path start;
+        private final Path root;
+        private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(queueSize);
+        private final AtomicInteger pending = new AtomicInteger();
+        private final Set<Object> visited = ConcurrentHashMap.newKeySet();
+        private final ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "DirScanner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private volatile boolean cancelled;
+
+        Walk(Path start) {
+            this.start = start;
+            this.root = Files.isDirectory(start) ? start : start.getParent();
+        }
+
+        int run(BiConsumer<String,String> fileConsumer) {
+            int ret = 0;
+            submit(start);
+            try {
+                for(Batch batch = queue.take(); batch!=END; batch = queue.take()) {
+                    for(String name : batch.names) {
+                        fileConsumer.accept(batch.dir, name);
+                        ret++;
+                    }
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                cancelled = true;
+                pool.shutdownNow();
+            }
+            return ret;
+        }
+
+        private void submit(Path path) {
+            pending.incrementAndGet();
+            try {
+                pool.execute(() -> list(path));
+            } catch(RejectedExecutionException e) {
+                pending.decrementAndGet();
+            }
+        }
+
+        private void list(Path path) {
+            try {
+                if( cancelled ) return;
+                Path dicomdirFile = dicomdir && isDicomdir(path) ? path : null;
+                if( dicomdirFile==null && dicomdir ) {
+                    Path child = path.resolve(DICOMDIR);
+                    if( Files.isRegularFile(child) ) dicomdirFile = child;
+                }
+                if( dicomdirFile!=null ) {
+                    log.warn("Enumerating files from {}", dicomdirFile);
+                    for(Batch batch : readDicomdir(dicomdirFile)) {
+                        List<String> names = new ArrayList<>(batch.names);
+                        if( !includes.isEmpty() || !excludes.isEmpty() ) {
+                            Path dir = Paths.get(batch.dir);
+                            names.removeIf(name -> !isIncluded(dir.resolve(name)));
+                        }
+                        if( !names.isEmpty() ) queue.put(new Batch(batch.dir, names));
+                    }
+                    return;
+                }
+                listDirectory(path);
+            } catch(IOException e) {
+                log.warn("Unable to list {}", path, e);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if( pending.decrementAndGet()==0 ) {
+                    try {
+                        queue.put(END);
+                    } catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+
+        private void listDirectory(Path dir) throws IOException, InterruptedException {
+            List<String> names = new ArrayList<>();
+            List<Path> dirs = new ArrayList<>();
+            Files.walkFileTree(dir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) {
+                    Object key = attrs.fileKey();
+                    return key==null || visited.add(key) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                    if( attrs.isDirectory() ) {
+                        if( !matches(excludes, root, path) ) dirs.add(path);
+                    } else if( attrs.isRegularFile() && isIncluded(path) ) {
+                        names.add(path.getFileName().toString());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    log.warn("Unable to read {}", path, e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            Collections.sort(dirs);
+            dirs.forEach(this::submit);
+            if( names.isEmpty() ) return;
+            Collections.sort(names);
+            queue.put(new Batch(dir.toString(), names));
+        }
+
+        private boolean isIncluded(Path path) {
+            if( !includes.isEmpty() && !matches(includes, root, path) ) return false;
+            return !matches(excludes, root, path);
+        }
+    }
+
+    static class Batch {
+        final String dir;
+        final List<String> names;
+
+        Batch(String dir, List<String> names) {
+            this.dir = dir;
+            this.names = names;
+        }
+    }
+
+    private static class Glob {
+        final boolean relative;
+        final PathMatcher matcher;
+
+        Glob(boolean relative, PathMatcher matcher) {
+            this.relative = relative;
+            this.matcher = matcher;
+        }
+    }
 }
@@ -42,44 +42,58 @@ package org.dcm4che.staticwado;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.imageio.codec.BytesWithImageImageDescriptor;
 import org.dcm4che3.imageio.codec.ImageDescriptor;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import javax.imageio.stream.MemoryCacheImageOutputStream;
-import java.io.FilterOutputStream;
+import javax.imageio.stream.ImageOutputStreamImpl;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
 /**
+ * The output of an image encoder, accumulated in one growable buffer, taken from the raster pool when there is
+ * one, so the encoded frame can be exposed as a ByteBuffer without copying it.  When an output stream is set the
+ * bytes are instead streamed to it as the encoder flushes them, and the remainder on close, so only the part the
+ * encoder may still seek back into is kept in memory.
+ * The buffer is returned to the pool on close, so the frame must be written out before then.
+ *
  * @author Gunter Zeilinger <gunterze@gmail.com>
  * @since Jul 2015
  */
-public class ExtMemoryCacheImageOutputStream extends MemoryCacheImageOutputStream
+public class ExtMemoryCacheImageOutputStream extends ImageOutputStreamImpl
         implements BytesWithImageImageDescriptor {
-    private static final Logger log = LoggerFactory.getLogger(ExtMemoryCacheImageOutputStream.class);
+    private static final int INITIAL_SIZE = 64 * 1024;
 
-    private final ExtMemoryCacheImageOutputStream.ExtFilterOutputStream stream;
     private final ImageDescriptor imageDescriptor;
-    private byte[] singleByte;
+    private final RasterPool pool;
+    private DataBufferByte pooled;
+    private byte[] buf;
+    // The stream position of buf[0], non zero once bytes have been streamed out
+    private long bufStart;
+    private long length;
+    private OutputStream out;
 
     public ExtMemoryCacheImageOutputStream(Attributes attr) {
-        this(new ImageDescriptor(attr));
+        this(new ImageDescriptor(attr), null);
+    }
+
+    public ExtMemoryCacheImageOutputStream(Attributes attr, RasterPool pool) {
+        this(new ImageDescriptor(attr), pool);
     }
 
     public ExtMemoryCacheImageOutputStream(ImageDescriptor imageDescriptor) {
-        this(new ExtFilterOutputStream(), imageDescriptor);
+        this(imageDescriptor, null);
     }
 
-    private ExtMemoryCacheImageOutputStream(ExtFilterOutputStream stream, ImageDescriptor imageDescriptor) {
-        super(stream);
-        this.stream = stream;
+    public ExtMemoryCacheImageOutputStream(ImageDescriptor imageDescriptor, RasterPool pool) {
         this.imageDescriptor = imageDescriptor;
+        this.pool = pool;
+        this.buf = allocate(INITIAL_SIZE);
     }
 
-    public void setOutputStream(OutputStream stream) {
-        this.stream.setOutputStream(stream);
+    /** Streams the encoded bytes to out rather than keeping them, must be set before anything is written */
+    public void setOutputStream(OutputStream out) {
+        this.out = out;
     }
 
     @Override
@@ -87,62 +101,121 @@ public class ExtMemoryCacheImageOutputStream extends MemoryCacheImageOutputStrea
         return imageDescriptor;
     }
 
+    private byte[] allocate(int size) {
+        if (pool == null) return new byte[size];
+        pooled = (DataBufferByte) pool.take(DataBuffer.TYPE_BYTE, size);
+        return pooled.getData();
+    }
+
+    private void ensureCapacity(long end) {
+        long needed = end - bufStart;
+        if (needed <= buf.length) return;
+        if (needed > Integer.MAX_VALUE - 8) throw new OutOfMemoryError("Encoded image too large " + needed);
+        int size = buf.length;
+        while (size < needed) size = size > (Integer.MAX_VALUE >> 1) ? Integer.MAX_VALUE - 8 : size << 1;
+        DataBufferByte old = pooled;
+        byte[] grown = allocate(size);
+        System.arraycopy(buf, 0, grown, 0, (int) (length - bufStart));
+        buf = grown;
+        if (pool != null) pool.release(old);
+    }
+
     @Override
-    public void write(byte[] data) throws IOException {
-        if( getStreamPosition()==0 && singleByte==null ) {
-            singleByte = data;
-        }
-        super.write(data);
+    public void write(int b) throws IOException {
+        flushBits();
+        ensureCapacity(streamPos + 1);
+        buf[(int) (streamPos - bufStart)] = (byte) b;
+        streamPos++;
+        length = Math.max(length, streamPos);
     }
 
-    public byte[] toByteArray() throws IOException {
-        if( singleByte!=null && singleByte.length==getStreamPosition() ) return singleByte;
-        singleByte = new byte[(int) getStreamPosition()];
-        streamPos = 0;
-        while(streamPos < singleByte.length) {
-            read(singleByte,(int) streamPos,singleByte.length-(int) streamPos);
-        }
-        return singleByte;
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        flushBits();
+        ensureCapacity(streamPos + len);
+        System.arraycopy(b, off, buf, (int) (streamPos - bufStart), len);
+        streamPos += len;
+        length = Math.max(length, streamPos);
     }
 
     @Override
-    public ByteBuffer getBytes() throws IOException {
-        byte[] array = new byte[8192];
-        int length = 0;
-        int read;
-        while ((read = this.read(array, length, array.length - length)) > 0) {
-            if ((length += read) == array.length)
-                array = Arrays.copyOf(array, array.length << 1);
-        }
-        array = Arrays.copyOf(array,length);
-        return ByteBuffer.wrap(array, 0, length);
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= length) return -1;
+        return buf[(int) (streamPos++ - bufStart)] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (len == 0) return 0;
+        if (streamPos >= length) return -1;
+        int count = (int) Math.min(len, length - streamPos);
+        System.arraycopy(buf, (int) (streamPos - bufStart), b, off, count);
+        streamPos += count;
+        return count;
     }
 
+    @Override
+    public long length() {
+        return length;
+    }
+
+    /** Writes everything before pos to the output stream, when there is one, and drops it from memory */
     @Override
     public void flushBefore(long pos) throws IOException {
-        if (stream.getOutputStream() != null)
-            super.flushBefore(pos);
+        super.flushBefore(pos);
+        if (out == null || pos <= bufStart) return;
+        int count = (int) (pos - bufStart);
+        out.write(buf, 0, count);
+        System.arraycopy(buf, count, buf, 0, (int) (length - pos));
+        bufStart = pos;
     }
 
-    private static final class ExtFilterOutputStream extends FilterOutputStream {
+    @Override
+    public boolean isCached() {
+        return true;
+    }
 
-        public ExtFilterOutputStream() {
-            super(null);
-        }
+    @Override
+    public boolean isCachedMemory() {
+        return true;
+    }
 
-        public OutputStream getOutputStream() {
-            return super.out;
-        }
+    /** Returns the encoded bytes held in memory, without copying them */
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buf, 0, (int) (length - bufStart)).slice();
+    }
 
-        public void setOutputStream(OutputStream out) {
-            super.out = out;
-        }
+    /** Returns a copy of the encoded bytes */
+    public byte[] toByteArray() {
+        byte[] ret = new byte[(int) (length - bufStart)];
+        System.arraycopy(buf, 0, ret, 0, ret.length);
+        return ret;
+    }
 
-        @Override
-        public void write(byte[] b, int off, int len) throws IOException {
-            System.out.println("Wrote "+len+" bytes");
-            out.write(b, off, len);
-        }
+    @Override
+    public ByteBuffer getBytes() {
+        return toByteBuffer();
     }
 
+    /** Streams out what is left when there is an output stream, and returns the buffer to the pool */
+    @Override
+    public void close() throws IOException {
+        if (buf == null) return;
+        try {
+            if (out != null) {
+                seek(length);
+                flushBefore(length);
+                out.flush();
+            }
+        } finally {
+            if (pool != null) pool.release(pooled);
+            pooled = null;
+            buf = null;
+            super.close();
+        }
+    }
 }
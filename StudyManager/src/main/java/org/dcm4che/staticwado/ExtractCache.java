@@ -0,0 +1,141 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.BulkData;
+import org.dcm4che3.data.Sequence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A process wide, size bounded, least recently used cache of parsed extract (patient/study/series/image)
+ * attributes, keyed by hash value.  Since extracts are named by the hash of their contents, the same entry
+ * is valid for every study referencing it.  Entries are weighed by an estimate of their heap size, and the
+ * least recently used ones are evicted once the total weight exceeds the maximum.
+ *
+ * Cached attributes are shared, so callers must not modify them.
+ */
+public class ExtractCache {
+    private static final Logger log = LoggerFactory.getLogger(ExtractCache.class);
+
+    public static final long DEFAULT_MAX_WEIGHT = 64L * 1024 * 1024;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(1024, 0.75f, true);
+    private long maxWeight;
+    private long weight;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ExtractCache() {
+        this(DEFAULT_MAX_WEIGHT);
+    }
+
+    public ExtractCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    public synchronized void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+        evict();
+    }
+
+    /**
+     * Gets the extract for hashValue, loading it with loader on a miss.  The load is done outside the lock, so two
+     * threads missing on the same key may both load it.  Null values are not cached.
+     */
+    public Attributes get(String hashValue, Function<String, Attributes> loader) {
+        synchronized (this) {
+            Entry entry = entries.get(hashValue);
+            if (entry != null) {
+                hits.incrementAndGet();
+                return entry.attr;
+            }
+        }
+        misses.incrementAndGet();
+        Attributes attr = loader.apply(hashValue);
+        if (attr != null) put(hashValue, attr);
+        return attr;
+    }
+
+    public void put(String hashValue, Attributes attr) {
+        if (maxWeight <= 0) return;
+        long entryWeight = weigh(attr);
+        synchronized (this) {
+            Entry previous = entries.put(hashValue, new Entry(attr, entryWeight));
+            if (previous != null) weight -= previous.weight;
+            weight += entryWeight;
+            evict();
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (weight > maxWeight && it.hasNext()) {
+            weight -= it.next().getValue().weight;
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public void logStats() {
+        log.warn("Extract cache hits {} misses {} evictions {} entries {} weight {}/{}",
+                getHits(), getMisses(), getEvictions(), size(), getWeight(), maxWeight);
+    }
+
+    /** Estimates the heap size of the attributes, without the cost of serializing them. */
+    static long weigh(Attributes attr) {
+        long ret = 64 + 16L * attr.size();
+        for (int tag : attr.tags()) {
+            Object value = attr.getValue(tag);
+            if (value instanceof byte[]) {
+                ret += ((byte[]) value).length;
+            } else if (value instanceof String) {
+                ret += 2L * ((String) value).length() + 40;
+            } else if (value instanceof String[]) {
+                for (String s : (String[]) value) ret += s == null ? 8 : 2L * s.length() + 40;
+            } else if (value instanceof Sequence) {
+                for (Attributes item : (Sequence) value) ret += weigh(item);
+            } else if (value instanceof BulkData) {
+                ret += 2L * ((BulkData) value).getURI().length() + 64;
+            }
+        }
+        return ret;
+    }
+
+    private static class Entry {
+        final Attributes attr;
+        final long weight;
+
+        Entry(Attributes attr, long weight) {
+            this.attr = attr;
+            this.weight = weight;
+        }
+    }
+}
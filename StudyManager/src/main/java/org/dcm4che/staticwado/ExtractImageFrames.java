@@ -14,6 +14,8 @@ import javax.imageio.stream.FileImageInputStream;
 import java.awt.color.ColorSpace;
 import java.awt.image.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.regex.Matcher;
@@ -57,6 +59,15 @@ public class ExtractImageFrames {
 
     public static final String SEPARATOR = "BOUNDARY_FIXED_32934857949532587";
 
+    /**
+     * How the frames are stored: MULTIPART is the multipart/related frame only, SINGLEPART is the raw frame only,
+     * with the multipart framing added when served (see StaticWadoHttp), and BOTH also writes a raw frame.jpg/mp4
+     * copy next to the multipart frame for content types that have an extension.
+     */
+    public enum FrameParts {
+        MULTIPART, SINGLEPART, BOTH
+    }
+
     public static final Map<String,String> CONTENT_TYPES = new HashMap<>();
     static {
         CONTENT_TYPES.put(UID.ImplicitVRLittleEndian,OCTET_STREAM);
@@ -82,6 +93,8 @@ public class ExtractImageFrames {
 
     private ImageWriter jpegCompressor;
 
+    private final RasterPool rasterPool = new RasterPool(Runtime.getRuntime().availableProcessors());
+
     private String tsuid = UID.ImplicitVRLittleEndian;
     private ImageWriteParam compressParam;
 
@@ -147,15 +160,25 @@ public class ExtractImageFrames {
         long origOffset = getOffset(origUri);
         String baseUri = origUri.contains("?") ? origUri.substring(0,origUri.indexOf('?')) : origUri;
         String frameName = "series/"+seriesUid + "/instances/"+ sopUid + "/frames";
-        BulkDataReader bulkdataReader = new BulkDataReader(callbacks.fileHandler, dir, frameName);
-        for(int i=1; i<= frames; i++) {
-            bulk.setURI(baseUri + "?offset="+(origOffset+imageLen*i-imageLen)+"&length="+imageLen);
-            BulkData convertBulk = convertImageFormat(reader, dir, attr, frameName(frameName,i), i, bulk, false);
-            bulkdataReader.add(convertBulk);
+        FramePack pack = callbacks.isPackedFrames(attr, frames) ? new FramePack(this, dir, frameName) : null;
+        BulkDataReader bulkdataReader = new BulkDataReader(callbacks.fileHandler, dir,
+                pack==null ? frameName : pack.getName());
+        int midFrame = (frames+1)/2;
+        FrameDecoder decoder = createDecoder(reader, attr, midFrame);
+        try {
+            for(int i=1; i<= frames; i++) {
+                bulk.setURI(baseUri + "?offset="+(origOffset+imageLen*i-imageLen)+"&length="+imageLen);
+                BulkData convertBulk = convertImageFormat(decoder, dir, attr, frameName(frameName,i), i, bulk, false, pack);
+                bulkdataReader.add(convertBulk);
+            }
+        } catch(RuntimeException e) {
+            abortPack(pack, decoder);
+            throw e;
         }
+        closePack(pack);
 
-        int midFrame = (frames+1)/2;
-        convertThumbnail(reader, dir, attr, frameName.replace("/frames", "/thumbnail"), midFrame);
+        convertThumbnail(decoder, dir, attr, frameName.replace("/frames", "/thumbnail"), midFrame);
+        if( decoder!=null ) decoder.close();
 
         attr.setValue(Tag.PixelData,VR.OB, bulkdataReader);
     }
@@ -211,24 +234,55 @@ public class ExtractImageFrames {
         String frameName = "series/"+seriesUid + "/instances/"+ sopUid + "/frames";
 
         boolean fragmented = fragments.size()!=frames+1;
-        BulkDataReader bulkdataReader = new BulkDataReader(callbacks.fileHandler, dir,frameName);
-        for(int i=1; i<=frames; i++) {
-            Object bulk = fragments.get(i);
-            bulkdataReader.add(convertImageFormat(reader,dir, attr, frameName(frameName,i), i, bulk, fragmented));
+        FramePack pack = callbacks.isPackedFrames(attr, frames) ? new FramePack(this, dir, frameName) : null;
+        BulkDataReader bulkdataReader = new BulkDataReader(callbacks.fileHandler, dir,
+                pack==null ? frameName : pack.getName());
+        int midFrame = (frames+1)/2;
+        FrameDecoder decoder = createDecoder(reader, attr, midFrame);
+        try {
+            for(int i=1; i<=frames; i++) {
+                Object bulk = fragments.get(i);
+                bulkdataReader.add(convertImageFormat(decoder,dir, attr, frameName(frameName,i), i, bulk, fragmented, pack));
+            }
+        } catch(RuntimeException e) {
+            abortPack(pack, decoder);
+            throw e;
         }
+        closePack(pack);
 
-        int midFrame = (frames+1)/2;
-        convertThumbnail(reader, dir, attr, frameName.replace("/frames", "/thumbnail"), midFrame);
+        convertThumbnail(decoder, dir, attr, frameName.replace("/frames", "/thumbnail"), midFrame);
+        if( decoder!=null ) decoder.close();
         attr.setValue(Tag.PixelData,VR.OB, bulkdataReader);
     }
 
     /** Generate an alternate sub-directory name when frameNo exceeds 10000 .. frame(frameNo/10000)/frameNo
      * to deal with file system limitations. */
     public static String frameName(String dir, int i) {
-        // TODO - consider using additional sub-frames - alternatively, consider using single files with offsets
+        // TODO - consider using additional sub-frames.  Instances with many frames can use a FramePack instead.
         return dir + "/" + i;
     }
 
+    /** Creates the per-instance frame decoder, keeping the thumbnail frame, or null if there is no reader */
+    private FrameDecoder createDecoder(DicomImageReader reader, Attributes attr, int thumbnailFrame) {
+        if( reader==null ) return null;
+        return new FrameDecoder(reader, attr, getSpecifier(attr), rasterPool, thumbnailFrame);
+    }
+
+    /** Discards the partial pack of a failed instance, and releases the decoder */
+    private static void abortPack(FramePack pack, FrameDecoder decoder) {
+        if( pack!=null ) pack.abort();
+        if( decoder!=null ) decoder.close();
+    }
+
+    private void closePack(FramePack pack) {
+        if( pack==null ) return;
+        try {
+            pack.close();
+        } catch(IOException e) {
+            log.warn("Unable to close frame pack {}", pack.getName(), e);
+        }
+    }
+
     /** Saves the raw, original DICOM object to the studies/.../SOP_Instance.gz file */
     public void saveOriginal(SopId id, Attributes attr) {
         byte[] original = getBytes(attr);
@@ -266,6 +320,9 @@ public class ExtractImageFrames {
             byte[] bValue = (byte[]) value;
             return bValue.length;
         }
+        if( value instanceof ByteBuffer ) {
+            return ((ByteBuffer) value).remaining();
+        }
         if( value instanceof BulkData ) {
             return ((BulkData) value).longLength();
         }
@@ -307,7 +364,7 @@ public class ExtractImageFrames {
 
     /** Saves an object as singlepart to the thumbnail or rendered directory  */
     public void saveSinglepart(String dir, String dest, Object value, String contentType) {
-        String extension = EXTENSIONS.get(contentType);
+        String extension = EXTENSIONS.get(baseContentType(contentType));
         if (extension == null) {
             log.debug("No singlepart for {}", contentType);
             return;
@@ -349,6 +406,22 @@ public class ExtractImageFrames {
             os.write((byte[]) value);
             return ((byte[]) value).length;
         }
+        if( value instanceof ByteBuffer ) {
+            // Written without moving the position, so the same buffer can be written again
+            ByteBuffer buffer = (ByteBuffer) value;
+            if( buffer.hasArray() ) {
+                os.write(buffer.array(), buffer.arrayOffset()+buffer.position(), buffer.remaining());
+            } else {
+                ByteBuffer src = buffer.duplicate();
+                byte[] chunk = new byte[Math.min(src.remaining(), 16384)];
+                while(src.hasRemaining()) {
+                    int len = Math.min(chunk.length, src.remaining());
+                    src.get(chunk, 0, len);
+                    os.write(chunk, 0, len);
+                }
+            }
+            return buffer.remaining();
+        }
         BulkData bulk = (BulkData) value;
         String uri = bulk.getURI();
         long start = getOffset(uri);
@@ -417,6 +490,31 @@ public class ExtractImageFrames {
      * encapsulated or raw.
      */
     public BulkData convertImageFormat(DicomImageReader reader, String dir, Attributes attr, String dest, int frame, Object bulk, boolean fragmented) {
+        return convertImageFormat(reader, dir, attr, dest, frame, bulk, fragmented, null);
+    }
+
+    /**
+     * Converts the image format, writing the frame to the pack if there is one, or to the dest file otherwise.
+     */
+    public BulkData convertImageFormat(DicomImageReader reader, String dir, Attributes attr, String dest, int frame, Object bulk, boolean fragmented, FramePack pack) {
+        try(FrameDecoder decoder = createDecoder(reader, attr, 0)) {
+            return convertImageFormat(decoder, dir, attr, dest, frame, bulk, fragmented, pack);
+        }
+    }
+
+    /**
+     * Converts the image format, decoding the frame through the per-instance decoder so that the thumbnail frame
+     * isn't decoded again, and raster buffers are reused across frames.
+     */
+    public BulkData convertImageFormat(FrameDecoder decoder, String dir, Attributes attr, String dest, int frame, Object bulk, boolean fragmented, FramePack pack) {
+        long start = Metrics.start();
+        BulkData ret = convertFrame(decoder, dir, attr, dest, frame, bulk, fragmented, pack);
+        callbacks.tracer.record(attr, "convert", start, frame);
+        return ret;
+    }
+
+    private BulkData convertFrame(FrameDecoder decoder, String dir, Attributes attr, String dest, int frame, Object bulk, boolean fragmented, FramePack pack) {
+        DicomImageReader reader = decoder==null ? null : decoder.getReader();
         Object writeData = bulk;
         String sourceTsuid = attr.getString(Tag.AvailableTransferSyntaxUID);
         log.warn("sourceTsuid = {}", sourceTsuid);
@@ -429,36 +527,55 @@ public class ExtractImageFrames {
             writeType = writeType + ";transfer-syntax="+sourceTsuid;
         }
         String simpleTsuid = getSimpleTsuid(sourceTsuid);
+        DataBufferByte pooledBytes = null;
+        ExtMemoryCacheImageOutputStream encoded = null;
+        BulkData streamed = null;
         if( reader!=null && (tsuid!=null && recompress.contains(simpleTsuid) || fragmented) ) {
             try {
-                WritableRaster r = (WritableRaster) reader.readRaster(frame-1, null);
+                long start = Metrics.start();
+                WritableRaster r = decoder.read(frame, bulk);
+                callbacks.metrics.record(Metrics.Stage.DECODE, start);
                 if( compressor!=null ) {
                     log.debug("Converting image from {}({}) to {}", sourceTsuid, simpleTsuid, tsuid);
-                    ImageTypeSpecifier specifier = getSpecifier(attr);
+                    ImageTypeSpecifier specifier = decoder.getSpecifier();
                     BufferedImage bi = new BufferedImage(specifier.getColorModel(),r,false,null);
                     String destTsuid = tsuid==null ? sourceTsuid : tsuid;
-                    try(ExtMemoryCacheImageOutputStream ios = new ExtMemoryCacheImageOutputStream(attr)) {
+                    encoded = new ExtMemoryCacheImageOutputStream(attr, rasterPool);
+                    Encoder encoder = ios -> {
+                        long waitStart = Metrics.start();
                         synchronized(compressor) {
+                            callbacks.tracer.record(attr, "encodeWait", waitStart, frame);
+                            long encodeStart = Metrics.start();
                             compressor.setOutput(ios);
 
                             compressor.write(null, new IIOImage(bi, null, null), compressParam);
+                            callbacks.metrics.record(Metrics.Stage.ENCODE, encodeStart);
                         }
-                        writeData = ios.toByteArray();
-                        writeType = CONTENT_TYPES.get(destTsuid) + ";transfer-syntax="+destTsuid;
-                        attr.setString(Tag.AvailableTransferSyntaxUID,VR.UI, tsuid);
-                        log.warn("Converted {} to {} length {} type {}", sourceTsuid, destTsuid, ((byte[]) writeData).length, writeType);
+                    };
+                    // Raw frames are streamed straight into the frame file as they are encoded
+                    if( pack==null && callbacks.getFrameParts()==FrameParts.SINGLEPART ) {
+                        streamed = streamFrame(dir, dest, encoded, encoder);
+                    } else {
+                        encoder.encode(encoded);
+                        writeData = encoded.toByteBuffer();
                     }
+                    writeType = CONTENT_TYPES.get(destTsuid) + ";transfer-syntax="+destTsuid;
+                    attr.setString(Tag.AvailableTransferSyntaxUID,VR.UI, tsuid);
+                    log.warn("Converted {} to {} length {} type {}", sourceTsuid, destTsuid, encoded.length(), writeType);
                 } else {
                     log.warn("Write source type {} uncompressed", sourceTsuid);
                     DataBuffer buf = r.getDataBuffer();
-                    writeData = toBytes(buf);
-                    writeType = OCTET_STREAM;
-                    gzip = true;
-                    if( writeData==null ) {
+                    try {
+                        if( !isSingleBankBytes(buf) ) {
+                            pooledBytes = (DataBufferByte) rasterPool.take(DataBuffer.TYPE_BYTE, byteLength(buf));
+                        }
+                        writeData = toByteBuffer(buf, pooledBytes==null ? null : ByteBuffer.wrap(pooledBytes.getData()));
+                        writeType = OCTET_STREAM;
+                        gzip = true;
+                        attr.setString(Tag.AvailableTransferSyntaxUID,VR.UI, UID.ImplicitVRLittleEndian);
+                    } catch(UnsupportedOperationException e) {
                         log.error("Unable to convert data buffer from {} to bytes", buf.getClass());
-                        writeData = bulk;
                     }
-                    attr.setString(Tag.AvailableTransferSyntaxUID,VR.UI, UID.ImplicitVRLittleEndian);
                 }
             } catch(IOException e) {
                 log.error("Couldn't convert image because {}",(Object) e);
@@ -470,67 +587,223 @@ public class ExtractImageFrames {
             log.warn("Write original data gzip={} writeType={} for leave as original", gzip,writeType);
         }
         log.debug("Original bulkdata source is {}", (bulk instanceof BulkData) ? ((BulkData) bulk).getURI() : bulk);
+        try {
+            if( streamed!=null ) return streamed;
+            return writeFrame(dir, dest, frame, writeData, writeType, gzip, pack);
+        } finally {
+            // The frame has been written out, so the converted or encoded bytes can be reused
+            rasterPool.release(pooledBytes);
+            closeEncoded(encoded);
+        }
+    }
+
+    /** Encodes a frame into an image output stream */
+    interface Encoder {
+        void encode(ExtMemoryCacheImageOutputStream ios) throws IOException;
+    }
+
+    /**
+     * Encodes the frame straight into the dest frame file, which is only renamed into place once the encoding
+     * succeeded.  On any failure the partial file is discarded and the encoded buffer released.
+     */
+    BulkData streamFrame(String dir, String dest, ExtMemoryCacheImageOutputStream encoded, Encoder encoder)
+            throws IOException {
+        OutputStream frameOs = callbacks.fileHandler.openForWrite(dir, dest, false, true);
+        boolean written = false;
+        try {
+            encoded.setOutputStream(frameOs);
+            encoder.encode(encoded);
+            BulkData ret = new BulkData(dest,0,-1,false);
+            ret.setLength(encoded.length());
+            encoded.close();
+            frameOs.close();
+            written = true;
+            return ret;
+        } finally {
+            if( !written ) {
+                encoded.setOutputStream(null);
+                closeEncoded(encoded);
+                if( frameOs instanceof FileHandler.TempFileOutputStream ) {
+                    ((FileHandler.TempFileOutputStream) frameOs).abort();
+                } else {
+                    FileHandler.safeClose(frameOs);
+                }
+            }
+        }
+    }
+
+    private static void closeEncoded(ExtMemoryCacheImageOutputStream encoded) {
+        if( encoded==null ) return;
+        try {
+            encoded.close();
+        } catch(IOException e) {
+            log.warn("Unable to close encoded frame", e);
+        }
+    }
+
+    private BulkData writeFrame(String dir, String dest, int frame, Object writeData, String writeType, boolean gzip, FramePack pack) {
+        if( pack!=null ) {
+            try {
+                return pack.add(writeData, writeType);
+            } catch(IOException e) {
+                // The rest of the pack would be at the wrong offsets, so the instance fails rather than one frame
+                throw new UncheckedIOException("Unable to add frame " + frame + " to " + pack.getName(), e);
+            }
+        }
+        FrameParts parts = callbacks.getFrameParts();
+        if( parts==FrameParts.SINGLEPART ) {
+            return saveFrame(dir, dest, writeData, gzip);
+        }
+        String extension = parts==FrameParts.BOTH ? EXTENSIONS.get(baseContentType(writeType)) : null;
+        if( extension!=null && writeData instanceof BulkData ) {
+            // Read the source once for both copies
+            try {
+                writeData = toByteArray(writeData);
+            } catch(IOException e) {
+                log.warn("Unable to read frame {} into memory", frame, e);
+            }
+        }
         BulkData writeBulk = saveMultipart(dir,dest, writeData, writeType, SEPARATOR, gzip, null);
-        saveSinglepart(dir, dest, writeData, writeType);
+        if( extension!=null ) saveSinglepart(dir, dest+"."+extension, writeData);
         return writeBulk;
     }
 
+    /** Saves the frame raw, without the multipart framing, returning the bulkdata location of it */
+    public BulkData saveFrame(String dir, String dest, Object value, boolean gzip) {
+        BulkData ret = new BulkData(dest,0,-1,false);
+        ret.setLength(valueLength(value));
+        try(OutputStream os = callbacks.fileHandler.openForWrite(dir, dest, gzip, true)) {
+            copyFrom(value,os);
+        } catch(IOException e) {
+            log.warn("Unable to write frame {}", dest, e);
+            ret.setLength(0);
+        }
+        return ret;
+    }
+
+    /** Returns the content type without any parameters, eg image/jpeg for image/jpeg;transfer-syntax=... */
+    public static String baseContentType(String contentType) {
+        int semi = contentType.indexOf(';');
+        return semi==-1 ? contentType.trim() : contentType.substring(0,semi).trim();
+    }
+
+    /** Returns the value as a byte array, reading bulkdata into memory */
+    public byte[] toByteArray(Object value) throws IOException {
+        if( value instanceof byte[] ) return (byte[]) value;
+        long length = valueLength(value);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(length > 0 && length < Integer.MAX_VALUE ? (int) length : 16384);
+        copyFrom(value, bos);
+        return bos.toByteArray();
+    }
+
     /**
-     * Converts the image format into a thumbnail representation and writes it out.
+     * Converts the image format into a thumbnail representation and writes it out.  The frame is decoded
+     * subsampled and scaled to the thumbnail size, see Thumbnail.
      */
     public void convertThumbnail(DicomImageReader reader, String dir, Attributes attr, String dest, int frame) {
-        if( reader!=null ) {
+        convertThumbnail(createDecoder(reader, attr, frame), dir, attr, dest, frame);
+    }
+
+    /**
+     * Converts the image format into a thumbnail, using the raster the decoder kept from transcoding the
+     * frame for greyscale and RGB images, and reading the frame otherwise.
+     */
+    public void convertThumbnail(FrameDecoder decoder, String dir, Attributes attr, String dest, int frame) {
+        long traceStart = Metrics.start();
+        if( decoder!=null ) {
             try {
-                ImageReadParam param = reader.getDefaultReadParam();
-                BufferedImage bi = reader.read(frame - 1, param);
-                try (ExtMemoryCacheImageOutputStream ios = new ExtMemoryCacheImageOutputStream(attr)) {
+                int size = callbacks.getThumbnailSize();
+                BufferedImage bi;
+                String pmi = attr.getString(Tag.PhotometricInterpretation, "MONOCHROME2");
+                if( decoder.getKept()!=null && (pmi.startsWith("MONOCHROME") || pmi.equals("RGB")) ) {
+                    bi = Thumbnail.fromRaster(decoder.getKept(), attr, decoder.getSpecifier().getColorModel(), size);
+                } else {
+                    DicomImageReader reader = decoder.getReader();
+                    ImageReadParam param = Thumbnail.readParam(reader, attr, size);
+                    long start = Metrics.start();
+                    bi = reader.read(frame - 1, param);
+                    callbacks.metrics.record(Metrics.Stage.DECODE, start);
+                    bi = Thumbnail.scale(bi, size);
+                }
+                try (ExtMemoryCacheImageOutputStream ios = new ExtMemoryCacheImageOutputStream(attr, rasterPool)) {
+                    long waitStart = Metrics.start();
                     synchronized(jpegCompressor) {
+                        callbacks.tracer.record(attr, "thumbnailWait", waitStart, frame);
+                        long start = Metrics.start();
                         jpegCompressor.setOutput(ios);
                         jpegCompressor.write(null, new IIOImage(bi, null, null), null);
+                        callbacks.metrics.record(Metrics.Stage.ENCODE, start);
                     }
-                    byte[] writeData = ios.toByteArray();
+                    ByteBuffer writeData = ios.toByteBuffer();
                     saveSinglepart(dir,dest, writeData);
                     callbacks.studyStats.add("Thumbnail", 1000,
-                        "Wrote thumbnail to {} as JPEG length {} type image/jpeg",dest, ((byte[]) writeData).length);
+                        "Wrote thumbnail to {} as JPEG {}x{} length {} type image/jpeg",dest, bi.getWidth(), bi.getHeight(),
+                        writeData.remaining());
                 }
-            } catch (IOException e) {
-                log.warn("Unable to write to {}", dest);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Unable to write thumbnail to {}", dest, e);
             }
         }
+        callbacks.tracer.record(attr, "thumbnail", traceStart, frame);
     }
 
     public static byte[] toBytes(short[] data) {
         byte[] ret = new byte[data.length*2];
-        int i=0;
-        for(short s : data) {
-            ret[i++] = (byte) (s & 0xFF);
-            ret[i++] = (byte) ((s & 0xFF00) >> 8);
-        }
+        ByteBuffer.wrap(ret).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().put(data);
         return ret;
     }
 
+    /** Returns the data buffer as little endian bytes, the bank itself for single bank byte buffers */
     public static byte[] toBytes(DataBuffer buf) {
+        if( isSingleBankBytes(buf) ) return ((DataBufferByte) buf).getData();
+        return toByteBuffer(buf, null).array();
+    }
+
+    static boolean isSingleBankBytes(DataBuffer buf) {
+        return buf instanceof DataBufferByte && buf.getNumBanks()==1;
+    }
+
+    /** Returns the number of bytes the data buffer converts to */
+    public static int byteLength(DataBuffer buf) {
         if( buf instanceof DataBufferByte ) {
-            DataBufferByte byteBuf = (DataBufferByte) buf;
-            byte[][] banks = byteBuf.getBankData();
-            if( banks.length==1 ) return banks[0];
             int len = 0;
-            for(byte[] bank : banks) len += bank.length;
-            byte[] ret = new byte[len];
-            int position = 0;
-            for(byte[] bank : banks) {
-                System.arraycopy(bank,0,ret,position,bank.length);
-                position += bank.length;
-            }
-            return ret;
+            for(byte[] bank : ((DataBufferByte) buf).getBankData()) len += bank.length;
+            return len;
         }
-        if( buf instanceof DataBufferShort ) {
-            return toBytes( ((DataBufferShort) buf).getData() );
+        if( buf instanceof DataBufferShort || buf instanceof DataBufferUShort ) {
+            return buf.getSize()*2;
         }
-        if( buf instanceof DataBufferUShort ) {
-            return toBytes( ((DataBufferUShort) buf).getData() );
+        if( buf instanceof DataBufferInt ) {
+            return buf.getSize()*3;
         }
-        // Probably int RGB, should convert this sometime.
         throw new UnsupportedOperationException("Unknown buffer type "+ buf.getClass());
     }
+
+    /**
+     * Converts the data buffer to little endian bytes, into dest when it is large enough, or a new buffer otherwise.
+     * Single bank byte buffers are wrapped rather than copied.  Short buffers are swapped through a short view,
+     * and packed int RGB buffers are written as R, G, B bytes per pixel.  The returned buffer holds exactly the
+     * converted bytes, from position 0.
+     */
+    public static ByteBuffer toByteBuffer(DataBuffer buf, ByteBuffer dest) {
+        if( isSingleBankBytes(buf) ) return ByteBuffer.wrap(((DataBufferByte) buf).getData());
+        int length = byteLength(buf);
+        ByteBuffer ret = dest!=null && dest.capacity()>=length ? dest : ByteBuffer.allocate(length);
+        ret.clear().limit(length);
+        if( buf instanceof DataBufferByte ) {
+            for(byte[] bank : ((DataBufferByte) buf).getBankData()) ret.put(bank);
+        } else if( buf instanceof DataBufferShort ) {
+            ret.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().put(((DataBufferShort) buf).getData(), 0, buf.getSize());
+        } else if( buf instanceof DataBufferUShort ) {
+            ret.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().put(((DataBufferUShort) buf).getData(), 0, buf.getSize());
+        } else {
+            int[] data = ((DataBufferInt) buf).getData();
+            for(int i=0, n=buf.getSize(); i<n; i++) {
+                int rgb = data[i];
+                ret.put((byte) (rgb >> 16)).put((byte) (rgb >> 8)).put((byte) rgb);
+            }
+        }
+        ret.rewind();
+        return ret;
+    }
 }
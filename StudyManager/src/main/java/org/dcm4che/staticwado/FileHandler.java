@@ -5,13 +5,20 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * The file handler knows about how to write to a given DICOMweb location tree.
@@ -22,10 +29,24 @@ public class FileHandler {
 
   StudyManager callbacks;
 
+  private boolean listingCache;
+  private final Map<Path, Listing> listings = new ConcurrentHashMap<>();
+
   public FileHandler(StudyManager callbacks) {
     this.callbacks = callbacks;
   }
 
+  /**
+   * Sets whether directory listings are cached.  A cached listing is used until a file is written through this
+   * handler to the directory or to one of its sub-directories, or until the directory modified time changes,
+   * which catches files added or removed by other processes.
+   */
+  public FileHandler setListingCache(boolean listingCache) {
+    this.listingCache = listingCache;
+    if (!listingCache) listings.clear();
+    return this;
+  }
+
   /**
    * Opens the given destination file for writing, as either gzip or non-gzip, AND deletes any older version of the wrong type (gzip or non-gzip).
    */
@@ -44,28 +65,143 @@ public class FileHandler {
     }
     File tempFile = new File(fullName.getParentFile(), "temp-" + Math.random());
     FileOutputStream fos = new FileOutputStream(tempFile);
-    OutputStream os = gzip ? new GZIPOutputStream(fos) : fos;
-    return new FilterOutputStream(os) {
-      boolean closed = false;
-
-      @Override
-      public void close() throws IOException {
-        if (closed) {
-          return;
+    Runnable onClose = listingCache ? invalidator(new File(dir, name)) : null;
+    if (!gzip) {
+      return new TempFileOutputStream(fos, fos, tempFile, finalName, overwrite).setMetrics(callbacks.metrics)
+          .setOnClose(onClose);
+    }
+    var outputClass = classify(dir, name);
+    var ret = new TempFileOutputStream(callbacks.compression.gzip(fos, outputClass), fos, tempFile, finalName, overwrite)
+        .setMetrics(callbacks.metrics).setOnClose(onClose);
+    var sidecars = callbacks.compression.getSidecars(outputClass);
+    for (var sidecar : Compression.Sidecar.values()) {
+      File sidecarName = new File(dir, name + sidecar.extension);
+      if (!sidecars.containsKey(sidecar)) {
+        // Don't leave a sidecar for an older version of the file
+        if (outputClass == Compression.OutputClass.METADATA || outputClass == Compression.OutputClass.QUERY) {
+          sidecarName.delete();
         }
-        super.close();
-        safeClose(os);
-        safeClose(fos);
-        closed = true;
+        continue;
+      }
+      File sidecarTemp = new File(fullName.getParentFile(), "temp-" + Math.random());
+      FileOutputStream sidecarFos = new FileOutputStream(sidecarTemp);
+      ret.addSidecar(new TempFileOutputStream(callbacks.compression.sidecar(sidecarFos, sidecar),
+          sidecarFos, sidecarTemp, sidecarName, true));
+    }
+    return ret;
+  }
+
+  /** Determines the type of output for dir/name, to choose the compression settings */
+  Compression.OutputClass classify(String dir, String name) {
+    String root = callbacks.getDicomWebDir();
+    if (dir.startsWith(root + "/instances")) return Compression.OutputClass.INSTANCES;
+    if (dir.startsWith(root + "/deduplicated")) return Compression.OutputClass.DEDUPLICATED;
+    // The study level deduplicated file is read back when updating the study, and never served
+    if (name.equals("deduplicated") || name.endsWith("/deduplicated")) return Compression.OutputClass.DEDUPLICATED;
+    if (name.equals("metadata") || name.endsWith("/metadata")) return Compression.OutputClass.METADATA;
+    if (name.startsWith("bulkdata/") || name.contains("/frames") || name.contains("/rendered") ||
+        name.contains("/pixeldata")) {
+      return Compression.OutputClass.BULKDATA;
+    }
+    return Compression.OutputClass.QUERY;
+  }
+
+  /**
+   * Writes to a temporary file which is renamed to the final name on close.  For non-gzip output the file
+   * channel is available, so that data can be transferred directly from other files.
+   * Any sidecars are written with the same data, and renamed just before this file.
+   */
+  public static class TempFileOutputStream extends FilterOutputStream {
+    private final FileOutputStream fos;
+    private final File tempFile;
+    private final File finalName;
+    private final boolean overwrite;
+    private final List<TempFileOutputStream> sidecars = new ArrayList<>(1);
+    private final long start = Metrics.start();
+    private Metrics metrics;
+    private Runnable onClose;
+    private boolean closed = false;
+
+    TempFileOutputStream(OutputStream os, FileOutputStream fos, File tempFile, File finalName, boolean overwrite) {
+      super(os);
+      this.fos = fos;
+      this.tempFile = tempFile;
+      this.finalName = finalName;
+      this.overwrite = overwrite;
+    }
+
+    /** Returns the channel to write to directly, or null if the output is being compressed */
+    public FileChannel getChannel() {
+      return out == fos ? fos.getChannel() : null;
+    }
+
+    /** Records the write and rename times of this file in metrics */
+    TempFileOutputStream setMetrics(Metrics metrics) {
+      this.metrics = metrics;
+      return this;
+    }
+
+    /** Runs onClose, when not null, after the file is renamed into place */
+    TempFileOutputStream setOnClose(Runnable onClose) {
+      this.onClose = onClose;
+      return this;
+    }
+
+    void addSidecar(TempFileOutputStream sidecar) {
+      sidecars.add(sidecar);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      for (var sidecar : sidecars) sidecar.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      for (var sidecar : sidecars) sidecar.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      for (var sidecar : sidecars) sidecar.close();
+      super.close();
+      safeClose(out);
+      safeClose(fos);
+      closed = true;
+      if (metrics == null) {
         renameTo(tempFile, finalName, overwrite);
+      } else {
+        long renameStart = Metrics.start();
+        metrics.record(Metrics.Stage.WRITE, start);
+        renameTo(tempFile, finalName, overwrite);
+        metrics.record(Metrics.Stage.RENAME, renameStart);
       }
-    };
+      if (onClose != null) onClose.run();
+    }
+
+    /** Closes the file without renaming it into place, deleting the partial temporary file and its sidecars */
+    public void abort() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      for (var sidecar : sidecars) sidecar.abort();
+      safeClose(out);
+      safeClose(fos);
+      tempFile.delete();
+    }
   }
 
   /**
    * Generates a hash of a given path, generation levels sub-directories for it
    */
   public String hashOf(File file, long offset, long length) {
+    long start = Metrics.start();
     try (InputStream is = new FileInputStream(file)) {
       is.skip(offset);
       MessageDigest digest = MessageDigest.getInstance("SHA-1");
@@ -79,6 +215,7 @@ public class FileHandler {
         len = is.read(data, 0, readLen);
       }
       String sha1 = new BigInteger(1, digest.digest()).toString(32);
+      callbacks.metrics.record(Metrics.Stage.HASH, start);
       return sha1.substring(0, 2) + "/" + sha1.substring(2);
     } catch (NoSuchAlgorithmException e) {
       throw new Error(e);
@@ -107,23 +244,141 @@ public class FileHandler {
   }
 
   /**
-   * List the file names for the given directory with an increasing age (newest first)
+   * List the file names for the given directory by modified time, oldest first, so that data read from them in
+   * order leaves the newest version in place.  Files with the same time are in directory order.
    *
    * @param dir to find the list for
    * @return list of items
    */
   public List<String> listContentsIncreasingAge(String dir) {
-    File dirFile = new File(dir);
-    String[] items = dirFile.list();
-    if (items == null || items.length == 0) return Collections.emptyList();
-    var files = new ArrayList<>(Arrays.asList(items));
-    var ages = new HashMap<String, Long>();
-    files.forEach(name -> ages.put(name, new File(dir, name).lastModified()));
-
-    files.sort((a, b) -> {
-      return (int) Math.signum(ages.get(a) - ages.get(b));
-    });
-    return files;
+    return listContents(dir).getNames();
+  }
+
+  /** Lists the directory with the modified time of each entry, oldest first, from the cache when enabled */
+  public Listing listContents(String dir) {
+    Path path = listingKey(new File(dir));
+    if (!listingCache) return Listing.read(path);
+    Listing cached = listings.get(path);
+    long dirModified = new File(dir).lastModified();
+    if (cached != null && cached.dirModified == dirModified && dirModified != 0) return cached;
+    Listing listing = Listing.read(path);
+    listing.dirModified = dirModified;
+    listings.put(path, listing);
+    return listing;
+  }
+
+  private static Path listingKey(File file) {
+    return file.toPath().toAbsolutePath().normalize();
+  }
+
+  /**
+   * Returns a callback that forgets the cached listings changed by writing file: its directory, and the directory
+   * above as the modified time of the entry for the directory changes.
+   */
+  private Runnable invalidator(File file) {
+    Path parent = listingKey(file).getParent();
+    return () -> {
+      if (parent == null) return;
+      listings.remove(parent);
+      if (parent.getParent() != null) listings.remove(parent.getParent());
+    };
+  }
+
+  /** The names and modified times of the entries of a directory, oldest first */
+  public static class Listing {
+    private final String[] names;
+    private final long[] lastModified;
+    private volatile long dirModified;
+
+    Listing(String[] names, long[] lastModified) {
+      this.names = names;
+      this.lastModified = lastModified;
+    }
+
+    public int size() {
+      return names.length;
+    }
+
+    public String getName(int i) {
+      return names[i];
+    }
+
+    public long getLastModified(int i) {
+      return lastModified[i];
+    }
+
+    public List<String> getNames() {
+      return Collections.unmodifiableList(Arrays.asList(names));
+    }
+
+    /** Reads the names and times in a single pass of the directory, using the attributes returned by the walk */
+    static Listing read(Path dir) {
+      List<String> names = new ArrayList<>();
+      long[][] times = {new long[64]};
+      try {
+        Files.walkFileTree(dir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            if (file.equals(dir)) return FileVisitResult.CONTINUE;
+            if (names.size() == times[0].length) times[0] = Arrays.copyOf(times[0], names.size() * 2);
+            times[0][names.size()] = attrs.lastModifiedTime().toMillis();
+            names.add(file.getFileName().toString());
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException e) {
+            // Removed while listing, or unreadable - leave it out as the old listing did for missing files
+            return FileVisitResult.CONTINUE;
+          }
+        });
+      } catch (NoSuchFileException e) {
+        return new Listing(new String[0], new long[0]);
+      } catch (IOException e) {
+        log.warn("Unable to list {}", dir, e);
+        return new Listing(new String[0], new long[0]);
+      }
+      if (names.isEmpty()) return new Listing(new String[0], new long[0]);
+      return sorted(names.toArray(new String[0]), Arrays.copyOf(times[0], names.size()));
+    }
+
+    /**
+     * Sorts by time with a primitive sort: each key is the time relative to the oldest in the high bits and the
+     * directory position in the low bits, which also keeps equal times in directory order.  Falls back to a
+     * boxed sort when the times span too long to fit.
+     */
+    static Listing sorted(String[] names, long[] times) {
+      int n = names.length;
+      long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+      for (long time : times) {
+        min = Math.min(min, time);
+        max = Math.max(max, time);
+      }
+      int indexBits = 32 - Integer.numberOfLeadingZeros(n);
+      long range = max - min;
+      String[] sortedNames = new String[n];
+      long[] sortedTimes = new long[n];
+      if (range >= 0 && range < (1L << (63 - indexBits))) {
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) keys[i] = ((times[i] - min) << indexBits) | i;
+        Arrays.sort(keys);
+        long mask = (1L << indexBits) - 1;
+        for (int i = 0; i < n; i++) {
+          int index = (int) (keys[i] & mask);
+          sortedNames[i] = names[index];
+          sortedTimes[i] = times[index];
+        }
+      } else {
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(times[a], times[b]));
+        for (int i = 0; i < n; i++) {
+          sortedNames[i] = names[order[i]];
+          sortedTimes[i] = times[order[i]];
+        }
+      }
+      return new Listing(sortedNames, sortedTimes);
+    }
   }
 
   public static void rmdir(File tempDir) {
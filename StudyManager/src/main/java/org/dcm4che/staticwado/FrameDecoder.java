@@ -0,0 +1,147 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.BulkData;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.imageio.plugins.dcm.DicomImageReader;
+
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Decodes the frames of one instance for transcoding, so that each frame is decoded at most once.  The raster of
+ * the thumbnail frame is kept for the thumbnail rather than decoded again, and native little endian frames that
+ * aren't planar are read straight into pooled buffers of the same geometry rather than through the image reader.
+ */
+public class FrameDecoder implements AutoCloseable {
+    private static final Set<String> NATIVE_PMI = new HashSet<>(Arrays.asList(
+            "MONOCHROME1", "MONOCHROME2", "RGB", "PALETTE COLOR", "YBR_FULL"));
+
+    private final DicomImageReader reader;
+    private final ImageTypeSpecifier specifier;
+    private final RasterPool pool;
+    private final int keepFrame;
+    private final boolean nativeFrames;
+    private final Set<DataBuffer> pooled = Collections.newSetFromMap(new IdentityHashMap<>());
+    private WritableRaster kept;
+    private WritableRaster last;
+
+    /**
+     * Creates a decoder for the instance attr, keeping the raster of keepFrame (1 based, 0 for none).
+     */
+    public FrameDecoder(DicomImageReader reader, Attributes attr, ImageTypeSpecifier specifier, RasterPool pool,
+                        int keepFrame) {
+        this.reader = reader;
+        this.specifier = specifier;
+        this.pool = pool;
+        this.keepFrame = keepFrame;
+        String tsuid = attr.getString(Tag.AvailableTransferSyntaxUID);
+        int bitsAllocated = attr.getInt(Tag.BitsAllocated, 8);
+        this.nativeFrames = (UID.ImplicitVRLittleEndian.equals(tsuid) || UID.ExplicitVRLittleEndian.equals(tsuid))
+                && (bitsAllocated == 8 || bitsAllocated == 16)
+                && NATIVE_PMI.contains(attr.getString(Tag.PhotometricInterpretation, "MONOCHROME2"))
+                // Planar colour frames have a banded sample model, which can't be built over one pooled bank
+                && (attr.getInt(Tag.SamplesPerPixel, 1) == 1 || attr.getInt(Tag.PlanarConfiguration, 0) == 0);
+    }
+
+    public DicomImageReader getReader() {
+        return reader;
+    }
+
+    public ImageTypeSpecifier getSpecifier() {
+        return specifier;
+    }
+
+    /** Returns the kept raster of the thumbnail frame, or null if it wasn't decoded */
+    public WritableRaster getKept() {
+        return kept;
+    }
+
+    /**
+     * Decodes frame (1 based), reading native data from bulk directly when possible.  The raster of the previous
+     * frame is returned to the pool, so it must have been written out before the next read.
+     */
+    public WritableRaster read(int frame, Object bulk) throws IOException {
+        release(last);
+        last = null;
+        if (frame == keepFrame && kept != null) return kept;
+        WritableRaster raster = null;
+        if (nativeFrames && bulk instanceof BulkData) {
+            raster = readNative((BulkData) bulk);
+        }
+        if (raster == null) {
+            raster = (WritableRaster) reader.readRaster(frame - 1, null);
+        }
+        if (frame == keepFrame) {
+            kept = raster;
+        } else {
+            last = raster;
+        }
+        return raster;
+    }
+
+    private void release(WritableRaster raster) {
+        if (raster == null) return;
+        DataBuffer buffer = raster.getDataBuffer();
+        if (pooled.remove(buffer)) pool.release(buffer);
+    }
+
+    private WritableRaster readNative(BulkData bulk) throws IOException {
+        SampleModel sampleModel = specifier.getSampleModel();
+        int dataType = sampleModel.getDataType();
+        int size = sampleModel.getWidth() * sampleModel.getHeight() * sampleModel.getNumBands();
+        int bytesPerSample = dataType == DataBuffer.TYPE_BYTE ? 1 : 2;
+        if (bulk.longLength() < (long) size * bytesPerSample) return null;
+        DataBuffer buffer = pool.take(dataType, size);
+        try (InputStream is = new FileInputStream(bulk.getFile())) {
+            BulkDataReader.skipFully(is, bulk.offset());
+            if (dataType == DataBuffer.TYPE_BYTE) {
+                readFully(is, ((DataBufferByte) buffer).getData(), size);
+            } else {
+                readLittleEndian(is, ((DataBufferUShort) buffer).getData(), size);
+            }
+        }
+        pooled.add(buffer);
+        return Raster.createWritableRaster(sampleModel, buffer, null);
+    }
+
+    private static void readFully(InputStream is, byte[] data, int length) throws IOException {
+        if (is.readNBytes(data, 0, length) != length) throw new IOException("Frame is shorter than " + length);
+    }
+
+    private static void readLittleEndian(InputStream is, short[] data, int length) throws IOException {
+        byte[] chunk = new byte[Math.min(length * 2, 64 * 1024)];
+        int position = 0;
+        while (position < length) {
+            int count = Math.min(chunk.length / 2, length - position);
+            readFully(is, chunk, count * 2);
+            for (int i = 0; i < count; i++) {
+                data[position++] = (short) ((chunk[2 * i] & 0xFF) | ((chunk[2 * i + 1] & 0xFF) << 8));
+            }
+        }
+    }
+
+    /** Returns the kept and last buffers to the pool */
+    @Override
+    public void close() {
+        release(last);
+        release(kept);
+        last = null;
+        kept = null;
+        pooled.clear();
+    }
+}
@@ -0,0 +1,91 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.BulkData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes all the frames of an instance into a single container file, frames.pack, instead of one file per frame.
+ * The frames are stored raw, one after the other, so each frame can be served as a byte range of the container.
+ * The offsets and lengths are recorded in the BulkDataURI of the pixel data, and in a frames.pack.json index of
+ * frame, offset, length and content type for servers that don't read the metadata.
+ */
+public class FramePack implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(FramePack.class);
+
+    public static final String EXTENSION = ".pack";
+    public static final String INDEX_EXTENSION = ".pack.json";
+
+    private final ExtractImageFrames extract;
+    private final String dir;
+    private final String name;
+    private final List<long[]> frames = new ArrayList<>();
+    private final List<String> contentTypes = new ArrayList<>();
+    private OutputStream os;
+    private long position;
+
+    /** Creates a pack for the frames directory name, eg series/1/instances/2/frames */
+    public FramePack(ExtractImageFrames extract, String dir, String framesName) {
+        this.extract = extract;
+        this.dir = dir;
+        this.name = framesName + EXTENSION;
+    }
+
+    /** Returns the name of the container file, relative to the studies directory */
+    public String getName() {
+        return name;
+    }
+
+    /** Appends the frame data to the container, returning the bulkdata location of it */
+    public BulkData add(Object value, String contentType) throws IOException {
+        if (os == null) {
+            os = extract.callbacks.fileHandler.openForWrite(dir, name, false, true);
+        }
+        long length = extract.copyFrom(value, os);
+        frames.add(new long[]{position, length});
+        contentTypes.add(contentType);
+        BulkData ret = new BulkData(name, position, -1, false);
+        ret.setLength(length);
+        position += length;
+        return ret;
+    }
+
+    /** Discards the partially written container, so an instance that failed part way leaves no pack behind */
+    public void abort() {
+        if (os == null) return;
+        if (os instanceof FileHandler.TempFileOutputStream) {
+            ((FileHandler.TempFileOutputStream) os).abort();
+        } else {
+            FileHandler.safeClose(os);
+        }
+        os = null;
+        log.warn("Discarded partial frame pack {}", name);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (os == null) return;
+        os.close();
+        os = null;
+        StringBuilder index = new StringBuilder("[");
+        for (int i = 0; i < frames.size(); i++) {
+            if (i > 0) index.append(",\n");
+            index.append("{\"frame\":").append(i + 1)
+                    .append(",\"offset\":").append(frames.get(i)[0])
+                    .append(",\"length\":").append(frames.get(i)[1])
+                    .append(",\"contentType\":\"").append(contentTypes.get(i).replace("\"", "\\\"")).append("\"}");
+        }
+        index.append("]\n");
+        try (OutputStream indexOs = extract.callbacks.fileHandler.openForWrite(dir,
+                name.substring(0, name.length() - EXTENSION.length()) + INDEX_EXTENSION, false, true)) {
+            indexOs.write(index.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        log.debug("Packed {} frames into {} length {}", frames.size(), name, position);
+    }
+}
@@ -43,6 +43,7 @@ public class InstanceDeduplicate implements BiConsumer<SopId,Attributes> {
      * @return
      */
     public void accept(SopId id,Attributes srcAttr) {
+        long traceStart = Metrics.start();
         StudyData studyData = id.getStudyData();
         if( callbacks.isInstanceMetadata() ) {
             JsonAccess.write(callbacks.fileHandler, callbacks.getStudiesDir(id),
@@ -54,7 +55,9 @@ public class InstanceDeduplicate implements BiConsumer<SopId,Attributes> {
         for(TagLists selector : deduplicateSelectors) {
             Attributes testAttr = selector.select(srcAttr);
             selector.remove(dedupped);
+            long start = Metrics.start();
             String hashKey = hashAttributes(testAttr);
+            callbacks.metrics.record(Metrics.Stage.HASH, start);
             testAttr.setString(DEDUPPED_CREATER, DEDUPPED_HASH, VR.ST, hashKey);
             selector.addTypeTo(testAttr);
             callbacks.extractConsumer.accept(id,testAttr);
@@ -65,6 +68,7 @@ public class InstanceDeduplicate implements BiConsumer<SopId,Attributes> {
         dedupped.setString(Tag.SOPInstanceUID,VR.UI,id.getSopInstanceUid());
         log.warn("destination for deduplicate available tsuid {}", dedupped.getString(Tag.AvailableTransferSyntaxUID));
         callbacks.deduplicatedConsumer.accept(id,dedupped);
+        callbacks.tracer.record(id.getStudyInstanceUid(), "deduplicate", traceStart, id.getSopInstanceUid());
     }
 
 }
@@ -3,6 +3,7 @@ package org.dcm4che.staticwado;
 import org.dcm4che3.data.Attributes;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileAlreadyExistsException;
 import java.util.*;
 
@@ -15,20 +16,49 @@ import org.slf4j.LoggerFactory;
 import javax.json.Json;
 import javax.json.JsonValue;
 import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
 import javax.json.stream.JsonParser;
 
 public class JsonAccess {
   private static final Logger log = LoggerFactory.getLogger(JsonAccess.class);
 
+  private static final int BUFFER_SIZE = 16 * 1024;
+
   private static boolean encodeAsNumber = true;
   private static boolean pretty = false;
+  // Looking up the JSON provider is expensive, so the factory is created once for the configuration
+  private static volatile JsonGeneratorFactory generatorFactory;
+
+  static JsonGeneratorFactory getGeneratorFactory() {
+    JsonGeneratorFactory ret = generatorFactory;
+    if (ret == null) {
+      Map<String, ?> conf = new HashMap<String, Object>(2);
+      if (pretty) {
+        conf.put(JsonGenerator.PRETTY_PRINTING, null);
+      }
+      ret = Json.createGeneratorFactory(conf);
+      generatorFactory = ret;
+    }
+    return ret;
+  }
 
   public static JsonGenerator createGenerator(OutputStream out) {
-    Map<String, ?> conf = new HashMap<String, Object>(2);
-    if (pretty) {
-      conf.put(JsonGenerator.PRETTY_PRINTING, null);
+    return getGeneratorFactory().createGenerator(new JsonOutput(out));
+  }
+
+  /**
+   * A buffered UTF-8 writer that ignores flushes, so that flushing the generator after each dataset only moves
+   * its buffered text here, rather than flushing it all the way through the compression to the file.
+   * The data is written out when the buffer fills, and on close.
+   */
+  static class JsonOutput extends BufferedWriter {
+    JsonOutput(OutputStream os) {
+      super(new OutputStreamWriter(os, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    @Override
+    public void flush() {
     }
-    return Json.createGeneratorFactory(conf).createGenerator(out);
   }
 
   public static org.dcm4che3.json.JSONWriter createWriter(JsonGenerator generator) {
@@ -49,7 +79,16 @@ public class JsonAccess {
    * @param attributes is an array of objects to write to the given location
    */
   public static void write(FileHandler handler, String dir, String dest, boolean overwrite, Attributes... attributes) {
-    log.debug("Writing {} instances to {}", attributes.length, dest);
+    write(handler, dir, dest, overwrite, Arrays.asList(attributes));
+  }
+
+  /**
+   * Writes the attributes to the destination file, as they are iterated, so that the attributes don't all
+   * have to be in memory at once.
+   */
+  public static void write(FileHandler handler, String dir, String dest, boolean overwrite, Iterable<Attributes> attributes) {
+    log.debug("Writing instances to {}", dest);
+    long start = Metrics.start();
     try (OutputStream fos = handler.openForWrite(dir, dest, true, overwrite)) {
       write(fos,attributes);
     } catch (FileAlreadyExistsException e) {
@@ -57,18 +96,29 @@ public class JsonAccess {
     } catch (IOException e) {
       log.warn("Unable to write file {}", dest, e);
     }
+    handler.callbacks.metrics.record(Metrics.Stage.JSON, start);
     log.debug("Wrote to {} / {}", dir, dest);
   }
 
   public static void write(OutputStream os, Attributes... attributes) throws IOException {
-    try (JsonGenerator generator = createGenerator(os)) {
+    write(os, Arrays.asList(attributes));
+  }
+
+  /**
+   * Writes the attributes as a JSON array, one dataset per line.  The output bytes are also the input to the
+   * hash values, so the layout must not change.
+   */
+  public static void write(OutputStream os, Iterable<Attributes> attributes) throws IOException {
+    JsonOutput out = new JsonOutput(os);
+    try (JsonGenerator generator = getGeneratorFactory().createGenerator(out)) {
+      org.dcm4che3.json.JSONWriter writer = createWriter(generator);
       generator.writeStartArray();
       for (Attributes attr : attributes) {
-        org.dcm4che3.json.JSONWriter writer = createWriter(generator);
         writer.write(attr);
         log.debug("Wrote {} tags", attr.size());
+        // Only moves the generator text into out, so that the newline is after it
         generator.flush();
-        os.write('\n');
+        out.write('\n');
       }
       generator.writeEnd();
     }
@@ -76,32 +126,42 @@ public class JsonAccess {
 
   /** Writes a file to the given location */
   public static void writeSingle(FileHandler handler, String dir, String dest, Attributes data) {
-    try (OutputStream fos = handler.openForWrite(dir, dest, true, false); JsonGenerator generator = createGenerator(fos)) {
-      org.dcm4che3.json.JSONWriter writer = createWriter(generator);
-      writer.write(data);
-      log.debug("Wrote {} tags", data.size());
-      generator.flush();
-      fos.write('\n');
+    long start = Metrics.start();
+    try (OutputStream fos = handler.openForWrite(dir, dest, true, false)) {
+      JsonOutput out = new JsonOutput(fos);
+      try (JsonGenerator generator = getGeneratorFactory().createGenerator(out)) {
+        org.dcm4che3.json.JSONWriter writer = createWriter(generator);
+        writer.write(data);
+        log.debug("Wrote {} tags", data.size());
+        generator.flush();
+        out.write('\n');
+      }
     } catch (FileAlreadyExistsException e) {
       return;
     } catch (IOException e) {
       log.warn("Unable to write file {}", dest, e);
     }
+    handler.callbacks.metrics.record(Metrics.Stage.JSON, start);
     log.debug("Wrote single to {} / {}", dir, dest);
   }
 
   public static List<Attributes> read(FileHandler handler, String dir, String name) throws IOException {
-    List<Attributes> ret = new ArrayList<>();
     log.debug("Reading JSON file {}/{}", dir,name);
     try (InputStream is = handler.read(dir, name)) {
-      JsonParser parser = Json.createParser(is);
-      new JSONReader(parser).readDatasets((fmi, attr) -> {
-        ret.add(attr);
-      });
-      return ret;
+      return read(is);
     }
   }
 
+  /** Reads a JSON list of datasets from the stream */
+  public static List<Attributes> read(InputStream is) {
+    List<Attributes> ret = new ArrayList<>();
+    JsonParser parser = Json.createParser(is);
+    new JSONReader(parser).readDatasets((fmi, attr) -> {
+      ret.add(attr);
+    });
+    return ret;
+  }
+
 
   public static Attributes readSingle(FileHandler handler, String dir, String name) throws IOException {
     try (InputStream is = handler.read(dir, name)) {
@@ -111,7 +171,12 @@ public class JsonAccess {
       return attr;
     }
   }
+  static boolean isPretty() {
+    return pretty;
+  }
+
   public void setPretty(boolean b) {
     pretty = b;
+    generatorFactory = null;
   }
 }
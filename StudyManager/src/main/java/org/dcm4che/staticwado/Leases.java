@@ -0,0 +1,153 @@
+package org.dcm4che.staticwado;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Lease files in the shared DICOMweb tree, used to let several nodes work on the same tree without an external
+ * coordinator.  A lease is claimed by atomically creating name.lease containing the owner, and is held until it is
+ * released or its modified time is older than the lease time, so holders renew long running leases.  An expired
+ * lease is taken over by renaming it away, which only one node can do, then claiming it again.
+ * Two nodes taking over the same expired lease at the same moment can, rarely, both end up working on it; the
+ * work done under a lease only writes hash named files and renames complete files into place, so that costs
+ * duplicate work rather than damaged output.
+ */
+public class Leases {
+    private static final Logger log = LoggerFactory.getLogger(Leases.class);
+
+    public static final long DEFAULT_LEASE_MILLIS = 10 * 60 * 1000L;
+    private static final String EXTENSION = ".lease";
+
+    private final Path dir;
+    private final long leaseMillis;
+    private final String owner;
+
+    public Leases(File dir, long leaseMillis) {
+        this.dir = dir.toPath();
+        this.leaseMillis = leaseMillis;
+        this.owner = hostName() + "-" + ProcessHandle.current().pid() + "-" +
+                Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    /** Claims the named lease, returning true if this node now holds it */
+    public boolean tryAcquire(String name) {
+        Path lease = dir.resolve(name + EXTENSION);
+        try {
+            if (create(lease)) return true;
+            if (!isExpired(lease)) return false;
+            Path expired = dir.resolve(name + EXTENSION + "." + owner + ".expired");
+            try {
+                Files.move(lease, expired);
+            } catch (NoSuchFileException e) {
+                // Released, or taken over by another node, since it was checked
+            }
+            Files.deleteIfExists(expired);
+            if (!create(lease)) return false;
+            log.warn("Took over expired lease {}", lease);
+            return true;
+        } catch (IOException e) {
+            log.warn("Unable to claim lease {}", lease, e);
+            return false;
+        }
+    }
+
+    /**
+     * Tries for the named lease until maxWaitMillis has passed, backing off between tries.  Returns false if it
+     * still could not be claimed, or the thread was interrupted.
+     */
+    public boolean tryAcquire(String name, long maxWaitMillis) {
+        long end = System.currentTimeMillis() + maxWaitMillis;
+        long sleep = 10;
+        while (!tryAcquire(name)) {
+            long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            try {
+                Thread.sleep(Math.min(sleep, remaining));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            sleep = Math.min(sleep * 2, 200);
+        }
+        return true;
+    }
+
+    /** Extends the named lease by the lease time, if it is still held by this node */
+    public void renew(String name) {
+        Path lease = dir.resolve(name + EXTENSION);
+        try {
+            if (isOwned(lease)) Files.setLastModifiedTime(lease, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            log.warn("Unable to renew lease {}", lease, e);
+        }
+    }
+
+    /** Releases the named lease, if it is still held by this node */
+    public void release(String name) {
+        Path lease = dir.resolve(name + EXTENSION);
+        try {
+            if (isOwned(lease)) {
+                Files.deleteIfExists(lease);
+            } else {
+                log.warn("Lease {} was taken over before it was released", lease);
+            }
+        } catch (IOException e) {
+            log.warn("Unable to release lease {}", lease, e);
+        }
+    }
+
+    private boolean create(Path lease) throws IOException {
+        Files.createDirectories(dir);
+        try {
+            Files.write(lease, owner.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    private boolean isExpired(Path lease) throws IOException {
+        try {
+            return Files.getLastModifiedTime(lease).toMillis() + leaseMillis < System.currentTimeMillis();
+        } catch (NoSuchFileException e) {
+            return true;
+        }
+    }
+
+    private boolean isOwned(Path lease) throws IOException {
+        try {
+            return owner.equals(new String(Files.readAllBytes(lease), StandardCharsets.UTF_8));
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            return "localhost";
+        }
+    }
+}
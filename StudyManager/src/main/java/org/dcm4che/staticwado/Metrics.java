@@ -0,0 +1,270 @@
+package org.dcm4che.staticwado;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread safe, low overhead metrics: event counters and a latency histogram per pipeline stage.  Stages are timed
+ * with start/record, which only reads the nano time, and the histograms use log-linear buckets (HDR style,
+ * about 6% precision) so p99s can be reported without keeping samples.  Stages nest: a JSON write includes the
+ * gzip and file write of the same file.
+ * The metrics are exported as JSON snapshots written periodically to a file, and in the Prometheus text format.
+ */
+public class Metrics {
+    private static final Logger log = LoggerFactory.getLogger(Metrics.class);
+
+    public static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    public enum Stage {
+        /** Parsing a DICOM file or received dataset */
+        PARSE,
+        /** Decoding a frame to a raster */
+        DECODE,
+        /** Encoding a frame or thumbnail */
+        ENCODE,
+        /** Hashing attributes or bulkdata */
+        HASH,
+        /** Deflating output, including the writes it drives */
+        GZIP,
+        /** Writing a file, from open to close */
+        WRITE,
+        /** Renaming a written temporary file into place */
+        RENAME,
+        /** Writing a JSON file */
+        JSON,
+        /** Serving an HTTP request */
+        SERVE;
+
+        public String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final Map<Stage, Histogram> histograms = new EnumMap<>(Stage.class);
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private ScheduledExecutorService snapshots;
+    // Writes the final snapshot, replaced on each startSnapshots so only the latest file is written on exit
+    Thread shutdownHook;
+
+    public Metrics() {
+        for (Stage stage : Stage.values()) histograms.put(stage, new Histogram());
+    }
+
+    /** Returns the start time to pass to record */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /** Records the time since start, from start(), against the stage */
+    public void record(Stage stage, long start) {
+        histograms.get(stage).record(System.nanoTime() - start);
+    }
+
+    public Histogram getHistogram(Stage stage) {
+        return histograms.get(stage);
+    }
+
+    /** Adds one to the named counter */
+    public void count(String name) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).increment();
+    }
+
+    public long getCount(String name) {
+        LongAdder adder = counters.get(name);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    /** Returns the metrics in the Prometheus text exposition format */
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# HELP staticwado_stage_seconds Time spent in each pipeline stage\n");
+        sb.append("# TYPE staticwado_stage_seconds summary\n");
+        for (var entry : histograms.entrySet()) {
+            String stage = entry.getKey().label();
+            Snapshot snapshot = entry.getValue().snapshot();
+            for (double quantile : QUANTILES) {
+                sb.append("staticwado_stage_seconds{stage=\"").append(stage).append("\",quantile=\"").append(quantile)
+                        .append("\"} ").append(seconds(snapshot.quantile(quantile))).append('\n');
+            }
+            sb.append("staticwado_stage_seconds_sum{stage=\"").append(stage).append("\"} ")
+                    .append(seconds(snapshot.total)).append('\n');
+            sb.append("staticwado_stage_seconds_count{stage=\"").append(stage).append("\"} ")
+                    .append(snapshot.count).append('\n');
+        }
+        sb.append("# HELP staticwado_events_total Count of pipeline events\n");
+        sb.append("# TYPE staticwado_events_total counter\n");
+        new TreeMap<>(counters).forEach((name, adder) -> sb.append("staticwado_events_total{event=\"")
+                .append(escapeLabel(name)).append("\"} ").append(adder.sum()).append('\n'));
+        return sb.toString();
+    }
+
+    /** Writes the current metrics as JSON */
+    public void writeJson(Writer writer) {
+        try (JsonGenerator generator = Json.createGenerator(writer)) {
+            generator.writeStartObject();
+            generator.write("time", Instant.now().toString());
+            generator.writeStartObject("stages");
+            for (var entry : histograms.entrySet()) {
+                Snapshot snapshot = entry.getValue().snapshot();
+                generator.writeStartObject(entry.getKey().label());
+                generator.write("count", snapshot.count);
+                generator.write("totalSeconds", seconds(snapshot.total));
+                generator.write("meanSeconds", snapshot.count == 0 ? 0 : seconds(snapshot.total) / snapshot.count);
+                for (int i = 0; i < QUANTILES.length; i++) {
+                    generator.write(QUANTILE_NAMES[i], seconds(snapshot.quantile(QUANTILES[i])));
+                }
+                generator.write("maxSeconds", seconds(snapshot.max));
+                generator.writeEnd();
+            }
+            generator.writeEnd();
+            generator.writeStartObject("counters");
+            new TreeMap<>(counters).forEach((name, adder) -> generator.write(name, adder.sum()));
+            generator.writeEnd();
+            generator.writeEnd();
+        }
+    }
+
+    /** Writes a JSON snapshot to file, replacing it atomically */
+    public void writeSnapshot(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+        File temp = new File(parent, "temp-" + Math.random());
+        try (Writer writer = new OutputStreamWriter(Files.newOutputStream(temp.toPath()), StandardCharsets.UTF_8)) {
+            writeJson(writer);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** Writes a snapshot to file every period seconds, and once more on shutdown */
+    public synchronized Metrics startSnapshots(File file, long period) {
+        if (snapshots != null) snapshots.shutdownNow();
+        snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Runnable write = () -> {
+            try {
+                writeSnapshot(file);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Unable to write metrics to {}", file, e);
+            }
+        };
+        snapshots.scheduleAtFixedRate(write, period, period, TimeUnit.SECONDS);
+        if (shutdownHook != null) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // Already shutting down, so the old hook is running
+            }
+        }
+        shutdownHook = new Thread(write, "metrics-final");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        return this;
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * A latency histogram of nanosecond values.  Values under 16 have their own bucket, and every power of two
+     * above that is split into 16 linear sub-buckets.
+     */
+    public static class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+        static int index(long value) {
+            if (value < SUB_BUCKETS) return (int) Math.max(value, 0);
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /** The largest value in the bucket */
+        static long upperBound(int index) {
+            if (index < SUB_BUCKETS) return index;
+            int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+            int sub = index % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+        }
+
+        public void record(long value) {
+            counts.incrementAndGet(index(value));
+            total.add(value);
+            max.accumulate(value);
+        }
+
+        public Snapshot snapshot() {
+            long[] copy = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = counts.get(i);
+                count += copy[i];
+            }
+            return new Snapshot(copy, count, total.sum(), max.get());
+        }
+    }
+
+    /** A point in time copy of a histogram */
+    public static class Snapshot {
+        private final long[] counts;
+        public final long count;
+        public final long total;
+        public final long max;
+
+        Snapshot(long[] counts, long count, long total, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        /** Returns the value at the quantile (0..1), as the upper bound of its bucket, or 0 if empty */
+        public long quantile(double quantile) {
+            if (count == 0) return 0;
+            long target = Math.max(1, (long) Math.ceil(quantile * count));
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                if (cumulative >= target) return Math.min(Histogram.upperBound(i), max);
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.dcm4che.staticwado;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Completes the studies in the notify directory on several threads, and on several nodes sharing the DICOMweb
+ * tree, each study being claimed with a lease first so only one node groups and writes it at a time.  Studies
+ * already leased by another node are left to it.  When the notified data of a study changes while it is being
+ * completed, such as another instance arriving, or the studies index is leased by another node, the study is
+ * queued again, behind the other studies, until it completes with no change or has had MAX_PASSES tries.
+ */
+public class NotifyScanner {
+    private static final Logger log = LoggerFactory.getLogger(NotifyScanner.class);
+
+    public static final int MAX_PASSES = 10;
+
+    private final StudyManager callbacks;
+    private final Leases leases;
+    private final int threads;
+    private final Set<String> held = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final Phaser phaser = new Phaser(1);
+    private ExecutorService pool;
+    private String notifyDir;
+
+    public NotifyScanner(StudyManager callbacks, Leases leases, int threads) {
+        this.callbacks = callbacks;
+        this.leases = leases;
+        this.threads = Math.max(1, threads);
+    }
+
+    /** Completes the notified studies, returning the number completed by this node */
+    public int scan() {
+        notifyDir = callbacks.getNotifyDir();
+        List<String> studies = callbacks.fileHandler.listContentsIncreasingAge(notifyDir);
+        if (studies.isEmpty()) return 0;
+        pool = Executors.newFixedThreadPool(threads);
+        ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "LeaseRenewer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long renewMillis = Math.max(leases.getLeaseMillis() / 3, 1);
+        renewer.scheduleAtFixedRate(() -> held.forEach(leases::renew), renewMillis, renewMillis, TimeUnit.MILLISECONDS);
+        try {
+            studies.forEach(study -> submit(study, 1));
+            phaser.arriveAndAwaitAdvance();
+        } finally {
+            renewer.shutdownNow();
+            pool.shutdown();
+        }
+        log.warn("Completed {} of {} notified studies", completed.get(), studies.size());
+        return completed.get();
+    }
+
+    private void submit(String study, int pass) {
+        phaser.register();
+        pool.execute(() -> {
+            try {
+                complete(study, pass);
+            } finally {
+                phaser.arriveAndDeregister();
+            }
+        });
+    }
+
+    private void complete(String study, int pass) {
+        if (!leases.tryAcquire(study)) {
+            callbacks.studyStats.add("Leased Elsewhere", 100, "Study {} is leased by another node", study);
+            return;
+        }
+        boolean changed = false;
+        boolean indexBusy = false;
+        held.add(study);
+        try {
+            String studyDir = notifyDir + "/" + study;
+            String before = stamp(studyDir);
+            StudyData data = new StudyData(study, callbacks);
+            data.readDeduplicatedGroup();
+            data.readDeduplicatedInstances();
+            if (data.isEmpty()) return;
+            callbacks.studyHandler.completeStudy(data);
+            completed.incrementAndGet();
+            changed = !before.equals(stamp(studyDir));
+        } catch (StudyConsumer.IndexBusyException e) {
+            indexBusy = true;
+            log.debug("Index busy completing {}", study, e);
+        } catch (RuntimeException e) {
+            log.warn("Unable to complete study {}", study, e);
+        } finally {
+            held.remove(study);
+            leases.release(study);
+        }
+        if (!changed && !indexBusy) return;
+        if (pass >= MAX_PASSES) {
+            log.warn("Study {} not completed after {} passes, leaving it for the next scan", study, pass);
+            return;
+        }
+        callbacks.studyStats.add("Requeued", 1, "Study {} {}, queued again", study,
+                indexBusy ? "couldn't lease the studies index" : "changed while completing");
+        submit(study, pass + 1);
+    }
+
+    /** Returns a stamp of the notified data of the study, the number of files and the newest modified time */
+    private String stamp(String studyDir) {
+        FileHandler.Listing listing = callbacks.fileHandler.listContents(studyDir);
+        int size = listing.size();
+        return size + ":" + (size == 0 ? 0 : listing.getLastModified(size - 1));
+    }
+}
@@ -0,0 +1,271 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.BulkData;
+import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.image.PhotometricInterpretation;
+import org.dcm4che3.imageio.plugins.dcm.DicomImageReader;
+import org.dcm4che3.imageio.plugins.dcm.DicomMetaData;
+import org.dcm4che3.io.DicomOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes reconstructed instances as DICOM, streaming the pixel data directly from the stored frame files.
+ * The attributes before the pixel data are written as a normal dataset, then the pixel data header, Basic Offset
+ * Table and fragment items are written with each frame copied straight from its file, and finally any attributes
+ * after the pixel data.  When the destination is a plain file, the frames are transferred file to file.
+ */
+public class Part10Writer {
+
+    /** Returns true if the transfer syntax uses encapsulated (fragment) pixel data */
+    public static boolean isEncapsulated(String tsuid) {
+        return tsuid != null && !(tsuid.equals(UID.ExplicitVRLittleEndian) ||
+                tsuid.equals(UID.ImplicitVRLittleEndian) ||
+                tsuid.equals(UID.DeflatedExplicitVRLittleEndian) ||
+                tsuid.equals(UID.ExplicitVRBigEndian));
+    }
+
+    /**
+     * Writes attr, in its available transfer syntax, to the stream.  Pixel data must be a BulkDataReader to be
+     * streamed from the frame files, otherwise it is written as a normal value.  The stream is left open, as it
+     * may belong to the caller, such as the PDV stream of an association.
+     */
+    public static void write(Attributes attr, OutputStream os, boolean includeFmi) throws IOException {
+        var tsuid = attr.getString(Tag.AvailableTransferSyntaxUID, UID.ImplicitVRLittleEndian);
+        Attributes fmi = null;
+        var streamTsuid = tsuid;
+        if (includeFmi) {
+            fmi = Attributes.createFileMetaInformation(attr.getString(Tag.SOPInstanceUID),
+                    attr.getString(Tag.SOPClassUID), tsuid);
+            streamTsuid = UID.ExplicitVRLittleEndian;
+        }
+        Object pixelData = attr.getValue(Tag.PixelData);
+        if (!(pixelData instanceof BulkDataReader)) {
+            DicomOutputStream dos = new DicomOutputStream(os, streamTsuid);
+            dos.writeDataset(fmi, attr);
+            finish(dos);
+            return;
+        }
+        BulkDataReader pixels = (BulkDataReader) pixelData;
+        VR vr = attr.getVR(Tag.PixelData);
+        Attributes header = new Attributes(attr);
+        Attributes trailer = new Attributes();
+        for (int tag : attr.tags()) {
+            if (Integer.compareUnsigned(tag, Tag.PixelData) < 0) continue;
+            header.remove(tag);
+            if (tag != Tag.PixelData) trailer.setValue(tag, attr.getVR(tag), attr.getValue(tag));
+        }
+        DicomOutputStream dos = new DicomOutputStream(os, streamTsuid);
+        dos.writeDataset(fmi, header);
+        dos.flush();
+        // A deflated stream has to go through the deflater, otherwise write past the dicom stream directly
+        WritableByteChannel channel = UID.DeflatedExplicitVRLittleEndian.equals(tsuid) ?
+                Channels.newChannel(dos) : channelFor(os);
+        if (isEncapsulated(tsuid)) {
+            writeFragments(dos, channel, pixels);
+        } else {
+            writeNative(dos, UID.ExplicitVRBigEndian.equals(tsuid) ? new SwappingChannel(channel) : channel,
+                    pixels, vr);
+        }
+        if (!trailer.isEmpty()) {
+            trailer.writeTo(dos);
+        }
+        finish(dos);
+    }
+
+    /**
+     * Writes attr in the native transfer syntax tsuid, decoding encapsulated pixel data frame by frame with the
+     * image reader, for destinations that don't accept the stored transfer syntax.  The decoded frames are spooled
+     * to a temporary file so only one decoded frame is held in memory.  Native pixel data is written as is, by write.
+     */
+    public static void writeDecoded(Attributes attr, String tsuid, OutputStream os) throws IOException {
+        var storedTsuid = attr.getString(Tag.AvailableTransferSyntaxUID, UID.ImplicitVRLittleEndian);
+        Object pixelData = attr.getValue(Tag.PixelData);
+        Attributes decoded = new Attributes(attr);
+        decoded.setString(Tag.AvailableTransferSyntaxUID, VR.UI, tsuid);
+        if (!isEncapsulated(storedTsuid) || !(pixelData instanceof BulkDataReader)) {
+            write(decoded, os, false);
+            return;
+        }
+        File spool = File.createTempFile("decoded", ".raw");
+        try {
+            long length = decodeFrames(attr, storedTsuid, (BulkDataReader) pixelData, spool);
+            int samples = attr.getInt(Tag.SamplesPerPixel, 1);
+            decoded.setString(Tag.PhotometricInterpretation, VR.CS, PhotometricInterpretation.fromString(
+                    attr.getString(Tag.PhotometricInterpretation, "MONOCHROME2")).decompress().toString());
+            if (samples > 1) decoded.setInt(Tag.PlanarConfiguration, VR.US, 0);
+            decoded.setValue(Tag.PixelData, attr.getInt(Tag.BitsAllocated, 8) > 8 ? VR.OW : VR.OB,
+                    new BulkData(null, spool.toURI() + "?offset=0&length=" + length, false));
+            DicomOutputStream dos = new DicomOutputStream(os, tsuid);
+            dos.writeDataset(null, decoded);
+            finish(dos);
+        } finally {
+            if (!spool.delete()) spool.deleteOnExit();
+        }
+    }
+
+    /** Decodes every frame of pixels into spool as little endian native data, returning the decoded length */
+    static long decodeFrames(Attributes attr, String storedTsuid, BulkDataReader pixels, File spool)
+            throws IOException {
+        int frames = pixels.getFrameCount();
+        Attributes source = new Attributes(attr);
+        Fragments fragments = source.newFragments(Tag.PixelData, VR.OB, frames + 1);
+        fragments.add(new byte[0]);
+        for (int i = 0; i < frames; i++) {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream((int) pixels.getFrameLength(i));
+            pixels.copyFrame(i, Channels.newChannel(frame));
+            fragments.add(frame.toByteArray());
+        }
+        Attributes fmi = new Attributes();
+        fmi.setString(Tag.TransferSyntaxUID, VR.UI, storedTsuid);
+        DicomImageReader reader = DicomAccess.getDicomImageReader();
+        long length = 0;
+        try (OutputStream raw = new BufferedOutputStream(new FileOutputStream(spool), 65536)) {
+            reader.setInput(new DicomMetaData(fmi, source));
+            for (int i = 0; i < frames; i++) {
+                byte[] data = ExtractImageFrames.toBytes(reader.readRaster(i, null).getDataBuffer());
+                raw.write(data);
+                length += data.length;
+            }
+            if ((length & 1) != 0) {
+                raw.write(0);
+                length++;
+            }
+        } finally {
+            reader.reset();
+        }
+        return length;
+    }
+
+    /** Completes any deflated data and flushes, without closing the underlying stream */
+    static void finish(DicomOutputStream dos) throws IOException {
+        dos.finish();
+        dos.flush();
+    }
+
+    static WritableByteChannel channelFor(OutputStream os) {
+        if (os instanceof FileHandler.TempFileOutputStream) {
+            var channel = ((FileHandler.TempFileOutputStream) os).getChannel();
+            if (channel != null) return channel;
+        }
+        return Channels.newChannel(os);
+    }
+
+    static void writeNative(DicomOutputStream dos, WritableByteChannel channel, BulkDataReader pixels, VR vr)
+            throws IOException {
+        long length = 0;
+        for (int i = 0; i < pixels.getFrameCount(); i++) {
+            length += pixels.getFrameLength(i);
+        }
+        long padded = (length + 1) & ~1L;
+        if (padded > 0xFFFFFFFEL) {
+            throw new IOException("Native pixel data too long " + length);
+        }
+        vr = vr == null ? VR.OW : vr;
+        dos.writeHeader(Tag.PixelData, vr, (int) padded);
+        if (vr != VR.OW && channel instanceof SwappingChannel) channel = ((SwappingChannel) channel).channel;
+        for (int i = 0; i < pixels.getFrameCount(); i++) {
+            pixels.copyFrame(i, channel);
+        }
+        if (padded != length) dos.write(0);
+    }
+
+    /**
+     * Swaps the bytes of each 16 bit word written, for native OW pixel data in big endian, since the stored frames
+     * are little endian.  Words split across writes are handled.
+     */
+    static class SwappingChannel implements WritableByteChannel {
+        final WritableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(65536);
+        private int pending = -1;
+
+        SwappingChannel(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int ret = src.remaining();
+            while (src.hasRemaining()) {
+                buffer.clear();
+                while (buffer.remaining() >= 2 && src.hasRemaining()) {
+                    if (pending >= 0) {
+                        buffer.put(src.get());
+                        buffer.put((byte) pending);
+                        pending = -1;
+                    } else if (src.remaining() >= 2) {
+                        byte low = src.get();
+                        buffer.put(src.get());
+                        buffer.put(low);
+                    } else {
+                        pending = src.get() & 0xFF;
+                    }
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+            return ret;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    static void writeFragments(DicomOutputStream dos, WritableByteChannel channel, BulkDataReader pixels)
+            throws IOException {
+        int frames = pixels.getFrameCount();
+        dos.writeHeader(Tag.PixelData, VR.OB, -1);
+        dos.write(basicOffsetTable(pixels));
+        for (int i = 0; i < frames; i++) {
+            long length = pixels.getFrameLength(i);
+            long padded = (length + 1) & ~1L;
+            dos.writeHeader(Tag.Item, null, (int) padded);
+            dos.flush();
+            pixels.copyFrame(i, channel);
+            if (padded != length) dos.write(0);
+        }
+        dos.writeHeader(Tag.SequenceDelimitationItem, null, 0);
+    }
+
+    /**
+     * Returns the Basic Offset Table item, with one fragment per frame.  The table is left empty when the offsets
+     * don't fit in 32 bits.
+     */
+    static byte[] basicOffsetTable(BulkDataReader pixels) {
+        int frames = pixels.getFrameCount();
+        ByteBuffer bot = ByteBuffer.allocate(8 + 4 * frames).order(ByteOrder.LITTLE_ENDIAN);
+        long offset = 0;
+        for (int i = 0; i < frames; i++) {
+            if (offset > 0xFFFFFFFFL) {
+                bot = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                break;
+            }
+            bot.putInt(8 + 4 * i, (int) offset);
+            offset += 8 + ((pixels.getFrameLength(i) + 1) & ~1L);
+        }
+        bot.putShort(0, (short) 0xFFFE);
+        bot.putShort(2, (short) 0xE000);
+        bot.putInt(4, bot.capacity() - 8);
+        return bot.array();
+    }
+}
@@ -0,0 +1,51 @@
+package org.dcm4che.staticwado;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A pool of image data buffers, so that frames with the same geometry reuse the pixel arrays instead of
+ * allocating a new one per frame.  Only single bank byte and unsigned short buffers are pooled, and at most
+ * maxPerSize buffers of each type and size are kept.
+ */
+public class RasterPool {
+    private final int maxPerSize;
+    private final Map<Long, Queue<DataBuffer>> buffers = new ConcurrentHashMap<>();
+
+    public RasterPool(int maxPerSize) {
+        this.maxPerSize = maxPerSize;
+    }
+
+    private static long key(int dataType, int size) {
+        return ((long) dataType << 32) | size;
+    }
+
+    /** Returns a buffer of the given type (TYPE_BYTE or TYPE_USHORT) and size, reused if one is available */
+    public DataBuffer take(int dataType, int size) {
+        var queue = buffers.get(key(dataType, size));
+        DataBuffer ret = queue == null ? null : queue.poll();
+        if (ret != null) return ret;
+        switch (dataType) {
+            case DataBuffer.TYPE_BYTE:
+                return new DataBufferByte(size);
+            case DataBuffer.TYPE_USHORT:
+                return new DataBufferUShort(size);
+            default:
+                throw new IllegalArgumentException("Unsupported data type " + dataType);
+        }
+    }
+
+    /** Returns the buffer to the pool.  The caller must not use it afterwards. */
+    public void release(DataBuffer buffer) {
+        if (buffer == null || buffer.getNumBanks() != 1) return;
+        int dataType = buffer.getDataType();
+        if (dataType != DataBuffer.TYPE_BYTE && dataType != DataBuffer.TYPE_USHORT) return;
+        var queue = buffers.computeIfAbsent(key(dataType, buffer.getSize()), k -> new ConcurrentLinkedQueue<>());
+        if (queue.size() < maxPerSize) queue.offer(buffer);
+    }
+}
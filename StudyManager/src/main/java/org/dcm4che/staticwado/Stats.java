@@ -3,40 +3,63 @@ package org.dcm4che.staticwado;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Counts of named events, logged every logCount events and summarized when a study completes.  Safe to use from
+ * multiple threads.  The top level stats also feed the event counters of the metrics, when given one.
+ */
 public class Stats {
   private final Stats parent;
   private final String name;
   private final Logger log;
-  private final Map<String,Integer> stats = new HashMap<>();
+  private final Metrics metrics;
+  private final Map<String,LongAdder> stats = new ConcurrentHashMap<>();
 
   public Stats(String name, Stats parent) {
+    this(name, parent, null);
+  }
+
+  public Stats(String name, Stats parent, Metrics metrics) {
     this.parent = parent;
     this.name = name;
+    this.metrics = metrics;
     this.log = LoggerFactory.getLogger(Stats.class.getName()+"."+name);
   }
 
   public void add(String name, int logCount, String description, Object...args) {
-    var current = stats.compute(name, (key,val) -> (val==null ? 1 : val+1));
-    if( logCount > 0 && current % logCount == 0 ) {
-      Object[] extraArgs = new Object[2+args.length];
-      extraArgs[0] = name;
-      extraArgs[1] = current;
-      System.arraycopy(args,0,extraArgs,2,args.length);
-      log.warn("{} {} "+description,extraArgs);
+    var adder = stats.computeIfAbsent(name, key -> new LongAdder());
+    adder.increment();
+    if( logCount > 0 && log.isWarnEnabled() ) {
+      long current = adder.sum();
+      if( current % logCount == 0 ) {
+        Object[] extraArgs = new Object[2+args.length];
+        extraArgs[0] = name;
+        extraArgs[1] = current;
+        System.arraycopy(args,0,extraArgs,2,args.length);
+        log.warn("{} {} "+description,extraArgs);
+      }
+    }
+    if( metrics!=null ) {
+      metrics.count(name);
     }
     if( parent!=null ) {
       parent.add(name,-1,description,args);
     }
   }
 
+  public long getCount(String name) {
+    var adder = stats.get(name);
+    return adder==null ? 0 : adder.sum();
+  }
+
   public void summarize() {
     log.warn("{}", this.name);
     stats.forEach((name,count) -> {
-      log.warn("{} {}", name, count);
+      long value = count.sumThenReset();
+      if( value!=0 ) log.warn("{} {}", name, value);
     });
-    stats.clear();
   }
 }
@@ -16,13 +16,48 @@ import java.util.stream.IntStream;
 public class StudyConsumer implements BiConsumer<String, Attributes> {
   private final StudyManager callbacks;
   private static final Logger log = LoggerFactory.getLogger(StudyConsumer.class);
+  static final String INDEX_LEASE = "studies-index";
+  static final long INDEX_WAIT_MILLIS = 1000;
 
   public StudyConsumer(StudyManager callbacks) {
     this.callbacks = callbacks;
   }
 
+  /**
+   * Replaces the study in the studies index.  The index is read, modified and written, so updates are serialized,
+   * and across nodes too when leases are in use.  The index lease is only tried for a short time, without holding
+   * any lock, and when another node keeps it the index isn't written and IndexBusyException is thrown, so that
+   * the study is completed again later rather than overwriting the other node's update.
+   */
   public void accept(String studyUid, Attributes studyQuery) {
     if( studyQuery==null || studyUid==null ) return;
+    long start = Metrics.start();
+    Leases leases = callbacks.leases;
+    int size;
+    if( leases==null ) {
+      size = updateIndex(studyUid, studyQuery);
+    } else {
+      if( !leases.tryAcquire(INDEX_LEASE, INDEX_WAIT_MILLIS) ) {
+        throw new IndexBusyException("Studies index is leased by another node, not adding " + studyUid);
+      }
+      try {
+        size = updateIndex(studyUid, studyQuery);
+      } finally {
+        leases.release(INDEX_LEASE);
+      }
+    }
+    callbacks.tracer.record(studyUid, "indexUpdate", start, size);
+  }
+
+  /** Thrown when the studies index can't be updated because another node holds its lease */
+  public static class IndexBusyException extends IllegalStateException {
+    public IndexBusyException(String message) {
+      super(message);
+    }
+  }
+
+  /** Writes the index with the study replaced, returning the number of studies in it */
+  private synchronized int updateIndex(String studyUid, Attributes studyQuery) {
     List<Attributes> studies;
     String dicomWebDir = callbacks.getDicomWebDir();
     try {
@@ -40,6 +75,7 @@ public class StudyConsumer implements BiConsumer<String, Attributes> {
         dicomWebDir,
         "studies/index.json", true,
         studies.toArray(Attributes[]::new));
+    return studies.size();
   }
 
   public List<Attributes> queryStudies(Attributes constraints, int count) {
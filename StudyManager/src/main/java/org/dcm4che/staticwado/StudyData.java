@@ -1,20 +1,23 @@
 package org.dcm4che.staticwado;
 
 import org.dcm4che3.data.*;
-import org.dcm4che3.io.DicomOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Attr;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
 import static org.dcm4che.staticwado.DicomAccess.getHash;
 
@@ -23,17 +26,19 @@ public class StudyData {
     private static final Logger log = LoggerFactory.getLogger(StudyData.class);
 
     private final String studyUid;
-    private final Map<String, Attributes> deduplicated = new HashMap<>();
-    private final Map<String, Attributes> extractData = new HashMap<>();
+    private final DeduplicatedInstances deduplicated = new DeduplicatedInstances();
+    // Concurrent so that instances can be reconstructed on several retrieve threads at once
+    private final Map<String, Attributes> extractData = new ConcurrentHashMap<>();
     private final StudyManager callbacks;
 
-    // Store maps of hash values to file names
-    private final Map<String, String> readHashes = new HashMap<>();
+    // The hash values of files already read or written
+    private final Set<String> readHashes = new HashSet<>();
 
-    // Store a map of sop instanceUID to hash value
-    private final Map<String, String> sopInstanceMap = new HashMap<>();
     private final String studyDir;
 
+    // The content hash of each series, as of the last writeStudyMetadata
+    private final Map<String, String> seriesHashes = new LinkedHashMap<>();
+
     public StudyData(SopId id, StudyManager callbacks) {
         this(id.getStudyInstanceUid(), callbacks);
 
@@ -50,22 +55,25 @@ public class StudyData {
     }
 
     public String addExtract(Attributes extract) {
+        long start = Metrics.start();
         var hashValue = getHash(extract);
+        callbacks.metrics.record(Metrics.Stage.HASH, start);
         if (extractData.putIfAbsent(hashValue, extract) == null) {
-            readHashes.put(hashValue, callbacks.getBulkdataName(hashValue, ".json.gz"));
+            callbacks.extractCache.put(hashValue, extract);
+            readHashes.add(hashValue);
             return hashValue;
         }
         return null;
     }
 
     public String addDeduplicated(Attributes instance) {
+        long start = Metrics.start();
         var hashValue = getHash(instance);
+        callbacks.metrics.record(Metrics.Stage.HASH, start);
         var sopUid = instance.getString(Tag.SOPInstanceUID);
         log.debug("Adding deduplicated instance {} sop {}", hashValue, sopUid);
-        sopInstanceMap.computeIfAbsent(instance.getString(Tag.SOPInstanceUID), key -> hashValue);
-        var current = deduplicated.putIfAbsent(hashValue, instance);
-        if (current == null) {
-            readHashes.put(hashValue, callbacks.getDeduplicatedName(hashValue));
+        if (deduplicated.add(hashValue, sopUid, instance.getString(Tag.SeriesInstanceUID), instance)) {
+            readHashes.add(hashValue);
             callbacks.studyStats.add("AddDeduplicated", 5000, "Add deduplicated instance to {}",
                     studyUid);
             return hashValue;
@@ -85,10 +93,17 @@ public class StudyData {
      * @return
      */
     public boolean writeDeduplicatedGroup(String dir, Function<String, String> nameFunc, boolean isStudyData) {
-        var writeList = new ArrayList<>(deduplicated.values());
-        writeList.sort((a, b) -> getHash(a).compareTo(getHash(b)));
-        String hashValue = DicomAccess.hashAttributes(writeList.toArray(Attributes[]::new));
-        if (readHashes.containsKey(hashValue)) {
+        return writeDeduplicatedGroup(dir, nameFunc, isStudyData, false);
+    }
+
+    private boolean writeDeduplicatedGroup(String dir, Function<String, String> nameFunc, boolean isStudyData,
+                                           boolean force) {
+        int[] sorted = deduplicated.sortedByHash();
+        var instances = deduplicated.iterable(sorted);
+        long start = Metrics.start();
+        String hashValue = deduplicated.hashOf(sorted);
+        callbacks.metrics.record(Metrics.Stage.HASH, start);
+        if (!force && readHashes.contains(hashValue)) {
             return false;
         }
         String name = nameFunc.apply(hashValue);
@@ -96,50 +111,117 @@ public class StudyData {
         DicomAccess.setRefs(info, extractData.keySet());
         info.setString(DicomAccess.DEDUPPED_CREATER, DicomAccess.DEDUPPED_TYPE, VR.CS, DicomAccess.INFO_TYPE);
         info.setString(DicomAccess.DEDUPPED_CREATER, DicomAccess.DEDUPPED_HASH, VR.CS, hashValue);
-        writeList.add(0, info);
-        if (isStudyData) {
-            extractData.values().forEach(item -> writeList.add(item));
+        if (isStudyData && !seriesHashes.isEmpty()) {
+            Sequence seq = info.newSequence(DicomAccess.DEDUPPED_CREATER, DicomAccess.DEDUPPED_SERIES,
+                    seriesHashes.size());
+            seriesHashes.forEach((seriesUid, seriesHash) -> {
+                Attributes item = new Attributes(2);
+                item.setString(Tag.SeriesInstanceUID, VR.UI, seriesUid);
+                item.setString(DicomAccess.DEDUPPED_CREATER, DicomAccess.DEDUPPED_HASH, VR.CS, seriesHash);
+                seq.add(item);
+            });
+        }
+        List<Attributes> extracts = isStudyData ? new ArrayList<>(extractData.values()) : Collections.emptyList();
+        JsonAccess.write(callbacks.fileHandler, dir, name, isStudyData,
+                concat(Collections.singletonList(info), instances, extracts));
+        if (!isStudyData && callbacks.isBinaryDeduplicated()) {
+            writeBinaryDeduplicated(dir, name, hashValue);
         }
-        JsonAccess.write(callbacks.fileHandler, dir, name, isStudyData, writeList.toArray(Attributes[]::new));
         callbacks.studyStats.add("GroupDeduplicated", 1,
                 "Combine single instance deduplicated objects into sets: {} instances",
                 deduplicated.size());
         return true;
     }
 
+    /** Writes the binary sidecar of the group, after the JSON so that the JSON is always present when it is */
+    private void writeBinaryDeduplicated(String dir, String name, String hashValue) {
+        try (OutputStream os = callbacks.fileHandler.openForWrite(dir, name + BinaryDeduplicated.EXTENSION, false,
+                false)) {
+            BinaryDeduplicated.write(os, hashValue, extractData.keySet(), deduplicated, deduplicated.sortedByHash());
+        } catch (FileAlreadyExistsException e) {
+            log.debug("Binary deduplicated {} already exists", name);
+        } catch (IOException e) {
+            log.warn("Unable to write binary deduplicated {}", name, e);
+        }
+    }
+
+    /**
+     * Reads the binary sidecar of a group file, adding the instances without parsing them.
+     *
+     * @return false if there isn't a usable sidecar, so the JSON file should be read instead
+     */
+    private boolean readBinaryDeduplicated(String dir, String hashValue) {
+        File file = new File(dir, hashValue + BinaryDeduplicated.EXTENSION);
+        if (!file.isFile()) return false;
+        try (InputStream is = new FileInputStream(file)) {
+            BinaryDeduplicated.read(is, readHashes::add, (hash, sopUid, seriesUid, serialized) -> {
+                if (deduplicated.addSerialized(hash, sopUid, seriesUid, serialized)) {
+                    readHashes.add(hash);
+                }
+            });
+            return true;
+        } catch (IOException e) {
+            log.warn("Unable to read binary deduplicated {}, reading the JSON instead", file, e);
+            return false;
+        }
+    }
+
+    /** Iterates over each of the parts in turn, without collecting them together */
+    @SafeVarargs
+    static Iterable<Attributes> concat(Iterable<Attributes>... parts) {
+        return () -> new Iterator<Attributes>() {
+            int part = 0;
+            Iterator<Attributes> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && part < parts.length) {
+                    current = parts[part++].iterator();
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public Attributes next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return current.next();
+            }
+        };
+    }
+
     public boolean isEmpty() {
         return deduplicated.isEmpty();
     }
 
     /** If the sop UID already exists, then return true */
     public boolean alreadyExists(SopId id) {
-        return sopInstanceMap.containsKey(id.getSopInstanceUid());
+        return deduplicated.containsSop(id.getSopInstanceUid());
     }
 
     public int size() {
-        if (sopInstanceMap.size() != deduplicated.size()) {
-            log.warn("sop instance size {} deduplicated size {}", sopInstanceMap.size(), deduplicated.size());
+        if (deduplicated.sopCount() != deduplicated.size()) {
+            log.warn("sop instance size {} deduplicated size {}", deduplicated.sopCount(), deduplicated.size());
         }
-        return sopInstanceMap.size();
+        return deduplicated.sopCount();
     }
 
     public void forEachInstance(BiConsumer<String, String> consumer) {
-        sopInstanceMap.forEach((sopUid, hash) -> {
-            var deduplicateInstance = deduplicated.get(hash);
-            var seriesUid = deduplicateInstance.getString(Tag.SeriesInstanceUID);
-            consumer.accept(seriesUid, sopUid);
-        });
+        deduplicated.forEachInstance(consumer);
     }
 
     static class SeriesRecord {
         public final String seriesUid;
         public final Attributes seriesQuery;
+        public final Attributes studyQuery;
         public final List<Attributes> metadata = new ArrayList<Attributes>();
         public final List<Attributes> instancesQuery = new ArrayList<>();
+        public int count;
+        public boolean written;
 
         public SeriesRecord(String seriesUid, Attributes metadata) {
             this.seriesUid = seriesUid;
             this.seriesQuery = TagLists.SERIES.select(metadata);
+            this.studyQuery = TagLists.PATIENT_STUDY.select(metadata);
         }
 
         public void add(Attributes instance) {
@@ -150,47 +232,154 @@ public class StudyData {
 
     /**
      * Generate study/series/instance query objects and series level metadata files.
+     * Each series is reconstructed, serialized and compressed as a separate task on the shared metadata executor,
+     * and the study query is assembled once all the series are done.
+     * A content hash of each series is recorded in the study deduplicated file, and series whose hash is unchanged
+     * since the last write are not regenerated - only their first instance is reconstructed for the query.
      */
     public Attributes writeStudyMetadata() {
         if (deduplicated.size() == 0) {
             log.warn("No deduplicated instances, not writing study {}", studyUid);
             return null;
         }
-        // TODO - check to see if the content is identical
-        var seriesContents = new HashMap<String, SeriesRecord>();
-        var studyQuery = new AtomicReference<Attributes>();
-        deduplicated.forEach((hash, attr) -> {
-            Attributes metadata = toMetadata(attr);
-            if (studyQuery.get() == null) {
-                studyQuery.set(TagLists.PATIENT_STUDY.select(metadata));
+        Map<String, String> previousHashes = readSeriesHashes();
+        seriesHashes.clear();
+        var futures = new ArrayList<CompletableFuture<SeriesRecord>>();
+        for (var entry : deduplicated.getSeriesPositions().entrySet()) {
+            int[] positions = entry.getValue();
+            String seriesHash = hashSeries(positions);
+            seriesHashes.put(entry.getKey(), seriesHash);
+            boolean unchanged = seriesHash.equals(previousHashes.get(entry.getKey())) &&
+                    new File(studyDir + "/series/" + entry.getKey(), "metadata.gz").exists();
+            futures.add(CompletableFuture.supplyAsync(() -> writeSeries(positions, unchanged),
+                    callbacks.getMetadataExecutor()));
+        }
+        Attributes studyQ = null;
+        var seriesQuery = new ArrayList<Attributes>();
+        int changed = 0;
+        for (var future : futures) {
+            SeriesRecord r = future.join();
+            if (studyQ == null) {
+                studyQ = r.studyQuery;
             }
-            String seriesUid = metadata.getString(Tag.SeriesInstanceUID);
-            SeriesRecord r = seriesContents.computeIfAbsent(seriesUid,
-                    (uid) -> new SeriesRecord(uid, metadata));
-            r.add(metadata);
-        });
-        Attributes studyQ = studyQuery.get();
-        studyQ.setInt(Tag.NumberOfStudyRelatedSeries, VR.IS, seriesContents.size());
-        seriesContents.forEach((uid, r) -> {
+            if (r.written) changed++;
             DicomAccess.addToStrings(studyQ, null, Tag.ModalitiesInStudy, VR.CS, r.seriesQuery.getString(Tag.Modality));
-            r.seriesQuery.setInt(Tag.NumberOfSeriesRelatedInstances, VR.IS, r.metadata.size());
+            r.seriesQuery.setInt(Tag.NumberOfSeriesRelatedInstances, VR.IS, r.count);
             studyQ.setInt(Tag.NumberOfStudyRelatedInstances, VR.IS,
-                    r.metadata.size() + studyQ.getInt(Tag.NumberOfStudyRelatedInstances, 0));
-        });
-        JsonAccess.write(callbacks.fileHandler, studyDir, "index.json", true, studyQuery.get());
-        var seriesQuery = seriesContents.values().stream().map((r) -> r.seriesQuery).toArray(Attributes[]::new);
+                    r.count + studyQ.getInt(Tag.NumberOfStudyRelatedInstances, 0));
+            seriesQuery.add(r.seriesQuery);
+        }
+        studyQ.setInt(Tag.NumberOfStudyRelatedSeries, VR.IS, seriesQuery.size());
+        if (changed == 0 && previousHashes.keySet().equals(seriesHashes.keySet())
+                && new File(studyDir, "index.json.gz").exists()) {
+            log.warn("Study {} metadata is unchanged", studyUid);
+            return studyQ;
+        }
+        log.warn("Rewrote {} of {} series in study {}", changed, seriesQuery.size(), studyUid);
+        JsonAccess.write(callbacks.fileHandler, studyDir, "index.json", true, studyQ);
         JsonAccess.write(callbacks.fileHandler, studyDir, "series/index.json", true, seriesQuery);
-        seriesContents.forEach((key, r) -> {
-            JsonAccess.write(callbacks.fileHandler, studyDir + "/series/" + r.seriesUid, "metadata", true,
-                    r.metadata.toArray(Attributes[]::new));
-            JsonAccess.write(callbacks.fileHandler, studyDir + "/series/" + r.seriesUid, "instances/index.json", true,
-                    r.instancesQuery.toArray(Attributes[]::new));
-        });
+        // Forced when the series hashes aren't recorded yet, so that the next write can skip unchanged series
         writeDeduplicatedGroup(studyDir,
-                (hash) -> "deduplicated", true);
+                (hash) -> "deduplicated", true, !previousHashes.equals(seriesHashes));
         return studyQ;
     }
 
+    /**
+     * Reconstructs the instances at the given positions and writes the series metadata and instances query.
+     * The full metadata is dropped once written, only the query attributes are returned.
+     */
+    private SeriesRecord writeSeries(int[] positions, boolean unchanged) {
+        long start = Metrics.start();
+        SeriesRecord r = null;
+        for (int position : positions) {
+            Attributes metadata = toMetadata(deduplicated.get(position));
+            if (r == null) {
+                r = new SeriesRecord(metadata.getString(Tag.SeriesInstanceUID), metadata);
+                r.count = positions.length;
+            }
+            if (unchanged) break;
+            r.add(metadata);
+        }
+        if (unchanged) {
+            log.debug("Series {} is unchanged", r.seriesUid);
+            return r;
+        }
+        JsonAccess.write(callbacks.fileHandler, studyDir + "/series/" + r.seriesUid, "metadata", true,
+                r.metadata);
+        JsonAccess.write(callbacks.fileHandler, studyDir + "/series/" + r.seriesUid, "instances/index.json",
+                true, r.instancesQuery);
+        writeSeriesThumbnail(r);
+        r.metadata.clear();
+        r.instancesQuery.clear();
+        r.written = true;
+        callbacks.tracer.record(studyUid, "seriesWrite", start, r.seriesUid);
+        return r;
+    }
+
+    /**
+     * Writes the series thumbnail as a copy of the thumbnail of the middle instance by instance number, or of the
+     * nearest instance after it that has a thumbnail.
+     */
+    private void writeSeriesThumbnail(SeriesRecord r) {
+        var instances = new ArrayList<>(r.metadata);
+        instances.sort(Comparator.comparingInt(instance -> instance.getInt(Tag.InstanceNumber, 0)));
+        String seriesDir = studyDir + "/series/" + r.seriesUid;
+        int size = instances.size();
+        for (int i = 0; i < size; i++) {
+            String sopUid = instances.get((size / 2 + i) % size).getString(Tag.SOPInstanceUID);
+            File thumbnail = new File(seriesDir + "/instances/" + sopUid, "thumbnail");
+            if (!thumbnail.isFile()) continue;
+            try (OutputStream os = callbacks.fileHandler.openForWrite(seriesDir, "thumbnail", false, true)) {
+                Files.copy(thumbnail.toPath(), os);
+            } catch (IOException e) {
+                log.warn("Unable to write series thumbnail for {}", r.seriesUid, e);
+            }
+            return;
+        }
+        log.debug("No instance thumbnails in series {}", r.seriesUid);
+    }
+
+    /**
+     * Hashes the series content, from the sorted instance hashes.  Since the instance hashes include the
+     * references to the extracts, any change to the patient/study/series data also changes the series hash.
+     */
+    private String hashSeries(int[] positions) {
+        String[] hashes = new String[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            hashes[i] = deduplicated.getHash(positions[i]);
+        }
+        Arrays.sort(hashes);
+        try (DicomAccess.HashOutputStream hos = new DicomAccess.HashOutputStream()) {
+            for (String hash : hashes) {
+                hos.write(hash.getBytes(StandardCharsets.US_ASCII));
+                hos.write('\n');
+            }
+            return hos.getHash();
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+    }
+
+    /** Reads the series hashes recorded in the info item of the study deduplicated file from the last write */
+    private Map<String, String> readSeriesHashes() {
+        var ret = new HashMap<String, String>();
+        if (callbacks.update || !new File(studyDir, "deduplicated.gz").exists()) {
+            return ret;
+        }
+        try {
+            Attributes info = JsonAccess.readSingle(callbacks.fileHandler, studyDir, "deduplicated.gz");
+            Sequence seq = info.getSequence(DicomAccess.DEDUPPED_CREATER, DicomAccess.DEDUPPED_SERIES);
+            if (seq == null) return ret;
+            for (Attributes item : seq) {
+                ret.put(item.getString(Tag.SeriesInstanceUID),
+                        item.getString(DicomAccess.DEDUPPED_CREATER, DicomAccess.DEDUPPED_HASH));
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Unable to read series hashes for {}, rewriting all series", studyUid, e);
+        }
+        return ret;
+    }
+
     /**
      * Converts a deduplicated instance back into a full instance.
      * 
@@ -235,30 +424,32 @@ public class StudyData {
     }
 
     public Attributes getMetadata(String key) {
-        var deduplicatedInstance = deduplicated.get(key);
-        if (deduplicatedInstance == null) {
-            var hashValue = sopInstanceMap.get(key);
-            if (hashValue == null)
-                return null;
-            deduplicatedInstance = deduplicated.get(hashValue);
-        }
-        return toMetadata(deduplicatedInstance);
+        int position = deduplicated.indexOf(key);
+        if (position < 0)
+            return null;
+        return toMetadata(deduplicated.get(position));
     }
 
+    /**
+     * Gets the extract for this study, from the study itself, the process wide extract cache or by reading
+     * the bulkdata file.
+     */
     public Attributes getOrLoadExtract(String hashValue) {
-        return extractData.computeIfAbsent(hashValue, (key) -> {
-            try {
-                Attributes extract = JsonAccess.readSingle(callbacks.fileHandler, callbacks.getStudiesDir(studyUid),
-                        callbacks.getBulkdataName(hashValue, ".json.gz"));
-                if (extract != null)
-                    return extract;
-                log.warn("Extract data at {} is null", callbacks.getBulkdataName((hashValue)));
-                return null;
-            } catch (IOException e) {
-                log.warn("Unable to read {}", hashValue, e);
-                return null;
-            }
-        });
+        return extractData.computeIfAbsent(hashValue, (key) -> callbacks.extractCache.get(key, this::loadExtract));
+    }
+
+    private Attributes loadExtract(String hashValue) {
+        try {
+            Attributes extract = JsonAccess.readSingle(callbacks.fileHandler, callbacks.getStudiesDir(studyUid),
+                    callbacks.getBulkdataName(hashValue, ".json.gz"));
+            if (extract != null)
+                return extract;
+            log.warn("Extract data at {} is null", callbacks.getBulkdataName((hashValue)));
+            return null;
+        } catch (IOException e) {
+            log.warn("Unable to read {}", hashValue, e);
+            return null;
+        }
     }
 
     public void readDeduplicatedGroup() {
@@ -274,9 +465,10 @@ public class StudyData {
             if (!file.endsWith(".gz"))
                 return;
             String hashValue = file.substring(0, file.length() - 3);
-            if (readHashes.containsKey(hashValue))
+            if (!readHashes.add(hashValue))
+                return;
+            if (readBinaryDeduplicated(dir, hashValue))
                 return;
-            readHashes.put(hashValue, file);
             try {
                 var items = JsonAccess.read(callbacks.fileHandler, dir, file);
                 items.forEach(attr -> {
@@ -284,7 +476,7 @@ public class StudyData {
                     if (DicomAccess.INFO_TYPE.equals(type)) {
                         String[] refs = attr.getStrings(DicomAccess.DEDUPPED_CREATER, DicomAccess.DEDUPPED_REF, VR.CS);
                         if (refs != null) {
-                            Arrays.stream(refs).forEach(ref -> readHashes.put(ref, file));
+                            readHashes.addAll(Arrays.asList(refs));
                         }
                     } else if (DicomAccess.INSTANCE_TYPE.equals(type)) {
                         addDeduplicated(attr);
@@ -308,41 +500,42 @@ public class StudyData {
      * @throws FileNotFoundException when the key isn't found
      */
     public void writeDimse(String key, OutputStream os, boolean includeFmi) throws IOException {
+        writeDimse(getDimseAttributes(key), os, includeFmi);
+    }
+
+    /**
+     * Reconstructs the full instance for the given key, with the bulkdata references replaced by readers
+     * on the study directory.  The result can be written by writeDimse at a later time, or on another thread.
+     *
+     * @throws FileNotFoundException when the key isn't found
+     */
+    public Attributes getDimseAttributes(String key) throws IOException {
         Attributes attr = getMetadata(key);
         if (attr == null) {
             throw new FileNotFoundException("SOP Instance " + key + " wasn't found");
         }
         var studyUid = attr.getString(Tag.StudyInstanceUID);
-        var tsuid = attr.getString(Tag.AvailableTransferSyntaxUID);
-        var isCompressed = tsuid != null && !(tsuid.equals(UID.ExplicitVRLittleEndian) ||
-                tsuid.equals(UID.ImplicitVRLittleEndian) ||
-                tsuid.equals(UID.DeflatedExplicitVRLittleEndian));
-        Attributes fmi = null;
-        if (includeFmi) {
-            fmi = new Attributes();
-            fmi.setString(Tag.TransferSyntaxUID, VR.UI, tsuid);
-            tsuid = UID.ExplicitVRLittleEndian;
-        }
-        try (DicomOutputStream dos = new DicomOutputStream(os, tsuid)) {
+        try {
             attr.accept((attrs, tag, vr, value) -> {
                 var bulkValue = fixBulkDataUri(studyUid, value);
-                if (tag == Tag.PixelData && isCompressed && bulkValue != null) {
-                    var frames = attrs.getInt(Tag.NumberOfFrames, 1);
-                    var frags = attrs.newFragments(Tag.PixelData, vr, frames + 1);
-                    bulkValue.toPixelFragments(frames, frags);
-                    attrs.setValue(Tag.PixelData, vr, frags);
-                    return true;
-                }
                 if (bulkValue != null)
                     attrs.setValue(tag, vr, bulkValue);
                 return true;
             }, true);
-            dos.writeDataset(fmi, attr);
         } catch (RuntimeException e) {
             throw e;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
+        return attr;
+    }
+
+    /**
+     * Writes attributes from getDimseAttributes to the stream, in the available transfer syntax, streaming
+     * the pixel data from the frame files.
+     */
+    public static void writeDimse(Attributes attr, OutputStream os, boolean includeFmi) throws IOException {
+        Part10Writer.write(attr, os, includeFmi);
     }
 
     public BulkDataReader fixBulkDataUri(String studyUid, Object value) throws IOException {
@@ -10,13 +10,22 @@ import org.dcm4che3.io.DicomStreamException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.imageio.ImageIO;
 import javax.imageio.stream.FileImageInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.BiConsumer;
 
 /**
@@ -38,8 +47,15 @@ public class StudyManager {
   public FileHandler fileHandler;
   public BiConsumer<SopId, Attributes> extractConsumer;
   public BiConsumer<String, Attributes> studyConsumer;
-
-  public Stats overallStats = new Stats("Overall Stats", null);
+  public ExtractCache extractCache = new ExtractCache();
+  public Compression compression = new Compression();
+  public DirScanner dirScanner = new DirScanner();
+  private ExecutorService metadataExecutor = newMetadataExecutor(Runtime.getRuntime().availableProcessors());
+
+  public Metrics metrics = new Metrics();
+  public Tracer tracer = new Tracer();
+  public Leases leases;
+  public Stats overallStats = new Stats("Overall Stats", null, metrics);
   public Stats studyStats = new Stats("StudyStats", overallStats);
 
   String desiredTsuid = UID.JPEGLSLossless;
@@ -48,6 +64,12 @@ public class StudyManager {
 
   private boolean deduplicateGroup, deduplicate, instanceMetadata, studyMetadata;
   private boolean completeStudy = true;
+  private boolean binaryDeduplicated;
+  private int packFrames;
+  private Set<String> packSopClasses = Collections.emptySet();
+  private ExtractImageFrames.FrameParts frameParts = ExtractImageFrames.FrameParts.MULTIPART;
+  private int thumbnailSize = Thumbnail.DEFAULT_SIZE;
+  private int notifyThreads;
 
   private String dicomWebDir = System.getProperty("user.home") + "/dicomweb";
 
@@ -99,7 +121,79 @@ public class StudyManager {
     this.completeStudy = completeStudy;
   }
 
+  public boolean isBinaryDeduplicated() {
+    return binaryDeduplicated;
+  }
+
+  /** Sets whether deduplicated group files also get a binary sidecar, for faster loading */
+  public void setBinaryDeduplicated(boolean binaryDeduplicated) {
+    this.binaryDeduplicated = binaryDeduplicated;
+  }
+
+  /**
+   * Sets when the frames of an instance are packed into one container file rather than a file per frame:
+   * instances with at least minFrames frames (0 for never), or of one of the SOP classes.
+   */
+  public StudyManager setPackFrames(int minFrames, Collection<String> sopClasses) {
+    this.packFrames = minFrames;
+    this.packSopClasses = sopClasses == null ? Collections.emptySet() : new HashSet<>(sopClasses);
+    return this;
+  }
+
+  /** Returns true if the frames of attr should be written to a FramePack */
+  public boolean isPackedFrames(Attributes attr, int frames) {
+    return (packFrames > 0 && frames >= packFrames) || packSopClasses.contains(attr.getString(Tag.SOPClassUID));
+  }
+
+  public ExtractImageFrames.FrameParts getFrameParts() {
+    return frameParts;
+  }
+
+  /** Sets how frames are stored, one of multipart, singlepart or both */
+  public StudyManager setFrameParts(String frameParts) {
+    this.frameParts = ExtractImageFrames.FrameParts.valueOf(frameParts.trim().toUpperCase());
+    return this;
+  }
+
+  public int getThumbnailSize() {
+    return thumbnailSize;
+  }
+
+  /** Sets the longest side of thumbnails in pixels, 0 for full resolution */
+  public StudyManager setThumbnailSize(int thumbnailSize) {
+    this.thumbnailSize = thumbnailSize;
+    return this;
+  }
+
+  /**
+   * Traces the comma separated study UIDs, or all studies for *, writing a Chrome trace of each when it completes
+   * to traceDir, by default the traces directory of the DICOMweb directory.
+   */
+  public StudyManager setTraceStudies(String studyUids, String traceDir) {
+    if (studyUids == null || studyUids.isEmpty()) return this;
+    File dir = new File(traceDir != null ? traceDir : dicomWebDir + "/traces");
+    tracer.setStudies(Arrays.asList(studyUids.split(",")), dir);
+    log.warn("Tracing studies {} to {}", studyUids, dir);
+    return this;
+  }
+
+  /**
+   * Completes notified studies on threads threads, claiming each study with a lease file in the shared tree so
+   * that several nodes can scan the same notify directory.  Leases not renewed for leaseSeconds are taken over.
+   * 0 threads completes them one at a time without leases.
+   */
+  public StudyManager setNotifyThreads(int threads, long leaseSeconds) {
+    this.notifyThreads = threads;
+    this.leases = threads > 0 ? new Leases(new File(getLeaseDir()), leaseSeconds * 1000) : null;
+    return this;
+  }
+
+  public String getLeaseDir() {
+    return dicomWebDir + "/temp/leases";
+  }
+
   public StudyManager() {
+    compression.setMetrics(metrics);
     studyHandler = new CompleteStudyHandler(this);
     instanceConsumer = new InstanceDeduplicate(this);
     imageConsumer = new ExtractImageFrames(this);
@@ -130,6 +224,36 @@ public class StudyManager {
     return recompress;
   }
 
+  /** Returns the pool shared by all studies for generating series metadata */
+  public ExecutorService getMetadataExecutor() {
+    return metadataExecutor;
+  }
+
+  /** Sets the number of series to generate metadata for concurrently, shared across all studies */
+  public StudyManager setMetadataThreads(int threads) {
+    metadataExecutor.shutdown();
+    metadataExecutor = newMetadataExecutor(threads);
+    return this;
+  }
+
+  /**
+   * Creates the pool for series metadata, a dedicated one as the series writes are blocking I/O that would tie
+   * up the JVM wide common pool.
+   */
+  private static ExecutorService newMetadataExecutor(int threads) {
+    return Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+      Thread thread = new Thread(runnable, "metadata");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /** Sets the maximum size in bytes of the extract cache shared by all studies, 0 to disable it */
+  public StudyManager setExtractCacheSize(long size) {
+    extractCache.setMaxWeight(size);
+    return this;
+  }
+
   /**
    * Scans the specified directories for DICOM Part 10 files, and parse/send them to the  instanceHandler.
    *
@@ -140,13 +264,16 @@ public class StudyManager {
       return scanNotify();
     }
     try (var studyDataFactory = new StudyDataFactory()) {
-      return DirScanner.scan(null, (dir, name) -> {
+      return dirScanner.scan((dir, name) -> {
         importDicom(dir, name, studyDataFactory);
       }, files);
     }
   }
 
   public int scanNotify() {
+    if (leases != null) {
+      return new NotifyScanner(this, leases, notifyThreads).scan();
+    }
     var dir = getNotifyDir();
     var files = fileHandler.listContentsIncreasingAge(dir);
     files.forEach(name -> {
@@ -166,6 +293,7 @@ public class StudyManager {
   }
 
   public void importDicom(SopId id, Attributes attr) throws Exception {
+    long traceStart = Metrics.start();
     Object pixelData = attr.getValue(Tag.PixelData);
     if (pixelData instanceof BulkData) {
       imageConsumer.saveUncompressed(id, attr, (BulkData) pixelData);
@@ -185,18 +313,31 @@ public class StudyManager {
       return true;
     }, true);
     instanceConsumer.accept(id, attr);
+    tracer.record(id.getStudyInstanceUid(), "import", traceStart, id.getSopInstanceUid());
   }
 
+  /**
+   * Imports the given part 10 file.  Only the header is read first, so instances already in the study are skipped
+   * without parsing the rest of the file, which makes re-running over a mostly processed directory cheap.
+   */
   public void importDicom(String dir, String name, StudyDataFactory factory) {
     File file = new File(dir, name);
     log.warn("Import dicom dir {} name {}", dir, name);
     try {
+      long start = Metrics.start();
+      Attributes header = DicomAccess.readHeader(dir, name);
+      if (header == null || !header.containsValue(Tag.SOPInstanceUID)) return;
+      SopId id = factory.createSopId(header);
+      if (id.getStudyData().alreadyExists(id)) {
+        studyStats.add("Already Exists", 250, "Skipped existing instance {}/{}", dir, name);
+        return;
+      }
       Attributes attr = DicomAccess.readFile(fileHandler, dir, name);
+      metrics.record(Metrics.Stage.PARSE, start);
       if (attr == null) return;
-      SopId id = factory.createSopId(attr);
-      if (id.getStudyData().alreadyExists(id)) return;
+      tracer.record(attr, "read", start, name);
       // Steps here are to extract the bulkdata, pixel data and then send the attr to the instance consumer.
-      DicomImageReader reader = (DicomImageReader) ImageIO.getImageReadersByFormatName("DICOM").next();
+      DicomImageReader reader = DicomAccess.getDicomImageReader();
       studyStats.add("DICOMP10 Read", 250, "Read DICOM Part 10 file {}/{}", dir, name);
       try (FileImageInputStream fiis = new FileImageInputStream(file)) {
         reader.setInput(fiis);
@@ -204,6 +345,8 @@ public class StudyManager {
         importDicom(id, attr);
       } catch (Exception e) {
         overallStats.add("Non DICOM P10", 1, "Unable to process {}", e);
+      } finally {
+        reader.reset();
       }
     } catch (DicomStreamException dse) {
       log.debug("Skipping non-dicom {}", file);
@@ -239,6 +382,8 @@ public class StudyManager {
   public void setDicomWebDir(String dir) {
     if (dir == null) return;
     this.dicomWebDir = dir;
+    // The leases live in the DICOMweb tree, so they move with it
+    if (leases != null) leases = new Leases(new File(getLeaseDir()), leases.getLeaseMillis());
   }
 
   public String getDeduplicatedInstancesDir(String studyUid) {
@@ -257,6 +402,15 @@ public class StudyManager {
   }
 
   public List<Attributes> queryStudies(HashMap<String, String> query, BiConsumer<SopId,Attributes> consumer) throws IOException {
+    return queryStudies(query, consumer, Runnable::run);
+  }
+
+  /**
+   * Queries for the matching studies, and then reads the deduplicated group and calls the consumer for each
+   * study on the executor, returning once all the studies have been consumed.  A study that fails doesn't stop
+   * the others, but once they are all done the failures are thrown together.
+   */
+  public List<Attributes> queryStudies(HashMap<String, String> query, BiConsumer<SopId,Attributes> consumer, Executor executor) throws IOException {
     String studyUid = query.get("StudyInstanceUID");
     List<Attributes> ret;
     if( studyUid!=null ) {
@@ -265,12 +419,27 @@ public class StudyManager {
       ret = JsonAccess.read(fileHandler,getDicomWebDir(),"studies.gz");
     }
     log.warn("There are {} results", ret.size());
+    var futures = new ArrayList<CompletableFuture<Void>>();
+    var failures = new ConcurrentLinkedQueue<RuntimeException>();
     for(var attr : ret) {
-      SopId id = new SopId(attr);
-      id.setStudyData(new StudyData(id,this));
-      id.getStudyData().readDeduplicatedGroup();
-      // No need to read single instances - this tool only operations on already grouped data.
-      consumer.accept(id,attr);
+      futures.add(CompletableFuture.runAsync(() -> {
+        SopId id = new SopId(attr);
+        try {
+          id.setStudyData(new StudyData(id,this));
+          id.getStudyData().readDeduplicatedGroup();
+          // No need to read single instances - this tool only operations on already grouped data.
+          consumer.accept(id,attr);
+        } catch(RuntimeException e) {
+          log.warn("Unable to process study {}", id.getStudyInstanceUid(), e);
+          failures.add(e);
+        }
+      }, executor));
+    }
+    CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+    if( !failures.isEmpty() ) {
+      var e = new IllegalStateException(failures.size() + " of " + ret.size() + " studies failed", failures.poll());
+      failures.forEach(e::addSuppressed);
+      throw e;
     }
     return ret;
   }
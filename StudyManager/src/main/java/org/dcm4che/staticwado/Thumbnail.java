@@ -0,0 +1,124 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.imageio.plugins.dcm.DicomImageReadParam;
+import org.dcm4che3.imageio.plugins.dcm.DicomImageReader;
+
+import javax.imageio.ImageReadParam;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * Sizes thumbnails.  The frame is decoded subsampled, with the window level from the instance (or an automatic
+ * window when there isn't one), and then scaled so the longest side is the thumbnail size.  When the frame was
+ * already decoded for transcoding, the thumbnail is made from that raster instead.
+ */
+public class Thumbnail {
+    public static final int DEFAULT_SIZE = 128;
+
+    /**
+     * Returns the subsampling to decode a rows x cols frame at, so that the longest side is still at least size.
+     * A size of 0 or less means full resolution.
+     */
+    public static int subsampling(int rows, int cols, int size) {
+        if (size <= 0) return 1;
+        return Math.max(1, Math.max(rows, cols) / size);
+    }
+
+    /** Returns the read param for a thumbnail of the given size of the image in attr */
+    public static ImageReadParam readParam(DicomImageReader reader, Attributes attr, int size) {
+        ImageReadParam param = reader.getDefaultReadParam();
+        int sampling = subsampling(attr.getInt(Tag.Rows, 0), attr.getInt(Tag.Columns, 0), size);
+        if (sampling > 1) {
+            param.setSourceSubsampling(sampling, sampling, 0, 0);
+        }
+        if (param instanceof DicomImageReadParam) {
+            DicomImageReadParam dicomParam = (DicomImageReadParam) param;
+            dicomParam.setPreferWindow(true);
+            dicomParam.setAutoWindowing(true);
+        }
+        return param;
+    }
+
+    /**
+     * Creates the thumbnail from an already decoded raster.  Greyscale images are sampled every subsampling
+     * pixels and windowed by the window center/width of the instance, or by the range of the sampled values when
+     * there isn't one.  Colour images use the colour model.
+     */
+    public static BufferedImage fromRaster(Raster raster, Attributes attr, ColorModel colorModel, int size) {
+        String pmi = attr.getString(Tag.PhotometricInterpretation, "MONOCHROME2");
+        if (raster.getNumBands() != 1 || !pmi.startsWith("MONOCHROME")) {
+            return scale(new BufferedImage(colorModel, (WritableRaster) raster, false, null), size);
+        }
+        int step = subsampling(raster.getHeight(), raster.getWidth(), size);
+        int width = (raster.getWidth() + step - 1) / step;
+        int height = (raster.getHeight() + step - 1) / step;
+        int bitsStored = attr.getInt(Tag.BitsStored, attr.getInt(Tag.BitsAllocated, 8));
+        boolean signed = attr.getInt(Tag.PixelRepresentation, 0) == 1;
+        int shift = 32 - Math.min(bitsStored, 32);
+        int[] values = new int[width * height];
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int value = raster.getSample(raster.getMinX() + x * step, raster.getMinY() + y * step, 0);
+                value = signed ? (value << shift) >> shift : (value << shift) >>> shift;
+                values[i++] = value;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+        double slope = attr.getDouble(Tag.RescaleSlope, 1.0);
+        double intercept = attr.getDouble(Tag.RescaleIntercept, 0.0);
+        double center = attr.getDouble(Tag.WindowCenter, Double.NaN);
+        double window = attr.getDouble(Tag.WindowWidth, Double.NaN);
+        if (values.length > 0 && (Double.isNaN(center) || !(window >= 1))) {
+            double low = Math.min(min * slope, max * slope) + intercept;
+            double high = Math.max(min * slope, max * slope) + intercept;
+            center = (low + high) / 2;
+            window = Math.max(1, high - low + 1);
+        }
+        // The DICOM linear VOI function
+        double range = Math.max(window - 1, 1e-9);
+        boolean invert = "MONOCHROME1".equals(pmi);
+        BufferedImage ret = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] dest = ((DataBufferByte) ret.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < values.length; i++) {
+            double level = ((values[i] * slope + intercept - (center - 0.5)) / range + 0.5) * 255;
+            int grey = (int) Math.round(Math.max(0, Math.min(255, level)));
+            dest[i] = (byte) (invert ? 255 - grey : grey);
+        }
+        return scale(ret, size);
+    }
+
+    /**
+     * Scales the image so the longest side is size, as 8 bit grey or RGB.  Returns the image unchanged if it is
+     * already small enough.  Readers that ignore the subsampling still get the right sized thumbnail this way.
+     */
+    public static BufferedImage scale(BufferedImage src, int size) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+        int longest = Math.max(width, height);
+        if (size <= 0 || longest <= size) return src;
+        int destWidth = Math.max(1, (int) Math.round((double) width * size / longest));
+        int destHeight = Math.max(1, (int) Math.round((double) height * size / longest));
+        int type = src.getColorModel().getNumColorComponents() == 1 ?
+                BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB;
+        BufferedImage dest = new BufferedImage(destWidth, destHeight, type);
+        Graphics2D g = dest.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(src, 0, 0, destWidth, destHeight, null);
+        } finally {
+            g.dispose();
+        }
+        return dest;
+    }
+}
@@ -0,0 +1,233 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Per study trace spans of the ingest pipeline: reading each instance, converting each frame, thumbnails,
+ * deduplication, group, metadata and index writes, and waits for shared locks.  Spans are timed like the metrics,
+ * with a start from Metrics.start() and a record at the end, and are kept per study until the study completes,
+ * when they are written as a Chrome trace (chrome://tracing, Perfetto) to the trace directory.  Traces of studies
+ * that see no spans for the max age, because they never complete, are dropped, and only valid study UIDs are
+ * traced as the UID names the trace file.
+ * Tracing is off by default, and only costs a field read per span then.
+ */
+public class Tracer {
+    private static final Logger log = LoggerFactory.getLogger(Tracer.class);
+
+    public static final String ALL = "*";
+    public static final int DEFAULT_MAX_EVENTS = 100_000;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 60 * 60 * 1000L;
+    private static final Pattern UID_PATTERN = Pattern.compile("[0-9]+(\\.[0-9]+)*");
+    private static final int MAX_UID_LENGTH = 64;
+
+    private final Map<String, StudyTrace> traces = new ConcurrentHashMap<>();
+    private final Map<Long, String> threadNames = new ConcurrentHashMap<>();
+    private final long baseNanos = System.nanoTime();
+    private final long baseMicros = System.currentTimeMillis() * 1000;
+    private volatile boolean enabled;
+    private boolean all;
+    private Set<String> studies = new HashSet<>();
+    private File dir;
+    private int maxEvents = DEFAULT_MAX_EVENTS;
+    private long maxAgeNanos = DEFAULT_MAX_AGE_MILLIS * 1_000_000L;
+
+    /**
+     * Traces the given study UIDs, or every study for *, writing the traces to dir.  A null or empty list
+     * turns tracing off.
+     */
+    public Tracer setStudies(Collection<String> studyUids, File dir) {
+        this.studies = studyUids == null ? new HashSet<>() : new HashSet<>(studyUids);
+        this.all = studies.contains(ALL);
+        this.dir = dir;
+        this.enabled = !studies.isEmpty();
+        return this;
+    }
+
+    /** Sets the most spans kept per study, later spans are counted but dropped */
+    public Tracer setMaxEvents(int maxEvents) {
+        this.maxEvents = maxEvents;
+        return this;
+    }
+
+    /** Sets how long a study trace is kept without new spans before it is dropped */
+    public Tracer setMaxAge(long maxAgeMillis) {
+        this.maxAgeNanos = maxAgeMillis * 1_000_000L;
+        return this;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isTraced(String studyUid) {
+        return enabled && studyUid != null && (all || studies.contains(studyUid));
+    }
+
+    /** Records a span of the study from start, from Metrics.start(), to now.  Detail is shown as an argument. */
+    public void record(String studyUid, String name, long start, Object detail) {
+        if (!isTraced(studyUid)) return;
+        long end = System.nanoTime();
+        Thread thread = Thread.currentThread();
+        threadNames.computeIfAbsent(thread.getId(), id -> thread.getName());
+        StudyTrace trace = traces.get(studyUid);
+        if (trace == null) {
+            if (!isValidUid(studyUid)) {
+                log.warn("Not tracing invalid study UID {}", studyUid);
+                return;
+            }
+            evictExpired(end);
+            trace = traces.computeIfAbsent(studyUid, uid -> new StudyTrace());
+        }
+        trace.add(new Span(name, start, end - start, thread.getId(), detail), maxEvents, end);
+    }
+
+    static boolean isValidUid(String uid) {
+        return uid.length() <= MAX_UID_LENGTH && UID_PATTERN.matcher(uid).matches();
+    }
+
+    /** Drops the traces of studies without a span for the max age, checked as new studies start being traced */
+    private void evictExpired(long now) {
+        traces.entrySet().removeIf(entry -> {
+            if (now - entry.getValue().lastNanos <= maxAgeNanos) return false;
+            log.warn("Dropped trace of study {}, which had no spans for {} ms", entry.getKey(), maxAgeNanos / 1_000_000);
+            return true;
+        });
+    }
+
+    /** Records a span of the study the instance attributes belong to */
+    public void record(Attributes attr, String name, long start, Object detail) {
+        if (!enabled) return;
+        record(attr.getString(Tag.StudyInstanceUID), name, start, detail);
+    }
+
+    /** Writes the trace of a completed study to the trace directory, and forgets it */
+    public void complete(String studyUid) {
+        if (!enabled || studyUid == null || !isValidUid(studyUid)) return;
+        StudyTrace trace = traces.remove(studyUid);
+        if (trace == null || dir == null) return;
+        File file = new File(dir, studyUid + ".trace.json");
+        try {
+            dir.mkdirs();
+            File temp = new File(dir, "temp-" + Math.random());
+            try (Writer writer = new OutputStreamWriter(Files.newOutputStream(temp.toPath()), StandardCharsets.UTF_8)) {
+                writeChromeTrace(studyUid, trace, writer);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            log.warn("Wrote {} spans of study {} to {}", trace.spans.size(), studyUid, file);
+        } catch (IOException e) {
+            log.warn("Unable to write trace of {} to {}", studyUid, file, e);
+        }
+    }
+
+    /**
+     * Writes the spans recorded so far for the study in the Chrome trace event format, or returns false if the
+     * study has no trace.
+     */
+    public boolean writeChromeTrace(String studyUid, Writer writer) {
+        StudyTrace trace = traces.get(studyUid);
+        if (trace == null) return false;
+        writeChromeTrace(studyUid, trace, writer);
+        return true;
+    }
+
+    private void writeChromeTrace(String studyUid, StudyTrace trace, Writer writer) {
+        List<Span> spans = new ArrayList<>(trace.spans);
+        spans.sort((a, b) -> Long.compare(a.start, b.start));
+        Set<Long> threads = new HashSet<>();
+        try (JsonGenerator generator = Json.createGenerator(writer)) {
+            generator.writeStartObject();
+            generator.write("displayTimeUnit", "ms");
+            generator.writeStartObject("otherData");
+            generator.write("studyInstanceUid", studyUid);
+            generator.write("droppedSpans", trace.dropped.get());
+            generator.writeEnd();
+            generator.writeStartArray("traceEvents");
+            for (Span span : spans) {
+                threads.add(span.thread);
+                generator.writeStartObject();
+                generator.write("name", span.name);
+                generator.write("cat", "ingest");
+                generator.write("ph", "X");
+                generator.write("ts", baseMicros + (span.start - baseNanos) / 1000);
+                generator.write("dur", Math.max(span.duration / 1000, 1));
+                generator.write("pid", 1);
+                generator.write("tid", span.thread);
+                if (span.detail != null) {
+                    generator.writeStartObject("args");
+                    generator.write("detail", span.detail.toString());
+                    generator.writeEnd();
+                }
+                generator.writeEnd();
+            }
+            for (Long thread : threads) {
+                generator.writeStartObject();
+                generator.write("name", "thread_name");
+                generator.write("ph", "M");
+                generator.write("pid", 1);
+                generator.write("tid", thread);
+                generator.writeStartObject("args");
+                generator.write("name", threadNames.getOrDefault(thread, String.valueOf(thread)));
+                generator.writeEnd();
+                generator.writeEnd();
+            }
+            generator.writeEnd();
+            generator.writeEnd();
+        }
+    }
+
+    private static class StudyTrace {
+        final Queue<Span> spans = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger();
+        final AtomicInteger dropped = new AtomicInteger();
+        volatile long lastNanos = System.nanoTime();
+
+        void add(Span span, int maxEvents, long now) {
+            lastNanos = now;
+            if (size.incrementAndGet() > maxEvents) {
+                dropped.incrementAndGet();
+                return;
+            }
+            spans.add(span);
+        }
+    }
+
+    private static class Span {
+        final String name;
+        final long start;
+        final long duration;
+        final long thread;
+        final Object detail;
+
+        Span(String name, long start, long duration, long thread, Object detail) {
+            this.name = name;
+            this.start = start;
+            this.duration = duration;
+            this.thread = thread;
+            this.detail = detail;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryDeduplicatedTest {
+    private static Attributes instance(String series, String sop) {
+        Attributes attr = new Attributes();
+        attr.setString(Tag.SeriesInstanceUID, VR.UI, series);
+        attr.setString(Tag.SOPInstanceUID, VR.UI, sop);
+        attr.setInt(Tag.InstanceNumber, VR.IS, sop.length());
+        return attr;
+    }
+
+    private static DeduplicatedInstances instances() {
+        DeduplicatedInstances ret = new DeduplicatedInstances();
+        ret.add("h1", "1.1", "1", instance("1", "1.1"));
+        ret.add("h2", "1.2", "1", instance("1", "1.2"));
+        ret.add("h3", "2.1", "2", instance("2", "2.1"));
+        return ret;
+    }
+
+    @Test void testRoundTrip() throws IOException {
+        DeduplicatedInstances instances = instances();
+        var bos = new ByteArrayOutputStream();
+        BinaryDeduplicated.write(bos, "group", List.of("ref1"), instances, instances.sortedByHash());
+
+        List<String> refs = new ArrayList<>();
+        DeduplicatedInstances read = new DeduplicatedInstances();
+        String groupHash = BinaryDeduplicated.read(new ByteArrayInputStream(bos.toByteArray()), refs::add,
+                read::addSerialized);
+        assertEquals("group", groupHash);
+        assertEquals(List.of("ref1"), refs);
+        assertEquals(3, read.size());
+        int position = read.indexOf("2.1");
+        assertEquals("2", read.getSeriesUid(position));
+        assertEquals("2.1", read.get(position).getString(Tag.SOPInstanceUID));
+    }
+}
@@ -0,0 +1,80 @@
+package org.dcm4che.staticwado;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompressionTest {
+    private static byte[] json(int length) {
+        Random random = new Random(length);
+        String chars = "{}[],:\" 0123456789abcdef";
+        byte[] ret = new byte[length];
+        for (int i = 0; i < length; i++) ret[i] = (byte) chars.charAt(random.nextInt(chars.length()));
+        return ret;
+    }
+
+    private static byte[] roundTrip(Compression compression, Compression.OutputClass outputClass, byte[] data)
+            throws IOException {
+        var bos = new ByteArrayOutputStream();
+        try (OutputStream os = compression.gzip(bos, outputClass)) {
+            for (int off = 0; off < data.length; off += 1000) {
+                os.write(data, off, Math.min(1000, data.length - off));
+            }
+        }
+        try (var is = new GZIPInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+            return is.readAllBytes();
+        }
+    }
+
+    @Test void testSerial() throws IOException {
+        Compression compression = new Compression().setThreads(1);
+        for (int length : new int[]{0, 1, 100_000}) {
+            byte[] data = json(length);
+            assertArrayEquals(data, roundTrip(compression, Compression.OutputClass.QUERY, data));
+            assertArrayEquals(data, roundTrip(compression, Compression.OutputClass.METADATA, data));
+        }
+    }
+
+    @Test void testParallelBlocks() throws IOException {
+        Compression compression = new Compression().setThreads(4);
+        for (int length : new int[]{0, Compression.DEFAULT_BLOCK_SIZE, 1_000_001}) {
+            byte[] data = json(length);
+            assertArrayEquals(data, roundTrip(compression, Compression.OutputClass.METADATA, data));
+        }
+    }
+
+    @Test void testGzipRecordedOncePerStream() throws IOException {
+        Metrics metrics = new Metrics();
+        Compression compression = new Compression().setThreads(4).setMetrics(metrics);
+        byte[] data = json(1_000_001);
+        // Written 1000 bytes at a time, and in several parallel blocks
+        roundTrip(compression, Compression.OutputClass.QUERY, data);
+        roundTrip(compression, Compression.OutputClass.METADATA, data);
+        assertEquals(2, metrics.getHistogram(Metrics.Stage.GZIP).snapshot().count);
+    }
+
+    @Test void testLevels() {
+        Compression compression = new Compression().setLevels("metadata=5, instances=0");
+        assertEquals(5, compression.getLevel(Compression.OutputClass.METADATA));
+        assertEquals(0, compression.getLevel(Compression.OutputClass.INSTANCES));
+        assertThrows(IllegalArgumentException.class, () -> compression.setLevels("metadata=10"));
+    }
+
+    @Test void testClassify() {
+        StudyManager manager = new StudyManager();
+        manager.setDicomWebDir("/dicomweb");
+        FileHandler fileHandler = manager.fileHandler;
+        assertEquals(Compression.OutputClass.DEDUPLICATED, fileHandler.classify("/dicomweb/studies/1.2.3", "deduplicated"));
+        assertEquals(Compression.OutputClass.DEDUPLICATED, fileHandler.classify("/dicomweb/deduplicated/1.2.3", "abc"));
+        assertEquals(Compression.OutputClass.INSTANCES, fileHandler.classify("/dicomweb/instances/1.2.3", "abc"));
+        assertEquals(Compression.OutputClass.METADATA, fileHandler.classify("/dicomweb/studies/1.2.3", "series/1.2/metadata"));
+        assertEquals(Compression.OutputClass.QUERY, fileHandler.classify("/dicomweb/studies/1.2.3", "series"));
+    }
+}
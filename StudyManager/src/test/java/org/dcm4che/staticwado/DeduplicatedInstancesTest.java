@@ -0,0 +1,79 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeduplicatedInstancesTest {
+
+    static Attributes instance(String seriesUid, String sopUid, int number) {
+        Attributes attr = new Attributes();
+        attr.setString(Tag.SeriesInstanceUID, VR.UI, seriesUid);
+        attr.setString(Tag.SOPInstanceUID, VR.UI, sopUid);
+        attr.setInt(Tag.InstanceNumber, VR.IS, number);
+        attr.setString(Tag.SliceThickness, VR.DS, "1.50");
+        attr.setString(Tag.PatientName, VR.PN, "Test^Patient");
+        return attr;
+    }
+
+    static DeduplicatedInstances create(int count) {
+        DeduplicatedInstances ret = new DeduplicatedInstances();
+        for (int i = 0; i < count; i++) {
+            Attributes attr = instance("1.2." + (i % 3), "1.2.3." + i, i);
+            assertTrue(ret.add(DicomAccess.hashAttributes(attr), "1.2.3." + i, "1.2." + (i % 3), attr));
+        }
+        return ret;
+    }
+
+    @Test void testLookupsPastTableGrowth() {
+        // More than the initial array and index sizes, so both have to grow
+        DeduplicatedInstances instances = create(300);
+        assertEquals(300, instances.size());
+        assertEquals(300, instances.sopCount());
+        for (int i = 0; i < 300; i++) {
+            int position = instances.indexOf("1.2.3." + i);
+            assertEquals(i, position);
+            assertEquals(position, instances.indexOf(instances.getHash(position)));
+            assertEquals(i, instances.get(position).getInt(Tag.InstanceNumber, -1));
+        }
+        assertEquals(-1, instances.indexOf("1.2.3.300"));
+        assertFalse(instances.containsSop(null));
+    }
+
+    @Test void testDuplicates() {
+        DeduplicatedInstances instances = create(2);
+        Attributes attr = instance("1.2.0", "1.2.3.0", 0);
+        assertFalse(instances.add(DicomAccess.hashAttributes(attr), "1.2.3.0", "1.2.0", attr));
+        // A new version of an existing SOP instance is kept, but the first stays the one looked up by SOP
+        Attributes updated = instance("1.2.0", "1.2.3.0", 10);
+        assertTrue(instances.add(DicomAccess.hashAttributes(updated), "1.2.3.0", "1.2.0", updated));
+        assertEquals(3, instances.size());
+        assertEquals(2, instances.sopCount());
+        assertEquals(0, instances.indexOf("1.2.3.0"));
+    }
+
+    @Test void testSeriesPositionsAndSort() {
+        DeduplicatedInstances instances = create(7);
+        Map<String, int[]> series = instances.getSeriesPositions();
+        assertArrayEquals(new int[]{0, 3, 6}, series.get("1.2.0"));
+        assertArrayEquals(new int[]{1, 4}, series.get("1.2.1"));
+        int[] sorted = instances.sortedByHash();
+        String[] hashes = Arrays.stream(sorted).mapToObj(instances::getHash).toArray(String[]::new);
+        String[] expected = hashes.clone();
+        Arrays.sort(expected);
+        assertArrayEquals(expected, hashes);
+    }
+
+    @Test void testHashOfMatchesParsedHash() {
+        DeduplicatedInstances instances = create(5);
+        int[] sorted = instances.sortedByHash();
+        assertEquals(DicomAccess.hashAttributes(instances.iterable(sorted)), instances.hashOf(sorted));
+        assertEquals(DicomAccess.hashAttributes(instances.iterable(new int[0])), instances.hashOf(new int[0]));
+    }
+}
@@ -0,0 +1,78 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DirScannerTest {
+
+    private static void createTree(Path root) throws IOException {
+        for (int d = 0; d < 5; d++) {
+            for (int s = 0; s < 3; s++) {
+                Path dir = Files.createDirectories(root.resolve("d" + d).resolve("s" + s));
+                for (int f = 0; f < 10; f++) {
+                    Files.write(dir.resolve(f + (f % 2 == 0 ? ".dcm" : ".txt")), new byte[1]);
+                }
+            }
+        }
+    }
+
+    private static List<String> scan(DirScanner scanner, Path root) {
+        List<String> ret = new ArrayList<>();
+        int count = scanner.scan((dir, name) -> ret.add(root.relativize(Path.of(dir, name)).toString()), root.toString());
+        assertEquals(ret.size(), count);
+        return ret;
+    }
+
+    @Test void testScanNested(@TempDir Path root) throws IOException {
+        createTree(root);
+        List<String> files = scan(new DirScanner().setThreads(2).setQueueSize(1), root);
+        assertEquals(150, files.size());
+        // Files of a directory are passed on together, in name order
+        int first = files.indexOf(Path.of("d3", "s1", "0.dcm").toString());
+        assertEquals(Path.of("d3", "s1", "1.txt").toString(), files.get(first + 1));
+    }
+
+    @Test void testIncludeExclude(@TempDir Path root) throws IOException {
+        createTree(root);
+        assertEquals(75, scan(new DirScanner().setIncludes("*.dcm"), root).size());
+        assertEquals(40, scan(new DirScanner().setIncludes("*.dcm").setExcludes("d0,s0"), root).size());
+        assertEquals(30, scan(new DirScanner().setIncludes("d1/**"), root).size());
+    }
+
+    @Test void testDicomdir(@TempDir Path root) throws IOException {
+        createTree(root);
+        Attributes dicomdir = new Attributes();
+        Sequence records = dicomdir.newSequence(Tag.DirectoryRecordSequence, 2);
+        for (String name : new String[]{"2.dcm", "0.dcm"}) {
+            Attributes record = new Attributes();
+            record.setString(Tag.DirectoryRecordType, VR.CS, "IMAGE");
+            record.setString(Tag.ReferencedFileID, VR.CS, "d2", "s1", name);
+            records.add(record);
+        }
+        File file = root.resolve(DirScanner.DICOMDIR).toFile();
+        try (DicomOutputStream dos = new DicomOutputStream(file)) {
+            dos.writeDataset(Attributes.createFileMetaInformation("1.2.3", UID.MediaStorageDirectoryStorage,
+                    UID.ExplicitVRLittleEndian), dicomdir);
+        }
+
+        List<String> files = scan(new DirScanner().setDicomdir(true), root);
+        assertEquals(List.of(Path.of("d2", "s1", "2.dcm").toString(), Path.of("d2", "s1", "0.dcm").toString()), files);
+        // Without DICOMDIR use, the DICOMDIR is just another file
+        assertEquals(151, scan(new DirScanner(), root).size());
+    }
+}
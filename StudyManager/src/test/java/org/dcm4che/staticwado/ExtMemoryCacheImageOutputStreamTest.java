@@ -0,0 +1,52 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExtMemoryCacheImageOutputStreamTest {
+    private static byte[] data(int length) {
+        byte[] ret = new byte[length];
+        for (int i = 0; i < length; i++) ret[i] = (byte) i;
+        return ret;
+    }
+
+    @Test void testGrowAndSeekBack() throws IOException {
+        RasterPool pool = new RasterPool(2);
+        try (ExtMemoryCacheImageOutputStream ios = new ExtMemoryCacheImageOutputStream(new Attributes(), pool)) {
+            ios.write(data(200_000));
+            ios.seek(2);
+            ios.write(new byte[]{9, 9});
+            ios.seek(ios.length());
+            ios.write(1);
+            ByteBuffer encoded = ios.toByteBuffer();
+            assertEquals(200_001, encoded.remaining());
+            assertEquals(1, encoded.get(1));
+            assertEquals(9, encoded.get(2));
+            assertEquals(1, encoded.get(200_000));
+            ios.seek(0);
+            assertEquals(0, ios.read());
+        }
+    }
+
+    @Test void testStreamToOutput() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ExtMemoryCacheImageOutputStream ios = new ExtMemoryCacheImageOutputStream(new Attributes(), new RasterPool(2));
+        ios.setOutputStream(out);
+        ios.write(data(1000));
+        ios.flushBefore(500);
+        assertEquals(500, out.size());
+        ios.seek(600);
+        ios.write(7);
+        ios.close();
+        byte[] written = out.toByteArray();
+        assertEquals(1000, written.length);
+        assertEquals(7, written[600]);
+        assertEquals((byte) 999, written[999]);
+    }
+}
@@ -0,0 +1,39 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExtractCacheTest {
+    private static Attributes patient(String name) {
+        Attributes attr = new Attributes();
+        attr.setString(Tag.PatientName, VR.PN, name);
+        return attr;
+    }
+
+    @Test void testHitsAndMisses() {
+        ExtractCache cache = new ExtractCache();
+        assertNotNull(cache.get("a", key -> patient("A")));
+        assertNotNull(cache.get("a", key -> fail("Should not reload")));
+        assertNull(cache.get("b", key -> null));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.size());
+    }
+
+    @Test void testEvictsLeastRecentlyUsed() {
+        long weight = ExtractCache.weigh(patient("A"));
+        ExtractCache cache = new ExtractCache(2 * weight);
+        cache.put("a", patient("A"));
+        cache.put("b", patient("B"));
+        cache.get("a", key -> fail("Should be cached"));
+        cache.put("c", patient("C"));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNotNull(cache.get("a", key -> fail("Should be cached")));
+        assertNull(cache.get("b", key -> null));
+    }
+}
@@ -0,0 +1,71 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.imageio.plugins.dcm.DicomImageReader;
+import org.dcm4che3.io.DicomOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.stream.FileImageInputStream;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FrameDecoderTest {
+
+    static Attributes rgb(int planarConfiguration, byte[] pixels) {
+        Attributes attr = new Attributes();
+        attr.setString(Tag.SOPClassUID, VR.UI, UID.SecondaryCaptureImageStorage);
+        attr.setString(Tag.SOPInstanceUID, VR.UI, "1.2.3.4");
+        attr.setInt(Tag.Rows, VR.US, 2);
+        attr.setInt(Tag.Columns, VR.US, 2);
+        attr.setInt(Tag.SamplesPerPixel, VR.US, 3);
+        attr.setInt(Tag.PlanarConfiguration, VR.US, planarConfiguration);
+        attr.setString(Tag.PhotometricInterpretation, VR.CS, "RGB");
+        attr.setInt(Tag.BitsAllocated, VR.US, 8);
+        attr.setInt(Tag.BitsStored, VR.US, 8);
+        attr.setInt(Tag.HighBit, VR.US, 7);
+        attr.setInt(Tag.PixelRepresentation, VR.US, 0);
+        attr.setBytes(Tag.PixelData, VR.OB, pixels);
+        return attr;
+    }
+
+    /** Writes the instance to a part 10 file, decodes the first frame of it and returns the pixel at x, y */
+    static int[] decodePixel(Path dir, Attributes instance, int x, int y) throws IOException {
+        File file = new File(dir.toFile(), "rgb.dcm");
+        try (DicomOutputStream dos = new DicomOutputStream(file)) {
+            dos.writeDataset(instance.createFileMetaInformation(UID.ExplicitVRLittleEndian), instance);
+        }
+        Attributes attr = DicomAccess.readFile(null, dir.toString(), "rgb.dcm");
+        DicomImageReader reader = DicomAccess.getDicomImageReader();
+        try (FileImageInputStream fiis = new FileImageInputStream(file)) {
+            reader.setInput(fiis);
+            StudyManager studyManager = new StudyManager();
+            try (FrameDecoder decoder = new FrameDecoder(reader, attr, studyManager.imageConsumer.getSpecifier(attr),
+                    new RasterPool(1), 0)) {
+                WritableRaster raster = decoder.read(1, attr.getValue(Tag.PixelData));
+                assertEquals(3, raster.getNumBands());
+                return raster.getPixel(x, y, (int[]) null);
+            }
+        } finally {
+            reader.reset();
+        }
+    }
+
+    @Test void testPlanarRgbFrame(@TempDir Path dir) throws IOException {
+        // Red plane, then green, then blue
+        byte[] pixels = {10, 20, 30, 40, 50, 60, 70, 80, 90, 100, 110, 120};
+        assertArrayEquals(new int[]{20, 60, 100}, decodePixel(dir, rgb(1, pixels), 1, 0));
+    }
+
+    @Test void testInterleavedRgbFrame(@TempDir Path dir) throws IOException {
+        byte[] pixels = {10, 50, 90, 20, 60, 100, 30, 70, 110, 40, 80, 120};
+        assertArrayEquals(new int[]{20, 60, 100}, decodePixel(dir, rgb(0, pixels), 1, 0));
+    }
+}
@@ -0,0 +1,35 @@
+package org.dcm4che.staticwado;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FramePackTest {
+    private static final String FRAMES = "series/1/instances/2/frames";
+
+    @Test void testClosedPackHasFramesAndIndex(@TempDir Path dir) throws IOException {
+        FramePack pack = new FramePack(new StudyManager().imageConsumer, dir.toString(), FRAMES);
+        assertEquals(0, pack.add(new byte[]{1, 2, 3}, "application/octet-stream").offset());
+        assertEquals(3, pack.add(new byte[]{4, 5}, "image/jpeg").offset());
+        pack.close();
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, Files.readAllBytes(dir.resolve(FRAMES + FramePack.EXTENSION)));
+        String index = Files.readString(dir.resolve(FRAMES + FramePack.INDEX_EXTENSION));
+        assertTrue(index.contains("{\"frame\":2,\"offset\":3,\"length\":2,\"contentType\":\"image/jpeg\"}"));
+    }
+
+    @Test void testAbortLeavesNoPack(@TempDir Path dir) throws IOException {
+        FramePack pack = new FramePack(new StudyManager().imageConsumer, dir.toString(), FRAMES);
+        pack.add(new byte[]{1, 2, 3}, "application/octet-stream");
+        pack.abort();
+        pack.close();
+        try (Stream<Path> files = Files.list(dir.resolve("series/1/instances/2"))) {
+            assertEquals(0, files.count());
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The written JSON is also the input to the deduplication hashes, so these pin the exact bytes, and the hashes
+ * of them, that existing data was written with.
+ */
+public class JsonAccessTest {
+    private static final String CT = "{\"00080018\":{\"vr\":\"UI\",\"Value\":[\"1.2.3\"]}," +
+            "\"00080060\":{\"vr\":\"CS\",\"Value\":[\"CT\"]}}";
+    private static final String MR = "{\"00080018\":{\"vr\":\"UI\",\"Value\":[\"1.2.4\"]}," +
+            "\"00080060\":{\"vr\":\"CS\",\"Value\":[\"MR\"]}}";
+
+    private static Attributes instance(String sopUid, String modality) {
+        Attributes attr = new Attributes();
+        attr.setString(Tag.SOPInstanceUID, VR.UI, sopUid);
+        attr.setString(Tag.Modality, VR.CS, modality);
+        return attr;
+    }
+
+    private static String write(Attributes... attributes) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        JsonAccess.write(os, attributes);
+        return os.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test void testMultipleItemBytes() throws IOException {
+        assertEquals("[" + CT + "\n," + MR + "\n]", write(instance("1.2.3", "CT"), instance("1.2.4", "MR")));
+    }
+
+    @Test void testSingleItemBytes() throws IOException {
+        assertEquals("[" + CT + "\n]", write(instance("1.2.3", "CT")));
+    }
+
+    @Test void testHashes() {
+        assertEquals("lulkyz5gnzodaq1gb2ke1d5iol7pax8",
+                DicomAccess.hashAttributes(instance("1.2.3", "CT"), instance("1.2.4", "MR")));
+        assertEquals("sme3fzb63g4iae3bglcb4vpahu2iwoq", DicomAccess.hashAttributes(instance("1.2.3", "CT")));
+    }
+
+    @Test void testWriteSingleBytes(@TempDir Path dir) throws IOException {
+        JsonAccess.writeSingle(new StudyManager().fileHandler, dir.toString(), "single.json.gz",
+                instance("1.2.3", "CT"));
+        try (InputStream is = new GZIPInputStream(Files.newInputStream(dir.resolve("single.json.gz")))) {
+            assertEquals(CT + "\n", new String(is.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test void testJsonOutputOnlyWritesOnClose() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        JsonAccess.JsonOutput out = new JsonAccess.JsonOutput(os);
+        out.write("{}\n");
+        out.flush();
+        assertEquals(0, os.size());
+        out.close();
+        assertEquals("{}\n", os.toString(StandardCharsets.UTF_8));
+    }
+}
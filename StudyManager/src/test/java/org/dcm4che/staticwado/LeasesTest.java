@@ -0,0 +1,81 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LeasesTest {
+
+    @Test void testClaimAndRelease(@TempDir Path dir) {
+        Leases node1 = new Leases(dir.toFile(), 60_000);
+        Leases node2 = new Leases(dir.toFile(), 60_000);
+        assertTrue(node1.tryAcquire("1.2.3"));
+        assertFalse(node2.tryAcquire("1.2.3"));
+        // Releasing a lease held by another node leaves it in place
+        node2.release("1.2.3");
+        assertFalse(node2.tryAcquire("1.2.3"));
+        node1.release("1.2.3");
+        assertTrue(node2.tryAcquire("1.2.3"));
+    }
+
+    @Test void testExpiredLeaseTakenOver(@TempDir Path dir) throws IOException {
+        Leases node1 = new Leases(dir.toFile(), 60_000);
+        Leases node2 = new Leases(dir.toFile(), 60_000);
+        assertTrue(node1.tryAcquire("1.2.3"));
+        Path lease = dir.resolve("1.2.3.lease");
+        Files.setLastModifiedTime(lease, FileTime.fromMillis(System.currentTimeMillis() - 120_000));
+        assertTrue(node2.tryAcquire("1.2.3"));
+        assertEquals(node2.getOwner(), Files.readString(lease));
+        // Renewing keeps the lease from expiring
+        Files.setLastModifiedTime(lease, FileTime.fromMillis(System.currentTimeMillis() - 120_000));
+        node2.renew("1.2.3");
+        assertFalse(node1.tryAcquire("1.2.3"));
+    }
+
+    @Test void testLeasesFollowDicomWebDir(@TempDir Path dir) {
+        StudyManager manager = new StudyManager().setNotifyThreads(2, 60);
+        manager.setDicomWebDir(dir.toString());
+        assertTrue(manager.leases.tryAcquire("1.2.3"));
+        assertTrue(Files.exists(dir.resolve("temp/leases/1.2.3.lease")));
+        assertEquals(60_000, manager.leases.getLeaseMillis());
+    }
+
+    @Test void testIndexLeasedElsewhereNotWritten(@TempDir Path dir) {
+        StudyManager manager = new StudyManager().setNotifyThreads(2, 60);
+        manager.setDicomWebDir(dir.toString());
+        Leases other = new Leases(new File(manager.getLeaseDir()), 60_000);
+        assertTrue(other.tryAcquire(StudyConsumer.INDEX_LEASE));
+        Attributes study = new Attributes();
+        study.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3");
+        StudyConsumer consumer = new StudyConsumer(manager);
+        assertThrows(StudyConsumer.IndexBusyException.class, () -> consumer.accept("1.2.3", study));
+        assertFalse(Files.exists(dir.resolve("studies/index.json.gz")));
+
+        other.release(StudyConsumer.INDEX_LEASE);
+        consumer.accept("1.2.3", study);
+        assertTrue(Files.exists(dir.resolve("studies/index.json.gz")));
+        // Released again once the index is written
+        assertTrue(other.tryAcquire(StudyConsumer.INDEX_LEASE));
+    }
+
+    @Test void testBoundedWait(@TempDir Path dir) {
+        Leases node1 = new Leases(dir.toFile(), 60_000);
+        Leases node2 = new Leases(dir.toFile(), 60_000);
+        assertTrue(node1.tryAcquire("1.2.3"));
+        long start = System.currentTimeMillis();
+        assertFalse(node2.tryAcquire("1.2.3", 100));
+        assertTrue(System.currentTimeMillis() - start < 10_000);
+        node1.release("1.2.3");
+        assertTrue(node2.tryAcquire("1.2.3", 100));
+    }
+}
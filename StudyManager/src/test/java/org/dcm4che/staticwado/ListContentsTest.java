@@ -0,0 +1,59 @@
+package org.dcm4che.staticwado;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ListContentsTest {
+
+    private static void touch(Path file, long time) throws IOException {
+        Files.createDirectories(file.getParent());
+        if (!Files.exists(file)) Files.write(file, new byte[1]);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(time));
+    }
+
+    @Test void testOldestFirst(@TempDir Path dir) throws IOException {
+        touch(dir.resolve("c"), 3_000_000L);
+        touch(dir.resolve("a"), 1_000_000L);
+        touch(dir.resolve("b"), 2_000_000L);
+        FileHandler fileHandler = new StudyManager().fileHandler;
+        assertEquals(List.of("a", "b", "c"), fileHandler.listContentsIncreasingAge(dir.toString()));
+        FileHandler.Listing listing = fileHandler.listContents(dir.toString());
+        assertEquals(2_000_000L, listing.getLastModified(1));
+        assertTrue(fileHandler.listContentsIncreasingAge(dir.resolve("missing").toString()).isEmpty());
+    }
+
+    @Test void testSortsWideTimeRange() {
+        FileHandler.Listing listing = FileHandler.Listing.sorted(new String[]{"a", "b", "c"},
+                new long[]{5, Long.MAX_VALUE, -3});
+        assertEquals(List.of("c", "a", "b"), listing.getNames());
+    }
+
+    @Test void testCacheInvalidatedByWrites(@TempDir Path dir) throws IOException {
+        StudyManager manager = new StudyManager();
+        manager.setDicomWebDir(dir.toString());
+        FileHandler fileHandler = manager.fileHandler.setListingCache(true);
+        String instances = dir.resolve("instances").toString();
+        touch(dir.resolve("instances/study1/old"), 1_000_000L);
+        touch(dir.resolve("instances/study1"), 1_000_000L);
+        touch(dir.resolve("instances/study2/old"), 2_000_000L);
+        touch(dir.resolve("instances/study2"), 2_000_000L);
+        FileHandler.Listing first = fileHandler.listContents(instances);
+        assertEquals(List.of("study1", "study2"), first.getNames());
+        assertSame(first, fileHandler.listContents(instances));
+
+        try (OutputStream os = fileHandler.openForWrite(instances + "/study1", "new", false, true)) {
+            os.write(1);
+        }
+        assertEquals(List.of("study2", "study1"), fileHandler.listContentsIncreasingAge(instances));
+        assertEquals(2, fileHandler.listContents(instances + "/study1").size());
+    }
+}
@@ -0,0 +1,54 @@
+package org.dcm4che.staticwado;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.StringWriter;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsTest {
+    @Test void testBuckets() {
+        for (long value : new long[]{0, 1, 15, 16, 17, 31, 32, 33, 1000, 123_456_789L, Long.MAX_VALUE}) {
+            int index = Metrics.Histogram.index(value);
+            assertTrue(index < Metrics.Histogram.BUCKETS);
+            assertTrue(Metrics.Histogram.upperBound(index) >= value, "upper bound of " + value);
+            if (index > 0) assertTrue(Metrics.Histogram.upperBound(index - 1) < value, "lower bound of " + value);
+        }
+    }
+
+    @Test void testQuantiles() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        for (int i = 1; i <= 1000; i++) histogram.record(i * 1000L);
+        Metrics.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.count);
+        assertEquals(1_000_000, snapshot.max);
+        long p50 = snapshot.quantile(0.5);
+        long p99 = snapshot.quantile(0.99);
+        assertTrue(p50 >= 500_000 && p50 < 500_000 * 1.07, "p50 " + p50);
+        assertTrue(p99 >= 990_000 && p99 <= 1_000_000, "p99 " + p99);
+        assertEquals(0, new Metrics.Histogram().snapshot().quantile(0.99));
+    }
+
+    @Test void testExport() {
+        Metrics metrics = new Metrics();
+        metrics.record(Metrics.Stage.JSON, Metrics.start());
+        metrics.count("Thumbnail \"mid\"");
+        String text = metrics.toPrometheus();
+        assertTrue(text.contains("staticwado_stage_seconds_count{stage=\"json\"} 1\n"));
+        assertTrue(text.contains("staticwado_events_total{event=\"Thumbnail \\\"mid\\\"\"} 1\n"));
+        StringWriter json = new StringWriter();
+        metrics.writeJson(json);
+        assertTrue(json.toString().contains("\"json\":{\"count\":1"));
+    }
+
+    @Test void testSnapshotsReplaceShutdownHook(@TempDir Path dir) {
+        Metrics metrics = new Metrics();
+        metrics.startSnapshots(dir.resolve("first.json").toFile(), 3600);
+        Thread first = metrics.shutdownHook;
+        metrics.startSnapshots(dir.resolve("second.json").toFile(), 3600);
+        assertFalse(Runtime.getRuntime().removeShutdownHook(first));
+        assertTrue(Runtime.getRuntime().removeShutdownHook(metrics.shutdownHook));
+    }
+}
@@ -0,0 +1,73 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NotifyScannerTest {
+
+    /** Creates a manager with the given studies notified, each with one deduplicated instance */
+    static StudyManager notified(Path dir, String... studyUids) {
+        StudyManager manager = new StudyManager().setNotifyThreads(2, 60);
+        manager.setDicomWebDir(dir.toString());
+        for (String studyUid : studyUids) {
+            Attributes attr = new Attributes();
+            attr.setString(DicomAccess.DEDUPPED_CREATER, DicomAccess.DEDUPPED_TYPE, VR.CS, DicomAccess.INSTANCE_TYPE);
+            attr.setString(Tag.StudyInstanceUID, VR.UI, studyUid);
+            attr.setString(Tag.SeriesInstanceUID, VR.UI, studyUid + ".1");
+            attr.setString(Tag.SOPInstanceUID, VR.UI, studyUid + ".1.1");
+            JsonAccess.write(manager.fileHandler, manager.getDeduplicatedInstancesDir(studyUid), "instance", true, attr);
+        }
+        return manager;
+    }
+
+    /** A study handler that counts the completions of each study, with the index busy for the first busy calls */
+    static class CountingHandler extends CompleteStudyHandler {
+        final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+        final int busy;
+
+        CountingHandler(StudyManager callbacks, int busy) {
+            super(callbacks);
+            this.busy = busy;
+        }
+
+        @Override
+        public void completeStudy(StudyData data) {
+            int call = calls.computeIfAbsent(data.getStudyUid(), uid -> new AtomicInteger()).incrementAndGet();
+            if (call <= busy) throw new StudyConsumer.IndexBusyException("busy");
+        }
+
+        int calls(String studyUid) {
+            return calls.getOrDefault(studyUid, new AtomicInteger()).get();
+        }
+    }
+
+    @Test void testRequeuedWhenIndexBusy(@TempDir Path dir) {
+        StudyManager manager = notified(dir, "1.2.3", "4.5.6");
+        CountingHandler handler = new CountingHandler(manager, 1);
+        manager.studyHandler = handler;
+        // The scan only returns once the requeued passes have completed too
+        assertEquals(2, manager.scanNotify());
+        assertEquals(2, handler.calls("1.2.3"));
+        assertEquals(2, handler.calls("4.5.6"));
+    }
+
+    @Test void testGivesUpAfterMaxPasses(@TempDir Path dir) {
+        StudyManager manager = notified(dir, "1.2.3");
+        CountingHandler handler = new CountingHandler(manager, Integer.MAX_VALUE);
+        manager.studyHandler = handler;
+        assertEquals(0, manager.scanNotify());
+        assertEquals(NotifyScanner.MAX_PASSES, handler.calls("1.2.3"));
+        // The study leases are released, so another scan can complete it
+        assertTrue(manager.leases.tryAcquire("1.2.3"));
+    }
+}
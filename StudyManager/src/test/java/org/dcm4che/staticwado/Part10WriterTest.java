@@ -0,0 +1,110 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.BulkData;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class Part10WriterTest {
+    private static final byte[] FRAME = {1, 2, 3, 4, 5, 6, 7, 8};
+
+    /** Records whether it was closed, like an association PDV stream that must be left open */
+    static class CloseTrackingStream extends ByteArrayOutputStream {
+        boolean closed;
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    static Attributes instance(Path dir, String tsuid) throws IOException {
+        Files.write(dir.resolve("frame.raw"), FRAME);
+        Attributes attr = new Attributes();
+        attr.setString(Tag.SOPClassUID, VR.UI, UID.SecondaryCaptureImageStorage);
+        attr.setString(Tag.SOPInstanceUID, VR.UI, "1.2.3.4");
+        attr.setInt(Tag.Rows, VR.US, 2);
+        attr.setInt(Tag.Columns, VR.US, 2);
+        attr.setInt(Tag.BitsAllocated, VR.US, 16);
+        attr.setString(Tag.AvailableTransferSyntaxUID, VR.UI, tsuid);
+        attr.setValue(Tag.PixelData, VR.OW, new BulkDataReader(new StudyManager().fileHandler, dir.toString(),
+                new BulkData("frame.raw", 0, FRAME.length, false)));
+        return attr;
+    }
+
+    @Test void testLeavesStreamOpen(@TempDir Path dir) throws IOException {
+        CloseTrackingStream os = new CloseTrackingStream();
+        Part10Writer.write(instance(dir, UID.ExplicitVRLittleEndian), os, false);
+        assertFalse(os.closed);
+        try (DicomInputStream dis = new DicomInputStream(new ByteArrayInputStream(os.toByteArray()),
+                UID.ExplicitVRLittleEndian)) {
+            assertArrayEquals(FRAME, dis.readDataset().getBytes(Tag.PixelData));
+        }
+    }
+
+    @Test void testBigEndianSwapsWords(@TempDir Path dir) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        Part10Writer.write(instance(dir, UID.ExplicitVRBigEndian), os, false);
+        try (DicomInputStream dis = new DicomInputStream(new ByteArrayInputStream(os.toByteArray()),
+                UID.ExplicitVRBigEndian)) {
+            int[] values = dis.readDataset().getInts(Tag.PixelData);
+            assertEquals(0x0201, values[0]);
+            assertEquals(0x0807, values[3]);
+        }
+    }
+
+    @Test void testDecodesToNative(@TempDir Path dir) throws IOException {
+        // One RLE segment holding a literal run of the 4 pixels
+        ByteBuffer rle = ByteBuffer.allocate(70).order(ByteOrder.LITTLE_ENDIAN);
+        rle.putInt(0, 1).putInt(4, 64);
+        rle.position(64);
+        rle.put(new byte[]{3, 10, 20, 30, 40, 0});
+        Files.write(dir.resolve("frame.rle"), rle.array());
+        Attributes attr = new Attributes();
+        attr.setString(Tag.SOPClassUID, VR.UI, UID.SecondaryCaptureImageStorage);
+        attr.setString(Tag.SOPInstanceUID, VR.UI, "1.2.3.4");
+        attr.setInt(Tag.SamplesPerPixel, VR.US, 1);
+        attr.setString(Tag.PhotometricInterpretation, VR.CS, "MONOCHROME2");
+        attr.setInt(Tag.Rows, VR.US, 2);
+        attr.setInt(Tag.Columns, VR.US, 2);
+        attr.setInt(Tag.BitsAllocated, VR.US, 8);
+        attr.setInt(Tag.BitsStored, VR.US, 8);
+        attr.setInt(Tag.HighBit, VR.US, 7);
+        attr.setInt(Tag.PixelRepresentation, VR.US, 0);
+        attr.setString(Tag.AvailableTransferSyntaxUID, VR.UI, UID.RLELossless);
+        attr.setValue(Tag.PixelData, VR.OB, new BulkDataReader(new StudyManager().fileHandler, dir.toString(),
+                new BulkData("frame.rle", 0, 70, false)));
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        Part10Writer.writeDecoded(attr, UID.ExplicitVRLittleEndian, os);
+        try (DicomInputStream dis = new DicomInputStream(new ByteArrayInputStream(os.toByteArray()),
+                UID.ExplicitVRLittleEndian)) {
+            Attributes decoded = dis.readDataset();
+            assertArrayEquals(new byte[]{10, 20, 30, 40}, decoded.getBytes(Tag.PixelData));
+            assertEquals(UID.ExplicitVRLittleEndian, decoded.getString(Tag.AvailableTransferSyntaxUID));
+        }
+    }
+
+    @Test void testSwapsWordsSplitAcrossWrites() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        Part10Writer.SwappingChannel channel = new Part10Writer.SwappingChannel(Channels.newChannel(os));
+        channel.write(ByteBuffer.wrap(FRAME, 0, 3));
+        channel.write(ByteBuffer.wrap(FRAME, 3, 5));
+        assertArrayEquals(new byte[]{2, 1, 4, 3, 6, 5, 8, 7}, os.toByteArray());
+    }
+}
@@ -0,0 +1,22 @@
+package org.dcm4che.staticwado;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.DataBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RasterPoolTest {
+    @Test void testReuse() {
+        RasterPool pool = new RasterPool(1);
+        DataBuffer first = pool.take(DataBuffer.TYPE_USHORT, 512 * 512);
+        DataBuffer second = pool.take(DataBuffer.TYPE_USHORT, 512 * 512);
+        assertNotSame(first, second);
+        pool.release(first);
+        pool.release(second);
+        assertSame(first, pool.take(DataBuffer.TYPE_USHORT, 512 * 512));
+        assertNotSame(second, pool.take(DataBuffer.TYPE_USHORT, 512 * 512));
+        assertNotSame(second, pool.take(DataBuffer.TYPE_BYTE, 512 * 512));
+        assertEquals(100, pool.take(DataBuffer.TYPE_BYTE, 100).getSize());
+    }
+}
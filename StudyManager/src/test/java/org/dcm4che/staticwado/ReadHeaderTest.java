@@ -0,0 +1,45 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReadHeaderTest {
+
+    @Test void testReadHeaderStopsBeforePixelData(@TempDir Path dir) throws IOException {
+        Attributes attr = new Attributes();
+        attr.setString(Tag.SOPClassUID, VR.UI, UID.SecondaryCaptureImageStorage);
+        attr.setString(Tag.SOPInstanceUID, VR.UI, "1.2.3.4");
+        attr.setString(Tag.PatientName, VR.PN, "Test^Patient");
+        attr.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3");
+        attr.setString(Tag.SeriesInstanceUID, VR.UI, "1.2.3.1");
+        attr.setInt(Tag.Rows, VR.US, 2);
+        attr.setInt(Tag.Columns, VR.US, 2);
+        attr.setBytes(Tag.PixelData, VR.OW, new byte[8]);
+        File file = new File(dir.toFile(), "test.dcm");
+        try (DicomOutputStream dos = new DicomOutputStream(file)) {
+            dos.writeDataset(attr.createFileMetaInformation(UID.ExplicitVRLittleEndian), attr);
+        }
+
+        Attributes header = DicomAccess.readHeader(dir.toString(), "test.dcm");
+        assertEquals("1.2.3.4", header.getString(Tag.SOPInstanceUID));
+        assertEquals("1.2.3", header.getString(Tag.StudyInstanceUID));
+        assertEquals("1.2.3.1", header.getString(Tag.SeriesInstanceUID));
+        assertFalse(header.contains(Tag.Rows));
+        assertFalse(header.contains(Tag.PixelData));
+    }
+
+    @Test void testImageReaderReusedPerThread() {
+        assertSame(DicomAccess.getDicomImageReader(), DicomAccess.getDicomImageReader());
+    }
+}
@@ -0,0 +1,59 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ThumbnailTest {
+    @Test void testSubsampling() {
+        assertEquals(1, Thumbnail.subsampling(512, 512, 0));
+        assertEquals(1, Thumbnail.subsampling(100, 100, 128));
+        assertEquals(4, Thumbnail.subsampling(512, 400, 128));
+        assertEquals(32, Thumbnail.subsampling(4096, 3328, 128));
+    }
+
+    @Test void testScale() {
+        BufferedImage grey = new BufferedImage(400, 200, BufferedImage.TYPE_USHORT_GRAY);
+        BufferedImage thumb = Thumbnail.scale(grey, 128);
+        assertEquals(128, thumb.getWidth());
+        assertEquals(64, thumb.getHeight());
+        assertEquals(BufferedImage.TYPE_BYTE_GRAY, thumb.getType());
+
+        BufferedImage rgb = new BufferedImage(100, 300, BufferedImage.TYPE_3BYTE_BGR);
+        thumb = Thumbnail.scale(rgb, 150);
+        assertEquals(50, thumb.getWidth());
+        assertEquals(150, thumb.getHeight());
+        assertEquals(BufferedImage.TYPE_INT_RGB, thumb.getType());
+
+        assertSame(rgb, Thumbnail.scale(rgb, 300));
+        assertSame(rgb, Thumbnail.scale(rgb, 0));
+    }
+
+    @Test void testFromRaster() {
+        BufferedImage source = new BufferedImage(2, 1, BufferedImage.TYPE_USHORT_GRAY);
+        WritableRaster raster = source.getRaster();
+        raster.setSample(0, 0, 0, 50);
+        raster.setSample(1, 0, 0, 350);
+        Attributes attr = new Attributes();
+        attr.setString(Tag.PhotometricInterpretation, VR.CS, "MONOCHROME2");
+        attr.setInt(Tag.BitsStored, VR.US, 12);
+        attr.setDouble(Tag.WindowCenter, VR.DS, 200);
+        attr.setDouble(Tag.WindowWidth, VR.DS, 201);
+
+        BufferedImage thumb = Thumbnail.fromRaster(raster, attr, null, 128);
+        assertEquals(0, thumb.getRaster().getSample(0, 0, 0));
+        assertEquals(255, thumb.getRaster().getSample(1, 0, 0));
+
+        attr.setString(Tag.PhotometricInterpretation, VR.CS, "MONOCHROME1");
+        attr.remove(Tag.WindowCenter);
+        thumb = Thumbnail.fromRaster(raster, attr, null, 128);
+        assertEquals(255, thumb.getRaster().getSample(0, 0, 0));
+        assertEquals(0, thumb.getRaster().getSample(1, 0, 0));
+    }
+}
@@ -0,0 +1,70 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ToBytesTest {
+    @Test void testUShortLittleEndian() {
+        DataBufferUShort buffer = new DataBufferUShort(new short[]{0x0102, (short) 0xFFEE}, 2);
+        assertArrayEquals(new byte[]{2, 1, (byte) 0xEE, (byte) 0xFF}, ExtractImageFrames.toBytes(buffer));
+    }
+
+    @Test void testIntRgb() {
+        DataBufferInt buffer = new DataBufferInt(new int[]{0x112233, 0x445566}, 2);
+        assertArrayEquals(new byte[]{0x11, 0x22, 0x33, 0x44, 0x55, 0x66}, ExtractImageFrames.toBytes(buffer));
+    }
+
+    @Test void testReusesDestination() {
+        DataBufferByte banks = new DataBufferByte(new byte[][]{{1, 2}, {3, 4}}, 2);
+        ByteBuffer dest = ByteBuffer.allocate(4);
+        ByteBuffer ret = ExtractImageFrames.toByteBuffer(banks, dest);
+        assertSame(dest, ret);
+        assertEquals(4, ret.remaining());
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, ret.array());
+
+        byte[] single = {5, 6};
+        assertSame(single, ExtractImageFrames.toByteBuffer(new DataBufferByte(single, 2), dest).array());
+    }
+
+    @Test void testCopyByteBuffer() throws IOException {
+        ExtractImageFrames extract = new ExtractImageFrames(new StudyManager());
+        ByteBuffer value = ByteBuffer.wrap(new byte[]{1, 2, 3});
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        assertEquals(3, extract.copyFrom(value, os));
+        assertEquals(3, extract.copyFrom(value, os));
+        assertArrayEquals(new byte[]{1, 2, 3, 1, 2, 3}, os.toByteArray());
+        assertEquals(3, ExtractImageFrames.valueLength(value));
+    }
+
+    @Test void testFailedEncodeLeavesNoFrame(@TempDir Path dir) throws IOException {
+        ExtractImageFrames extract = new ExtractImageFrames(new StudyManager());
+        RasterPool pool = new RasterPool(2);
+        ExtMemoryCacheImageOutputStream encoded = new ExtMemoryCacheImageOutputStream(new Attributes(), pool);
+        assertThrows(IllegalStateException.class, () -> extract.streamFrame(dir.toString(), "frames/1", encoded, ios -> {
+            ios.write(new byte[100_000]);
+            ios.flushBefore(50_000);
+            throw new IllegalStateException("Encoder failed");
+        }));
+        try (Stream<Path> files = Files.list(dir.resolve("frames"))) {
+            assertEquals(0, files.count());
+        }
+
+        ExtMemoryCacheImageOutputStream ok = new ExtMemoryCacheImageOutputStream(new Attributes(), pool);
+        assertEquals(3, extract.streamFrame(dir.toString(), "frames/1", ok, ios -> ios.write(new byte[]{1, 2, 3}))
+                .longLength());
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(dir.resolve("frames/1")));
+    }
+}
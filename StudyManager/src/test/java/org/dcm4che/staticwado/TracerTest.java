@@ -0,0 +1,69 @@
+package org.dcm4che.staticwado;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TracerTest {
+    @Test void testDisabled() {
+        Tracer tracer = new Tracer();
+        tracer.record("1.2.3", "read", Metrics.start(), null);
+        assertFalse(tracer.isEnabled());
+        assertFalse(tracer.writeChromeTrace("1.2.3", new StringWriter()));
+    }
+
+    @Test void testSelectedStudies(@TempDir Path dir) throws IOException {
+        Tracer tracer = new Tracer().setStudies(List.of("1.2.3"), dir.toFile());
+        tracer.record("1.2.3", "convert", Metrics.start(), 2);
+        tracer.record("4.5.6", "convert", Metrics.start(), 1);
+        StringWriter json = new StringWriter();
+        assertTrue(tracer.writeChromeTrace("1.2.3", json));
+        assertFalse(tracer.writeChromeTrace("4.5.6", new StringWriter()));
+        assertTrue(json.toString().contains("\"name\":\"convert\""));
+        assertTrue(json.toString().contains("\"ph\":\"X\""));
+        assertTrue(json.toString().contains("\"detail\":\"2\""));
+        assertTrue(json.toString().contains("\"thread_name\""));
+
+        tracer.complete("1.2.3");
+        File file = dir.resolve("1.2.3.trace.json").toFile();
+        assertTrue(file.exists());
+        assertTrue(Files.readString(file.toPath()).contains("\"studyInstanceUid\":\"1.2.3\""));
+        assertFalse(tracer.writeChromeTrace("1.2.3", new StringWriter()));
+    }
+
+    @Test void testMaxEvents() {
+        Tracer tracer = new Tracer().setStudies(List.of(Tracer.ALL), null).setMaxEvents(2);
+        for (int i = 0; i < 5; i++) tracer.record("1.2.3", "frame", Metrics.start(), i);
+        StringWriter json = new StringWriter();
+        tracer.writeChromeTrace("1.2.3", json);
+        assertTrue(json.toString().contains("\"droppedSpans\":3"));
+    }
+
+    @Test void testInvalidUidNotTraced(@TempDir Path dir) throws IOException {
+        Tracer tracer = new Tracer().setStudies(List.of(Tracer.ALL), dir.toFile());
+        tracer.record("../1.2.3", "read", Metrics.start(), null);
+        assertFalse(tracer.writeChromeTrace("../1.2.3", new StringWriter()));
+        tracer.complete("../1.2.3");
+        try (var files = Files.list(dir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test void testIdleTracesDropped() throws InterruptedException {
+        Tracer tracer = new Tracer().setStudies(List.of(Tracer.ALL), null).setMaxAge(1);
+        tracer.record("1.2.3", "read", Metrics.start(), null);
+        Thread.sleep(20);
+        // Starting to trace another study drops the idle one
+        tracer.record("4.5.6", "read", Metrics.start(), null);
+        assertFalse(tracer.writeChromeTrace("1.2.3", new StringWriter()));
+        assertTrue(tracer.writeChromeTrace("4.5.6", new StringWriter()));
+    }
+}
@@ -0,0 +1,83 @@
+package org.dcm4che.staticwado.benchmarks;
+
+import org.dcm4che.staticwado.DicomAccess;
+import org.dcm4che.staticwado.StudyManager;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.BulkData;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.imageio.plugins.dcm.DicomImageReader;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.FileImageInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transcoding one native frame to each destination transfer syntax, including writing the frame file.
+ * The JPEG-LS and JPEG 2000 codecs need the opencv native library on java.library.path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=error")
+public class ConvertImageFormatBenchmark {
+    private static final Map<String, String> DESTINATIONS = Map.of(
+            "lei", UID.ImplicitVRLittleEndian,
+            "jls", UID.JPEGLSLossless,
+            "jll", UID.JPEGLosslessSV1,
+            "j2k", UID.JPEG2000Lossless);
+
+    @Param({"lei", "jls", "jll", "j2k"})
+    String destination;
+
+    @Param({"16", "8"})
+    int bitsAllocated;
+
+    @Param({"512"})
+    int size;
+
+    File dir;
+    StudyManager manager;
+    DicomImageReader reader;
+    FileImageInputStream input;
+    Attributes attr;
+    BulkData bulk;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("convert").toFile();
+        File source = new SyntheticStudy(1).size(size, size).bitsAllocated(bitsAllocated).write(dir, 1, 1);
+        manager = new StudyManager();
+        manager.setDicomWebDir(dir.getAbsolutePath());
+        manager.setDestinationTsuid(DESTINATIONS.get(destination));
+        manager.setRecompress("lei");
+        attr = DicomAccess.readFile(manager.fileHandler, dir.getAbsolutePath(), source.getName());
+        bulk = (BulkData) attr.getValue(Tag.PixelData);
+        reader = (DicomImageReader) ImageIO.getImageReadersByFormatName("DICOM").next();
+        input = new FileImageInputStream(source);
+        reader.setInput(input);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        reader.dispose();
+        input.close();
+        SyntheticStudy.deleteAll(dir);
+    }
+
+    @Benchmark
+    public BulkData convertImageFormat() {
+        // The conversion records the new transfer syntax, so put the source one back
+        attr.setString(Tag.AvailableTransferSyntaxUID, VR.UI, UID.ExplicitVRLittleEndian);
+        return manager.imageConsumer.convertImageFormat(reader, dir.getAbsolutePath(), attr,
+                "frames/1", 1, bulk, false);
+    }
+}
@@ -0,0 +1,56 @@
+package org.dcm4che.staticwado.benchmarks;
+
+import org.dcm4che.staticwado.SopId;
+import org.dcm4che.staticwado.StudyManager;
+import org.dcm4che3.data.Attributes;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * InstanceDeduplicate.accept on instance headers, including the extract and deduplicated instance writes it
+ * drives.  The instances cycle through a synthetic study, so after the first pass the extracts are already known.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=error")
+public class DeduplicateBenchmark {
+    @Param({"1000"})
+    int instances;
+
+    File dir;
+    StudyManager manager;
+    StudyManager.StudyDataFactory factory;
+    List<Attributes> headers;
+    int next;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("dedup").toFile();
+        manager = new StudyManager();
+        manager.setDicomWebDir(dir.getAbsolutePath());
+        factory = manager.createStudyDataFactory();
+        headers = new SyntheticStudy(1).series(10).instances(instances / 10).headers();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        SyntheticStudy.deleteAll(dir);
+    }
+
+    @Benchmark
+    public SopId accept() throws IOException {
+        Attributes attr = headers.get(next);
+        next = (next + 1) % headers.size();
+        SopId id = factory.createSopId(attr);
+        manager.instanceConsumer.accept(id, attr);
+        return id;
+    }
+}
@@ -0,0 +1,42 @@
+package org.dcm4che.staticwado.benchmarks;
+
+import org.dcm4che.staticwado.DicomAccess;
+import org.dcm4che3.data.Attributes;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing of attributes, which is done for every deduplicated group of every instance.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=error")
+public class HashBenchmark {
+    @Param({"100"})
+    int instances;
+
+    Attributes header;
+    List<Attributes> headers;
+
+    @Setup
+    public void setup() {
+        SyntheticStudy study = new SyntheticStudy(1).instances(instances);
+        header = study.header(1, 1);
+        headers = study.headers();
+    }
+
+    @Benchmark
+    public String hashInstance() {
+        return DicomAccess.hashAttributes(header);
+    }
+
+    @Benchmark
+    public String hashSeries() {
+        return DicomAccess.hashAttributes(headers);
+    }
+}
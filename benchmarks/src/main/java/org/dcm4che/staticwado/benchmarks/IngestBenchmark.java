@@ -0,0 +1,309 @@
+package org.dcm4che.staticwado.benchmarks;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.dcm4che.staticwado.Metrics;
+import org.dcm4che.staticwado.StaticWado;
+import org.dcm4che.staticwado.StaticWadoScp;
+import org.dcm4che.staticwado.StudyManager;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.net.*;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * End to end ingest benchmark.  Generates a synthetic corpus, then imports it with StudyManager.scanDicom and by
+ * sending it to a StaticWadoScp on the loopback interface, reporting instances/sec, MB/sec, files written and the
+ * peak heap of each run as JSON.  The usual StaticWado options configure the StudyManager of each run.
+ */
+public class IngestBenchmark {
+    private static final Logger log = LoggerFactory.getLogger(IngestBenchmark.class);
+
+    private final CommandLine cl;
+    private final File workDir;
+    private List<File> files;
+    private long inputBytes;
+
+    public IngestBenchmark(CommandLine cl) {
+        this.cl = cl;
+        this.workDir = new File(cl.getOptionValue("workDir", "build/ingest-benchmark"));
+    }
+
+    public static void addOptions(Options opts) {
+        opts.addOption(new Option(null, "studies", true, "Number of synthetic studies (default 2)"));
+        opts.addOption(new Option(null, "seriesPerStudy", true, "Number of series per study (default 2)"));
+        opts.addOption(new Option(null, "instancesPerSeries", true, "Number of instances per series (default 50)"));
+        opts.addOption(new Option(null, "frameSize", true, "Rows and columns of each frame (default 256)"));
+        opts.addOption(new Option(null, "bitsAllocated", true, "8 or 16 bit pixel data (default 16)"));
+        opts.addOption(new Option(null, "transferSyntaxes", true,
+            "Comma separated source transfer syntaxes, used round robin: lee, lei, jls, jll, j2k or jpeg (default lee)"));
+        opts.addOption(new Option(null, "multiframe", true, "Make every nth instance multi-frame (default none)"));
+        opts.addOption(new Option(null, "frames", true, "Number of frames of the multi-frame instances (default 10)"));
+        opts.addOption(new Option(null, "runs", true, "Comma separated runs, scan and/or scp (default scan,scp)"));
+        opts.addOption(new Option(null, "workDir", true, "Directory for the corpus and outputs, deleted first (default build/ingest-benchmark)"));
+        opts.addOption(new Option(null, "results", true, "Write the JSON results to this file (default standard out)"));
+    }
+
+    /** Generates the corpus into workDir/corpus */
+    public void generate() throws IOException {
+        SyntheticStudy.deleteAll(workDir);
+        List<String> tsuids = new ArrayList<>();
+        for (String name : cl.getOptionValue("transferSyntaxes", "lee").split(",")) {
+            tsuids.add("jpeg".equalsIgnoreCase(name) ? UID.JPEGBaseline8Bit : StaticWado.getTsuid(name));
+        }
+        SyntheticCorpus corpus = new SyntheticCorpus()
+            .studies(intOption("studies", 2))
+            .series(intOption("seriesPerStudy", 2))
+            .instances(intOption("instancesPerSeries", 50))
+            .size(intOption("frameSize", 256))
+            .bitsAllocated(intOption("bitsAllocated", 16))
+            .transferSyntaxes(tsuids)
+            .multiframe(intOption("multiframe", 0), intOption("frames", 10));
+        long start = System.nanoTime();
+        files = corpus.write(new File(workDir, "corpus"));
+        inputBytes = files.stream().mapToLong(File::length).sum();
+        log.warn("Generated {} instances, {} bytes in {} s", files.size(), inputBytes, (System.nanoTime() - start) / 1e9);
+    }
+
+    /** Imports the corpus with scanDicom */
+    public Result scan() {
+        StudyManager manager = createStudyManager("scan");
+        Result result = new Result("scan", manager);
+        manager.scanDicom(new File(workDir, "corpus").getAbsolutePath());
+        return result.finish();
+    }
+
+    /** Imports the corpus by sending it over one association to a StaticWadoScp */
+    public Result scp() throws Exception {
+        StudyManager manager = createStudyManager("scp");
+        StaticWadoScp scp = new StaticWadoScp(cl, manager);
+        scp.start();
+        Result result = new Result("scp", manager);
+        send(Integer.parseInt(cl.getOptionValue("scpPort", "11112")));
+        scp.stop();
+        return result.finish();
+    }
+
+    private StudyManager createStudyManager(String name) {
+        StudyManager manager = StaticWado.createStudyManager(cl);
+        manager.setDicomWebDir(new File(workDir, name).getAbsolutePath());
+        return manager;
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(cl.getOptionValue(name, String.valueOf(defaultValue)));
+    }
+
+    /** Sends every corpus file as it is stored, without parsing more than the file meta information */
+    private void send(int port) throws Exception {
+        Device device = new Device("IngestBenchmark");
+        Connection conn = new Connection();
+        ApplicationEntity ae = new ApplicationEntity("BENCHMARK");
+        device.addConnection(conn);
+        device.addApplicationEntity(ae);
+        ae.addConnection(conn);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ScheduledExecutorService scheduled = Executors.newSingleThreadScheduledExecutor();
+        device.setExecutor(executor);
+        device.setScheduledExecutor(scheduled);
+        try {
+            List<Source> sources = new ArrayList<>(files.size());
+            AAssociateRQ rq = new AAssociateRQ();
+            rq.setCalledAET("STATICWADO");
+            for (File file : files) {
+                Source source = new Source(file);
+                sources.add(source);
+                if (!rq.containsPresentationContextFor(source.cuid, source.tsuid)) {
+                    rq.addPresentationContext(new PresentationContext(2 * rq.getNumberOfPresentationContexts() + 1,
+                        source.cuid, source.tsuid));
+                }
+            }
+            Connection remote = new Connection();
+            remote.setHostname("localhost");
+            remote.setPort(port);
+            Association as = ae.connect(conn, remote, rq);
+            AtomicInteger failures = new AtomicInteger();
+            for (Source source : sources) {
+                try (FileInputStream is = new FileInputStream(source.file)) {
+                    is.getChannel().position(source.offset);
+                    as.cstore(source.cuid, source.iuid, Priority.NORMAL, new InputStreamDataWriter(is), source.tsuid,
+                        new DimseRSPHandler(as.nextMessageID()) {
+                            @Override
+                            public void onDimseRSP(Association as, Attributes cmd, Attributes data) {
+                                super.onDimseRSP(as, cmd, data);
+                                if (cmd.getInt(Tag.Status, -1) != Status.Success) failures.incrementAndGet();
+                            }
+                        });
+                }
+            }
+            as.waitForOutstandingRSP();
+            as.release();
+            as.waitForSocketClose();
+            if (failures.get() > 0) {
+                log.warn("{} of {} stores failed", failures.get(), files.size());
+            }
+        } finally {
+            executor.shutdown();
+            scheduled.shutdown();
+        }
+    }
+
+    /** A corpus file and where its dataset starts */
+    private static class Source {
+        final File file;
+        final String cuid;
+        final String iuid;
+        final String tsuid;
+        final long offset;
+
+        Source(File file) throws IOException {
+            this.file = file;
+            try (DicomInputStream dis = new DicomInputStream(file)) {
+                Attributes fmi = dis.readFileMetaInformation();
+                cuid = fmi.getString(Tag.MediaStorageSOPClassUID);
+                iuid = fmi.getString(Tag.MediaStorageSOPInstanceUID);
+                tsuid = fmi.getString(Tag.TransferSyntaxUID);
+                offset = dis.getPosition();
+            }
+        }
+    }
+
+    /** The measurements of one run, started when created */
+    public class Result {
+        final String name;
+        final StudyManager manager;
+        final long start;
+        long nanos;
+        long filesWritten;
+        long bytesWritten;
+        long peakHeap;
+
+        Result(String name, StudyManager manager) {
+            this.name = name;
+            this.manager = manager;
+            System.gc();
+            ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+            this.start = System.nanoTime();
+        }
+
+        Result finish() {
+            nanos = System.nanoTime() - start;
+            // The sum of the pool peaks, which can be a little higher than the peak of the whole heap
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) peakHeap += pool.getPeakUsage().getUsed();
+            }
+            try (var paths = Files.walk(new File(manager.getDicomWebDir()).toPath())) {
+                paths.filter(Files::isRegularFile).forEach(path -> {
+                    filesWritten++;
+                    bytesWritten += path.toFile().length();
+                });
+            } catch (IOException e) {
+                log.warn("Unable to count the files written", e);
+            }
+            return this;
+        }
+
+        void write(JsonGenerator generator) {
+            double seconds = nanos / 1e9;
+            generator.writeStartObject();
+            generator.write("name", name);
+            generator.write("seconds", seconds);
+            generator.write("instancesPerSecond", files.size() / seconds);
+            generator.write("megabytesPerSecond", inputBytes / seconds / (1024 * 1024));
+            generator.write("filesWritten", filesWritten);
+            generator.write("bytesWritten", bytesWritten);
+            generator.write("peakHeapBytes", peakHeap);
+            generator.writeStartObject("stages");
+            for (Metrics.Stage stage : Metrics.Stage.values()) {
+                Metrics.Snapshot snapshot = manager.metrics.getHistogram(stage).snapshot();
+                if (snapshot.count == 0) continue;
+                generator.writeStartObject(stage.label());
+                generator.write("count", snapshot.count);
+                generator.write("totalSeconds", snapshot.total / 1e9);
+                generator.write("p99Seconds", snapshot.quantile(0.99) / 1e9);
+                generator.writeEnd();
+            }
+            generator.writeEnd();
+            generator.writeEnd();
+        }
+    }
+
+    public void writeResults(List<Result> results, Writer writer) {
+        try (JsonGenerator generator = Json.createGeneratorFactory(Map.of(JsonGenerator.PRETTY_PRINTING, true))
+            .createGenerator(writer)) {
+            generator.writeStartObject();
+            generator.write("time", Instant.now().toString());
+            generator.write("instances", files.size());
+            generator.write("inputBytes", inputBytes);
+            generator.writeStartObject("options");
+            for (Option option : cl.getOptions()) {
+                generator.write(option.getLongOpt() != null ? option.getLongOpt() : option.getOpt(),
+                    option.hasArg() ? option.getValue() : "true");
+            }
+            generator.writeEnd();
+            generator.writeStartArray("runs");
+            results.forEach(result -> result.write(generator));
+            generator.writeEnd();
+            generator.writeEnd();
+        }
+    }
+
+    public static void main(String... args) throws Exception {
+        Options opts = new Options();
+        StaticWado.addStudyManagerArgs(opts);
+        StaticWadoScp.addOptions(opts);
+        addOptions(opts);
+        CommandLine cl = StaticWado.parseCommandLine(opts, args);
+        IngestBenchmark benchmark = new IngestBenchmark(cl);
+        benchmark.generate();
+        List<Result> results = new ArrayList<>();
+        for (String run : cl.getOptionValue("runs", "scan,scp").split(",")) {
+            if ("scan".equals(run)) {
+                results.add(benchmark.scan());
+            } else if ("scp".equals(run)) {
+                results.add(benchmark.scp());
+            } else {
+                log.warn("Unknown run {}", run);
+            }
+        }
+        String resultsFile = cl.getOptionValue("results");
+        if (resultsFile == null) {
+            Writer writer = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+            benchmark.writeResults(results, writer);
+            writer.flush();
+        } else {
+            try (Writer writer = Files.newBufferedWriter(Path.of(resultsFile), StandardCharsets.UTF_8)) {
+                benchmark.writeResults(results, writer);
+            }
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,49 @@
+package org.dcm4che.staticwado.benchmarks;
+
+import org.dcm4che.staticwado.JsonAccess;
+import org.dcm4che3.data.Attributes;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing and reading DICOM JSON, for a single instance and for a series worth of instance metadata.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=error")
+public class JsonBenchmark {
+    @Param({"1", "100"})
+    int instances;
+
+    List<Attributes> headers;
+    byte[] json;
+    ByteArrayOutputStream os;
+
+    @Setup
+    public void setup() throws IOException {
+        headers = new SyntheticStudy(1).instances(instances).headers();
+        os = new ByteArrayOutputStream();
+        JsonAccess.write(os, headers);
+        json = os.toByteArray();
+    }
+
+    @Benchmark
+    public int write() throws IOException {
+        os.reset();
+        JsonAccess.write(os, headers);
+        return os.size();
+    }
+
+    @Benchmark
+    public List<Attributes> read() {
+        return JsonAccess.read(new ByteArrayInputStream(json));
+    }
+}
@@ -0,0 +1,62 @@
+package org.dcm4che.staticwado.benchmarks;
+
+import org.dcm4che.staticwado.SopId;
+import org.dcm4che.staticwado.StudyData;
+import org.dcm4che.staticwado.StudyManager;
+import org.dcm4che3.data.Attributes;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StudyData.writeStudyMetadata for a synthetic study.  With update set every series is regenerated each time,
+ * otherwise the unchanged series are skipped, which is the cost of re-completing a study that got no new data.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=error")
+public class StudyMetadataBenchmark {
+    @Param({"4"})
+    int series;
+
+    @Param({"250"})
+    int instances;
+
+    @Param({"true", "false"})
+    boolean update;
+
+    File dir;
+    StudyData studyData;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("metadata").toFile();
+        StudyManager manager = new StudyManager();
+        manager.setDicomWebDir(dir.getAbsolutePath());
+        manager.setUpdate(update);
+        StudyManager.StudyDataFactory factory = manager.createStudyDataFactory();
+        for (Attributes attr : new SyntheticStudy(1).series(series).instances(instances).headers()) {
+            SopId id = factory.createSopId(attr);
+            manager.instanceConsumer.accept(id, attr);
+            studyData = id.getStudyData();
+        }
+        // The first write records the series hashes that the unchanged case skips on
+        studyData.writeStudyMetadata();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        SyntheticStudy.deleteAll(dir);
+    }
+
+    @Benchmark
+    public Attributes writeStudyMetadata() {
+        return studyData.writeStudyMetadata();
+    }
+}
@@ -0,0 +1,89 @@
+package org.dcm4che.staticwado.benchmarks;
+
+import org.dcm4che3.data.UID;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A synthetic corpus of part 10 files, studies x series x instances, for the end to end benchmarks.  The
+ * transfer syntaxes are used round robin across the instances, and every multiframe'th instance is a multi-frame
+ * one.  JPEG baseline instances are always 8 bit, as that is all the transfer syntax allows.
+ */
+public class SyntheticCorpus {
+    private int studies = 2;
+    private int series = 2;
+    private int instances = 50;
+    private int size = 256;
+    private int bitsAllocated = 16;
+    private List<String> transferSyntaxes = List.of(UID.ExplicitVRLittleEndian);
+    private int multiframe;
+    private int frames = 10;
+
+    public SyntheticCorpus studies(int studies) {
+        this.studies = studies;
+        return this;
+    }
+
+    public SyntheticCorpus series(int series) {
+        this.series = series;
+        return this;
+    }
+
+    /** Sets the number of instances per series */
+    public SyntheticCorpus instances(int instances) {
+        this.instances = instances;
+        return this;
+    }
+
+    /** Sets the rows and columns of every frame */
+    public SyntheticCorpus size(int size) {
+        this.size = size;
+        return this;
+    }
+
+    public SyntheticCorpus bitsAllocated(int bitsAllocated) {
+        this.bitsAllocated = bitsAllocated;
+        return this;
+    }
+
+    public SyntheticCorpus transferSyntaxes(List<String> transferSyntaxes) {
+        this.transferSyntaxes = transferSyntaxes;
+        return this;
+    }
+
+    /** Makes every multiframe'th instance a multi-frame instance of frames frames, 0 for none */
+    public SyntheticCorpus multiframe(int multiframe, int frames) {
+        this.multiframe = multiframe;
+        this.frames = frames;
+        return this;
+    }
+
+    public int getInstanceCount() {
+        return studies * series * instances;
+    }
+
+    /** Writes the corpus, one directory per study, returning the files written */
+    public List<File> write(File dir) throws IOException {
+        List<File> ret = new ArrayList<>(getInstanceCount());
+        int position = 0;
+        for (int study = 1; study <= studies; study++) {
+            File studyDir = new File(dir, String.valueOf(study));
+            studyDir.mkdirs();
+            for (int s = 1; s <= series; s++) {
+                for (int i = 1; i <= instances; i++) {
+                    String tsuid = transferSyntaxes.get(position % transferSyntaxes.size());
+                    boolean multi = multiframe > 0 && position % multiframe == multiframe - 1;
+                    SyntheticStudy generator = new SyntheticStudy(study).size(size, size)
+                            .bitsAllocated(UID.JPEGBaseline8Bit.equals(tsuid) ? 8 : bitsAllocated)
+                            .frames(multi ? frames : 1);
+                    ret.add(generator.write(studyDir, s, i, tsuid));
+                    position++;
+                }
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,285 @@
+package org.dcm4che.staticwado.benchmarks;
+
+import org.dcm4che.staticwado.ExtMemoryCacheImageOutputStream;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.imageio.codec.ImageWriterFactory;
+import org.dcm4che3.io.DicomOutputStream;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic studies in process, so the benchmarks don't need a test corpus.  The attributes are a
+ * realistic CT like header with patient, study, series and image level data, and the pixel data is a smooth
+ * gradient with some noise, so that it compresses about as well as real images do.  Everything is generated
+ * from the study, series and instance numbers, so the same numbers always give the same UIDs and pixels.
+ */
+public class SyntheticStudy {
+    public static final String UID_ROOT = "1.2.826.0.1.3680043.9.7433.9";
+
+    private final int study;
+    private int series = 1;
+    private int instances = 10;
+    private int rows = 256;
+    private int columns = 256;
+    private int bitsAllocated = 16;
+    private int frames = 1;
+
+    public SyntheticStudy(int study) {
+        this.study = study;
+    }
+
+    public SyntheticStudy series(int series) {
+        this.series = series;
+        return this;
+    }
+
+    /** Sets the number of instances per series */
+    public SyntheticStudy instances(int instances) {
+        this.instances = instances;
+        return this;
+    }
+
+    public SyntheticStudy size(int rows, int columns) {
+        this.rows = rows;
+        this.columns = columns;
+        return this;
+    }
+
+    public SyntheticStudy bitsAllocated(int bitsAllocated) {
+        this.bitsAllocated = bitsAllocated;
+        return this;
+    }
+
+    public SyntheticStudy frames(int frames) {
+        this.frames = frames;
+        return this;
+    }
+
+    public String getStudyUid() {
+        return UID_ROOT + "." + study;
+    }
+
+    public String getSeriesUid(int seriesNumber) {
+        return getStudyUid() + "." + seriesNumber;
+    }
+
+    public String getSopUid(int seriesNumber, int instanceNumber) {
+        return getSeriesUid(seriesNumber) + "." + instanceNumber;
+    }
+
+    /** Returns the headers of every instance in the study, without pixel data */
+    public List<Attributes> headers() {
+        List<Attributes> ret = new ArrayList<>(series * instances);
+        for (int s = 1; s <= series; s++) {
+            for (int i = 1; i <= instances; i++) {
+                ret.add(header(s, i));
+            }
+        }
+        return ret;
+    }
+
+    /** Returns the header of one instance, without pixel data */
+    public Attributes header(int seriesNumber, int instanceNumber) {
+        Attributes attr = new Attributes(64);
+        attr.setString(Tag.SpecificCharacterSet, VR.CS, "ISO_IR 100");
+        attr.setString(Tag.ImageType, VR.CS, "ORIGINAL", "PRIMARY", "AXIAL");
+        attr.setString(Tag.SOPClassUID, VR.UI,
+                frames > 1 ? UID.MultiFrameGrayscaleWordSecondaryCaptureImageStorage : UID.CTImageStorage);
+        attr.setString(Tag.SOPInstanceUID, VR.UI, getSopUid(seriesNumber, instanceNumber));
+        attr.setString(Tag.StudyDate, VR.DA, "20210901");
+        attr.setString(Tag.StudyTime, VR.TM, "101500");
+        attr.setString(Tag.AccessionNumber, VR.SH, "ACC" + study);
+        attr.setString(Tag.Modality, VR.CS, "CT");
+        attr.setString(Tag.Manufacturer, VR.LO, "Synthetic");
+        attr.setString(Tag.InstitutionName, VR.LO, "Static WADO Benchmarks");
+        attr.setString(Tag.ReferringPhysicianName, VR.PN, "Referring^Doctor");
+        attr.setString(Tag.StudyDescription, VR.LO, "Synthetic study " + study);
+        attr.setString(Tag.SeriesDescription, VR.LO, "Synthetic series " + seriesNumber);
+        attr.setString(Tag.PatientName, VR.PN, "Synthetic^Patient" + study);
+        attr.setString(Tag.PatientID, VR.LO, "PID" + study);
+        attr.setString(Tag.PatientBirthDate, VR.DA, "19700101");
+        attr.setString(Tag.PatientSex, VR.CS, study % 2 == 0 ? "F" : "M");
+        attr.setString(Tag.BodyPartExamined, VR.CS, "CHEST");
+        attr.setDouble(Tag.SliceThickness, VR.DS, 1.25);
+        attr.setDouble(Tag.KVP, VR.DS, 120);
+        attr.setString(Tag.StudyInstanceUID, VR.UI, getStudyUid());
+        attr.setString(Tag.SeriesInstanceUID, VR.UI, getSeriesUid(seriesNumber));
+        attr.setString(Tag.StudyID, VR.SH, String.valueOf(study));
+        attr.setInt(Tag.SeriesNumber, VR.IS, seriesNumber);
+        attr.setInt(Tag.InstanceNumber, VR.IS, instanceNumber);
+        attr.setDouble(Tag.ImagePositionPatient, VR.DS, -125, -125, instanceNumber * 1.25);
+        attr.setDouble(Tag.ImageOrientationPatient, VR.DS, 1, 0, 0, 0, 1, 0);
+        attr.setString(Tag.FrameOfReferenceUID, VR.UI, getSeriesUid(seriesNumber) + ".0");
+        attr.setDouble(Tag.SliceLocation, VR.DS, instanceNumber * 1.25);
+        attr.setInt(Tag.SamplesPerPixel, VR.US, 1);
+        attr.setString(Tag.PhotometricInterpretation, VR.CS, "MONOCHROME2");
+        if (frames > 1) {
+            attr.setInt(Tag.NumberOfFrames, VR.IS, frames);
+        }
+        attr.setInt(Tag.Rows, VR.US, rows);
+        attr.setInt(Tag.Columns, VR.US, columns);
+        attr.setDouble(Tag.PixelSpacing, VR.DS, 0.7, 0.7);
+        attr.setInt(Tag.BitsAllocated, VR.US, bitsAllocated);
+        attr.setInt(Tag.BitsStored, VR.US, bitsAllocated == 16 ? 12 : 8);
+        attr.setInt(Tag.HighBit, VR.US, bitsAllocated == 16 ? 11 : 7);
+        attr.setInt(Tag.PixelRepresentation, VR.US, 0);
+        attr.setDouble(Tag.WindowCenter, VR.DS, bitsAllocated == 16 ? 40 : 128);
+        attr.setDouble(Tag.WindowWidth, VR.DS, bitsAllocated == 16 ? 400 : 256);
+        attr.setDouble(Tag.RescaleIntercept, VR.DS, bitsAllocated == 16 ? -1024 : 0);
+        attr.setDouble(Tag.RescaleSlope, VR.DS, 1);
+        return attr;
+    }
+
+    /** Returns one instance with native little endian pixel data */
+    public Attributes instance(int seriesNumber, int instanceNumber) {
+        Attributes attr = header(seriesNumber, instanceNumber);
+        if (bitsAllocated == 16) {
+            attr.setBytes(Tag.PixelData, VR.OW, pixels(seriesNumber * 100_000L + instanceNumber));
+        } else {
+            attr.setBytes(Tag.PixelData, VR.OB, pixels(seriesNumber * 100_000L + instanceNumber));
+        }
+        return attr;
+    }
+
+    /**
+     * Returns little endian pixel data for all the frames: a gradient across the image, a disc whose size
+     * changes with the seed, and noise in the low bits.
+     */
+    public byte[] pixels(long seed) {
+        Random random = new Random(seed);
+        int bytes = bitsAllocated / 8;
+        int frameLength = rows * columns * bytes;
+        byte[] ret = new byte[frameLength * frames];
+        int max = bitsAllocated == 16 ? 4095 : 255;
+        int noise = bitsAllocated == 16 ? 16 : 4;
+        for (int f = 0; f < frames; f++) {
+            double radius = Math.min(rows, columns) * (0.2 + 0.2 * ((seed + f) % 7) / 7.0);
+            int position = f * frameLength;
+            for (int y = 0; y < rows; y++) {
+                for (int x = 0; x < columns; x++) {
+                    double dx = x - columns / 2.0;
+                    double dy = y - rows / 2.0;
+                    double base = (x + y) * (max / 4.0) / (rows + columns);
+                    if (dx * dx + dy * dy < radius * radius) base += max / 2.0;
+                    int value = Math.min(max, (int) base + random.nextInt(noise));
+                    ret[position++] = (byte) value;
+                    if (bytes == 2) ret[position++] = (byte) (value >> 8);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /** Writes one instance as a part 10 file in explicit VR little endian */
+    public File write(File dir, int seriesNumber, int instanceNumber) throws IOException {
+        return write(dir, seriesNumber, instanceNumber, UID.ExplicitVRLittleEndian);
+    }
+
+    /**
+     * Writes one instance as a part 10 file in the given transfer syntax, compressing each frame when it is an
+     * encapsulated one.  The JPEG-LS and JPEG 2000 encoders need the opencv native library.
+     */
+    public File write(File dir, int seriesNumber, int instanceNumber, String tsuid) throws IOException {
+        Attributes attr = instance(seriesNumber, instanceNumber);
+        if (!UID.ImplicitVRLittleEndian.equals(tsuid) && !UID.ExplicitVRLittleEndian.equals(tsuid)) {
+            encapsulate(attr, tsuid);
+        }
+        File file = new File(dir, attr.getString(Tag.SOPInstanceUID) + ".dcm");
+        write(file, attr, tsuid);
+        return file;
+    }
+
+    /** Replaces the native pixel data with one compressed fragment per frame */
+    private void encapsulate(Attributes attr, String tsuid) throws IOException {
+        ImageWriterFactory.ImageWriterParam param = ImageWriterFactory.getImageWriterParam(tsuid);
+        if (param == null) {
+            throw new IllegalArgumentException("Unsupported transfer syntax " + tsuid);
+        }
+        byte[] pixels = attr.getBytes(Tag.PixelData);
+        ImageWriter writer = ImageWriterFactory.getImageWriter(param);
+        ImageWriteParam writeParam = writer.getDefaultWriteParam();
+        writeParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        if (UID.JPEGLosslessSV1.equals(tsuid)) {
+            writeParam.setCompressionType("LOSSLESS-1");
+        } else if (UID.JPEG2000Lossless.equals(tsuid)) {
+            writeParam.setCompressionType("LOSSLESS");
+        }
+        Fragments fragments = attr.newFragments(Tag.PixelData, VR.OB, frames + 1);
+        fragments.add(new byte[0]);
+        int frameLength = rows * columns * bitsAllocated / 8;
+        try {
+            for (int f = 0; f < frames; f++) {
+                try (ExtMemoryCacheImageOutputStream ios = new ExtMemoryCacheImageOutputStream(attr)) {
+                    writer.setOutput(ios);
+                    writer.write(null, new IIOImage(frameImage(pixels, f * frameLength), null, null), writeParam);
+                    byte[] data = ios.toByteArray();
+                    fragments.add((data.length & 1) == 0 ? data : Arrays.copyOf(data, data.length + 1));
+                }
+            }
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private BufferedImage frameImage(byte[] pixels, int offset) {
+        if (bitsAllocated == 8) {
+            BufferedImage ret = new BufferedImage(columns, rows, BufferedImage.TYPE_BYTE_GRAY);
+            byte[] data = ((DataBufferByte) ret.getRaster().getDataBuffer()).getData();
+            System.arraycopy(pixels, offset, data, 0, data.length);
+            return ret;
+        }
+        BufferedImage ret = new BufferedImage(columns, rows, BufferedImage.TYPE_USHORT_GRAY);
+        short[] data = ((DataBufferUShort) ret.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (short) ((pixels[offset + 2 * i] & 0xFF) | ((pixels[offset + 2 * i + 1] & 0xFF) << 8));
+        }
+        return ret;
+    }
+
+    /** Writes every instance of the study as part 10 files under dir, returning the files */
+    public List<File> writeAll(File dir) throws IOException {
+        dir.mkdirs();
+        List<File> ret = new ArrayList<>(series * instances);
+        for (int s = 1; s <= series; s++) {
+            for (int i = 1; i <= instances; i++) {
+                ret.add(write(dir, s, i));
+            }
+        }
+        return ret;
+    }
+
+    /** Deletes the directory and everything under it */
+    public static void deleteAll(File dir) throws IOException {
+        if (!dir.exists()) return;
+        try (var paths = Files.walk(dir.toPath())) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    public static void write(File file, Attributes attr, String tsuid) throws IOException {
+        Attributes fmi = attr.createFileMetaInformation(tsuid);
+        try (DicomOutputStream dos = new DicomOutputStream(file)) {
+            dos.writeDataset(fmi, attr);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.dcm4che.staticwado.benchmarks;
+
+import org.dcm4che.staticwado.ExtractImageFrames;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of decoded rasters back to little endian bytes, done for every frame written uncompressed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=error")
+public class ToBytesBenchmark {
+    @Param({"512"})
+    int size;
+
+    DataBufferUShort ushort;
+    DataBufferByte bytes;
+
+    @Setup
+    public void setup() {
+        ushort = new DataBufferUShort(size * size);
+        short[] data = ushort.getData();
+        for (int i = 0; i < data.length; i++) data[i] = (short) (i * 31);
+        bytes = new DataBufferByte(size * size * 3);
+    }
+
+    @Benchmark
+    public byte[] ushort() {
+        return ExtractImageFrames.toBytes(ushort);
+    }
+
+    @Benchmark
+    public byte[] shortArray() {
+        return ExtractImageFrames.toBytes(ushort.getData());
+    }
+
+    @Benchmark
+    public byte[] bytes() {
+        return ExtractImageFrames.toBytes(bytes);
+    }
+}